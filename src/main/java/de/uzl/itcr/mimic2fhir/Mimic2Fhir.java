@@ -15,38 +15,45 @@ limitations under the License.
 /***********************************************************************/
 package de.uzl.itcr.mimic2fhir;
 
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 
-import javax.json.Json;
-import javax.json.JsonObject;
+import org.hl7.fhir.r4.model.Bundle;
 
-import org.hl7.fhir.r4.model.Condition;
-import org.hl7.fhir.r4.model.Encounter;
-import org.hl7.fhir.r4.model.Location;
-import org.hl7.fhir.r4.model.Medication;
-import org.hl7.fhir.r4.model.MedicationStatement;
-import org.hl7.fhir.r4.model.Observation;
-import org.hl7.fhir.r4.model.Organization;
-import org.hl7.fhir.r4.model.Patient;
-import org.hl7.fhir.r4.model.Period;
-import org.hl7.fhir.r4.model.Practitioner;
-import org.hl7.fhir.r4.model.PractitionerRole;
-import org.hl7.fhir.r4.model.Procedure;
-import org.hl7.fhir.r4.model.Reference;
-
-import ca.uhn.fhir.model.primitive.IdDt;
-import de.uzl.itcr.mimic2fhir.model.MAdmission;
 import de.uzl.itcr.mimic2fhir.model.MCaregiver;
 import de.uzl.itcr.mimic2fhir.model.MPatient;
-import de.uzl.itcr.mimic2fhir.model.MTransfer;
 import de.uzl.itcr.mimic2fhir.model.MWard;
-import de.uzl.itcr.mimic2fhir.queue.Receiver;
-import de.uzl.itcr.mimic2fhir.queue.Sender;
-import de.uzl.itcr.mimic2fhir.work.BundleControl;
+import de.uzl.itcr.mimic2fhir.queue.AmqpTransport;
+import de.uzl.itcr.mimic2fhir.queue.AmqpWorkQueue;
+import de.uzl.itcr.mimic2fhir.queue.BundleMessage;
+import de.uzl.itcr.mimic2fhir.queue.BundleSpool;
+import de.uzl.itcr.mimic2fhir.queue.BundleTransport;
+import de.uzl.itcr.mimic2fhir.queue.InProcessTransport;
+import de.uzl.itcr.mimic2fhir.queue.OutputSink;
+import de.uzl.itcr.mimic2fhir.queue.PostgresWorkQueue;
+import de.uzl.itcr.mimic2fhir.queue.TransportType;
+import de.uzl.itcr.mimic2fhir.queue.WorkItem;
+import de.uzl.itcr.mimic2fhir.queue.WorkQueue;
+import de.uzl.itcr.mimic2fhir.work.BulkImportSink;
 import de.uzl.itcr.mimic2fhir.work.Config;
 import de.uzl.itcr.mimic2fhir.work.ConnectDB;
 import de.uzl.itcr.mimic2fhir.work.FHIRComm;
+import de.uzl.itcr.mimic2fhir.work.FhirContextHolder;
+import de.uzl.itcr.mimic2fhir.work.MemoryGovernor;
+import de.uzl.itcr.mimic2fhir.work.Metrics;
+import de.uzl.itcr.mimic2fhir.work.PatientConverter;
+import de.uzl.itcr.mimic2fhir.work.PatientMemoryEstimator;
+import de.uzl.itcr.mimic2fhir.work.PatientTrace;
+import de.uzl.itcr.mimic2fhir.work.PatientTask;
+import de.uzl.itcr.mimic2fhir.work.Pipeline;
+import de.uzl.itcr.mimic2fhir.work.ProgressReporter;
+import de.uzl.itcr.mimic2fhir.work.TraceLog;
+import de.uzl.itcr.mimic2fhir.work.UploadEngine;
+import de.uzl.itcr.mimic2fhir.work.WorkloadPlanner;
 
 /**
  * Application for transforming data from mimiciii to fhir 
@@ -65,14 +72,13 @@ public class Mimic2Fhir {
 	private HashMap<Integer,MCaregiver> caregivers;
 	private HashMap<Integer,MWard> locations;
 	
-	private HashMap<String,String> locationsInBundle;
-	private HashMap<String,String> caregiversInBundle;
-	private HashMap<String,String> medicationInBundle;
-	
-	private Organization hospital;
-	private BundleControl bundleC;
-	
-	private Sender sendr;
+	private BundleTransport transport;
+	private BundleSpool spool;
+	private final AtomicLong bundlesSent = new AtomicLong();
+	private BulkImportSink bulkSink;
+	private MemoryGovernor memoryGovernor;
+	private ProgressReporter progress;
+	private TraceLog traceLog;
 
 	
 	public Config getConfig() {
@@ -103,11 +109,139 @@ public class Mimic2Fhir {
 	public void setTopPatients(int topPatients) {
 		this.topPatients = topPatients;
 	}
+	
+	/**
+	 * Memory governor of the running conversion (reserved memory of the loaded patients)
+	 * @return memory governor, null if no memory budget is configured
+	 */
+	public MemoryGovernor getMemoryGovernor() {
+		return memoryGovernor;
+	}
+	
+	/**
+	 * Progress of the running conversion (start() only)
+	 * @return progress reporter, null if progress reports are switched off
+	 */
+	public ProgressReporter getProgressReporter() {
+		return progress;
+	}
 
 	/**
 	 * Start transformation 
 	 */
 	public void start() {	
+		long startTime = System.currentTimeMillis();
+		
+		prepare();
+
+    	int numberOfAllPatients = getNumberOfPatients();
+    	List<PatientTask> tasks = planTasks(1, numberOfAllPatients);
+    	
+    	//progress of the planned work: console line and status file
+    	if(config.getProgressInterval() > 0) {
+    		progress = new ProgressReporter(tasks, config.getProgressInterval(), config.getProgressFile() != null ? Paths.get(config.getProgressFile()) : null);
+    		progress.start();
+    	}
+
+    	//loop all patients: extract, convert, encode and send run in parallel
+    	Pipeline pipeline = createPipeline();
+    	pipeline.start();
+    	for(PatientTask task : tasks) {   	
+    		pipeline.submit(task);
+    	}
+    	pipeline.finish();
+    	printUtilization(pipeline);
+
+    	finishRun(startTime);
+    	if(progress != null) {
+    		progress.finish();
+    	}
+	}
+	
+	/**
+	 * Start coordinator of a distributed run: publishes the patients as work items (ranges of row ids) to the work queue 
+	 * and waits until the workers (startWorker(), any number of processes/machines) have done all of them.
+	 * Then the consumers started with startConsumer() are stopped.
+	 */
+	public void startCoordinator() {
+		long startTime = System.currentTimeMillis();
+		
+		dbAccess = new ConnectDB(config);
+		List<WorkItem> items;
+		if(config.isSizeAwareScheduling()) {
+			//items of about the same cost, largest first
+			items = new WorkloadPlanner(dbAccess, config.getEventsPerTask()).planWorkItems(getNumberOfPatients(), config.getWorkItemSize());
+		}
+		else {
+			items = WorkItem.split(getNumberOfPatients(), config.getWorkItemSize());
+		}
+		
+		WorkQueue workQueue = createWorkQueue();
+		workQueue.publish(items);
+		System.out.println("Published " + items.size() + " work items");
+		workQueue.awaitCompletion();
+		workQueue.close();
+		
+		if(outputMode != OutputMode.BULK_IMPORT && config.getTransport() == TransportType.AMQP) {
+			//all bundles are processed - stop consumers on other machines
+			stopConsumers();
+		}
+		System.out.println("Distributed run complete: " + items.size() + " work items in " + (System.currentTimeMillis() - startTime) + " ms");
+	}
+	
+	/**
+	 * Start worker of a distributed run: claims work items from the work queue (see startCoordinator()) 
+	 * and runs extraction, conversion and output for their patients until the work queue is empty.
+	 * An item is completed after all of its bundles are processed; it fails if its extraction/conversion failed or a bundle could not be processed 
+	 * (e.g. rejected by the server). Items of a failed worker are delivered to another worker.
+	 */
+	public void startWorker() {
+		long startTime = System.currentTimeMillis();
+		
+		//consumers of other workers keep running
+		prepare();
+		
+		Pipeline pipeline = createPipeline();
+		pipeline.start();
+		
+		WorkQueue workQueue = createWorkQueue();
+		try {
+			WorkItem item;
+			while((item = workQueue.claim()) != null) {
+				long errors = pipeline.getErrors();
+				long failedBundles = transport != null ? transport.getFailed() : 0;
+				for(PatientTask task : planTasks(item.getFirstRowId(), item.getLastRowId())) {
+					pipeline.submit(task);
+				}
+				pipeline.awaitIdle();
+				
+				if(pipeline.getErrors() > errors) {
+					workQueue.fail(item);
+					continue;
+				}
+				//bulk import: resources are staged locally until the end of the run
+				if(transport != null) {
+					transport.flush();
+					if(transport.getFailed() > failedBundles) {
+						System.out.println("Work item " + item + ": " + (transport.getFailed() - failedBundles) + " bundle(s) failed");
+						workQueue.fail(item);
+						continue;
+					}
+				}
+				workQueue.complete(item);
+			}
+		}
+		finally {
+			//also if the work queue is not available: no more heartbeats, unfinished items are taken over by other workers
+			workQueue.close();
+			pipeline.finish();
+			printUtilization(pipeline);
+			
+			finishRun(startTime);
+		}
+	}
+	
+	private void prepare() {
     	//Connection to mimic postgres DB
     	dbAccess = new ConnectDB(config);
     	
@@ -117,292 +251,369 @@ public class Mimic2Fhir {
     	//Preload Wards
     	locations = dbAccess.getLocations();
     	
-    	//initialize memoryLists of locations and caregivers and medication (-> conditional creates, each resource only once in bundle)
-    	locationsInBundle = new HashMap<String,String>();
-    	caregiversInBundle = new HashMap<String,String>();
-    	medicationInBundle = new HashMap<String,String>();
+    	if(config.getMemoryBudget() > 0) {
+    		memoryGovernor = new MemoryGovernor(config.getMemoryBudget());
+    	}
+    	
+    	//periodic metrics line (JMX: de.uzl.itcr.mimic2fhir:type=Metrics)
+    	Metrics.startLogging(config.getMetricsLogInterval());
     	
-    	//Preload Hospital
-    	hospital = createTopHospital();
+    	//per-patient trace records
+    	if(config.getTraceFile() != null) {
+    		traceLog = new TraceLog(Paths.get(config.getTraceFile()), config.getSlowPatientPercentile());
+    	}
     	
-    	//Fhir-Communication and Resource-Bundle-Stuff
+    	//Fhir-Communication (narratives of the shared context: set once per run)
+    	FhirContextHolder.setNarrativeMode(config.getNarrativeMode());
     	fhir = new FHIRComm(config);  
-    	bundleC = new BundleControl();
 
-    	int numberOfAllPatients = 0;
-    	if(topPatients == 0) { //all Patients
-    		numberOfAllPatients = dbAccess.getNumberOfPatients();
+    	if(outputMode == OutputMode.BULK_IMPORT) {
+    		//no queue: resources are staged as NDJSON and imported at the end
+    		bulkSink = new BulkImportSink(fhir, config);
     	}
     	else {
-    		numberOfAllPatients = topPatients;
-    	}
-
-    	//Sender for sending bundle messages to queue
-    	sendr = new Sender();
-    	
-    	//Start Message-Receiver (handles bundle operations)
-    	Receiver r = new Receiver();
-    	r.setFhirConnector(fhir);
-    	r.setOutputMode(outputMode);
-    	r.receive();
-
-    	//loop all patients..
-    	for(int i = 1; i<= numberOfAllPatients; i++) {   	
-    		MPatient mimicPat2 = dbAccess.getPatientByRowId(i);
-    		processPatient(mimicPat2, i);
+	    	//Transport for sending bundle messages to the consumers
+	    	transport = createTransport();
+	    	if(config.getSpoolPath() != null) {
+	    		//claim check: bundles in files, references in the queue
+	    		spool = new BundleSpool(Paths.get(config.getSpoolPath()));
+	    	}
+	    	
+	    	//Start consumers (handle bundle operations) - in-process queue always needs local consumers
+	    	if(config.isStartLocalConsumers() || config.getTransport() == TransportType.IN_PROCESS) {
+	    		receiveBundles();
+	    	}
     	}
-
-    	//Push end-Message to queue
-    	JsonObject message = Json.createObjectBuilder()
-    			.add("number", "0")
-    			.add("bundle", "END")
-    			.build();
-
-    	sendr.send(message.toString());    	 
-
-    	//close connection to queue
-    	sendr.close();
 	}
 	
-	private void resetMemoryLists() {
-		caregiversInBundle.clear();
-		locationsInBundle.clear();
-		medicationInBundle.clear();
+	private int getNumberOfPatients() {
+    	if(topPatients == 0) { //all Patients
+    		return dbAccess.getNumberOfPatients();
+    	}
+    	return topPatients;
 	}
 	
-	private void processPatient(MPatient mimicPat, int numPat) {
-		//Fill FHIR-Structure
-		Patient fhirPat = mimicPat.createFhirFromMimic();	
-		String patNumber;
-		int admissionIndex = 0;
-
-		//All admissions of one patient
-		for(MAdmission admission : mimicPat.getAdmissions()) {
-
-			//First: Load/create fhir resources
-			Encounter enc = admission.createFhirEncounterFromMimic(fhirPat.getId());
-
-			//create Conditions per Admission
-			List<Condition> conditions = admission.createFhirConditionsFromMimic(fhirPat.getId());
-
-			//create Procedures per Admission
-			List<Procedure> procedures = admission.createFhirProceduresFromMimic(fhirPat.getId());
-
-			//create List Of Medication & MedicationStatements
-			List<Medication> medications = admission.createFhirMedicationsFromMimic();
-			List<MedicationStatement> prescriptions = admission.createFhirMedicationStatementsFromMimic(fhirPat.getId(), enc.getId());
-	
-			//create Observations per Admission
-			List<Observation> obs = admission.createFhirObservationsFromMimic(fhirPat.getId(), enc.getId());
-			//create Observation from Labevents
-			List<Observation> obsLab = admission.createFhirLabObservationsFromMimic(fhirPat.getId(), enc.getId());
-			//create Observation from Noteevents
-			List<Observation> obsNotes = admission.createFhirNoteObservationsFromMimic(fhirPat.getId(), enc.getId());
-
-			//create bundle without observations and medication:
-			createBasicBundle(fhirPat, admission, enc, conditions, procedures);
-			
-			//Medication only in first bundle of admission
-			//Prescriptions		
-			for(Medication med : medications) {
-				String identifier = med.getCode().getCodingFirstRep().getCode();
-				if(!medicationInBundle.containsKey(identifier))
-				{
-					bundleC.addUUIDResourceWithConditionToBundle(med, "code=" + med.getCode().getCodingFirstRep().getCode());
-					medicationInBundle.put(identifier, med.getId());
-				}
-			}
-			
-			//..and MedicationStatements (with correct Medication as Reference)
-			for(MedicationStatement mstmt : prescriptions) {
-				String identifier = medications.get(prescriptions.indexOf(mstmt)).getCode().getCodingFirstRep().getCode();
-				String medId = medicationInBundle.get(identifier);
-				mstmt.setMedication(new Reference(medId));
-				
-				bundleC.addUUIDResourceToBundle(mstmt);
-			}
-			
-			//Identification
-			admissionIndex++;
-			patNumber = numPat + "_" + admissionIndex;
-
-			//add observations to bundle
-			for(Observation o : obs) {
-				//check if bundle is full
-				checkBundleLimit(patNumber, fhirPat, admission, enc, conditions, procedures);
-
-				//get Caregiver for this event
-				int caregiverId = admission.getEvents().get(obs.indexOf(o)).getCareGiverId();
-				if(caregiverId != 0) {
-					String pFhirId = processCaregiver(caregiverId);
-
-					//Set caregiver-Reference -> Performer
-					o.addPerformer(new Reference(pFhirId));
-				}
-				//Order important - these reference pat & encounter
-				bundleC.addResourceToBundle(o);
-			}
-
-
-			for(Observation o : obsLab) {
-				//check if bundle is full
-				checkBundleLimit(patNumber, fhirPat, admission, enc, conditions, procedures);
-
-				bundleC.addResourceToBundle(o);
-			}
-
-			for(Observation o : obsNotes) {
-				//check if bundle is full
-				checkBundleLimit(patNumber, fhirPat, admission, enc, conditions, procedures);
-
-				//get Caregiver for this event
-				int caregiverId = admission.getNoteevents().get(obsNotes.indexOf(o)).getCaregiverId();
-				if(caregiverId != 0) {
-					String pFhirId = processCaregiver(caregiverId);
-
-					//Set caregiver-Reference -> Performer
-					o.addPerformer(new Reference(pFhirId));
-				}
-
-				bundleC.addResourceToBundle(o);
+	/**
+	 * Tasks for a range of patients: in row id order or, with size-aware scheduling, largest first 
+	 * (the stage threads take the next task when they are free, so the giant patients do not end up last on one core)
+	 */
+	private List<PatientTask> planTasks(int firstRowId, int lastRowId) {
+		WorkloadPlanner planner = new WorkloadPlanner(dbAccess, config.getEventsPerTask(), config.getEventSpillThreshold());
+		if(config.isSizeAwareScheduling()) {
+			List<PatientTask> tasks = planner.plan(firstRowId, lastRowId);
+			if(!tasks.isEmpty()) {
+				System.out.println("Planned " + tasks.size() + " tasks for patients " + firstRowId + "-" + lastRowId + ", largest cost " + tasks.get(0).getCost());
 			}
-			
-
-			//Push bundle to queue
-			JsonObject message = Json.createObjectBuilder()
-					.add("number", patNumber + "_" + bundleC.getInternalBundleNumber()) 
-					.add("bundle", fhir.getBundleAsString(bundleC.getTransactionBundle()))
-					.build();
-
-			sendr.send(message.toString());  
-
-			//reset bundle and memory lists
-			bundleC.resetBundle();
-			resetMemoryLists();
-			
-
+			return tasks;
+		}
+		if(memoryGovernor != null) {
+			//row counts for the memory estimates: one query for the range
+			return planner.planInRowOrder(firstRowId, lastRowId);
 		}
-    	bundleC.resetInternalBundleNumber();
+		List<PatientTask> tasks = new ArrayList<PatientTask>();
+		for(int i = firstRowId; i <= lastRowId; i++) {
+			tasks.add(PatientTask.patient(i));
+		}
+		return tasks;
 	}
-
-	private void checkBundleLimit(String numPat, Patient fhirPat, MAdmission admission, Encounter enc,
-			List<Condition> conditions, List<Procedure> procedures) {
+	
+	private void printUtilization(Pipeline pipeline) {
+		System.out.print(pipeline.getUtilization());
+		if(memoryGovernor != null) {
+			System.out.println(memoryGovernor);
+		}
+	}
+	
+	private void finishRun(long startTime) {
+		//the pipeline is done - all traces are written
+		if(traceLog != null) {
+			traceLog.close();
+		}
 		
-		//if bundle exceeds 15000 resources -> start new bundle
-		if(bundleC.getNumberOfResorces() > 15000) {
-			//Push bundle to queue
-			JsonObject message = Json.createObjectBuilder()
-					.add("number", numPat + "_" + bundleC.getInternalBundleNumber()) 
-					.add("bundle", fhir.getBundleAsString(bundleC.getTransactionBundle()))
-			        .build();
-			
-			sendr.send(message.toString());  
-			
-			//reset bundle and memory lists
-			bundleC.resetBundle();
-			resetMemoryLists();
-			//reload basic bundle stuff 
-			createBasicBundle(fhirPat, admission, enc, conditions, procedures);
+    	if(bulkSink != null) {
+    		//serve NDJSON files and wait for the server's import
+    		bulkSink.close();
+    		System.out.println(Metrics.getSummary());
+    		return;
+    	}
+    	
+    	//End of stream: wait until every bundle is processed, stop consumers
+    	long completed = transport.finish();
+    	System.out.println("Run complete: " + bundlesSent.get() + " bundles processed in " + (completed - startTime) + " ms");
+    	System.out.println(Metrics.getSummary());
+	}
+	
+	/**
+	 * Stop all consumers of the RabbitMQ queue: consumers started with startConsumer() (on any machine) and the consumers of running conversions
+	 */
+	public void stopConsumers() {
+		new AmqpTransport(config).finish();
+	}
+	
+	/**
+	 * Start consumers only: process bundles from the RabbitMQ queue according to the output mode. 
+	 * The conversion (start()) runs in another process, possibly on another machine; any number of consumers can share the queue.
+	 */
+	public void startConsumer() {
+		FhirContextHolder.setNarrativeMode(config.getNarrativeMode());
+		fhir = new FHIRComm(config);
+		transport = new AmqpTransport(config);
+		Metrics.startLogging(config.getMetricsLogInterval());
+		receiveBundles();
+	}
+	
+	private void receiveBundles() {
+		UploadEngine uploadEngine = null;
+		if(outputMode == OutputMode.PUSH_SERVER) {
+			uploadEngine = new UploadEngine(fhir, config);
 		}
+		transport.receive(new OutputSink(outputMode, fhir, uploadEngine));
 	}
-
-	private void createBasicBundle(Patient fhirPat, MAdmission admission, Encounter enc, List<Condition> conditions,
-			List<Procedure> procedures) {
+	
+	/**
+	 * Transport of a run: stops only the consumers of the run at the end (consumers of other runs and startConsumer() keep running)
+	 */
+	private BundleTransport createTransport() {
+		switch(config.getTransport()) {
+			case IN_PROCESS:
+				return new InProcessTransport(config.getQueueCapacity(), config.getConsumerThreads());
+			default:
+				return new AmqpTransport(config, false);
+		}
+	}
+	
+	private WorkQueue createWorkQueue() {
+		switch(config.getWorkQueue()) {
+			case POSTGRES:
+				return new PostgresWorkQueue(config);
+			default:
+				return new AmqpWorkQueue(config.getAmqpHost());
+		}
+	}
+	
+	private Pipeline createPipeline() {
+		Metrics.Counter bundleBytes = Metrics.counter("bundle.bytes");
+		Pipeline pipeline = new Pipeline(config.getStageQueueCapacity());
 		
-		//Pat to bundle
-		bundleC.addUUIDResourceWithConditionToBundle(fhirPat, "identifier=" + fhirPat.getIdentifierFirstRep().getSystem() + "|" + fhirPat.getIdentifierFirstRep().getValue());
+		//task (patient or admission part) -> patient (db)
+		pipeline.addStage("extract", config.getExtractThreads(), ExtractStage::new);
 		
-		//Top of all: Hospital
-		bundleC.addUUIDResourceWithConditionToBundle(hospital, "identifier=" + hospital.getIdentifierFirstRep().getSystem() + "|" + hospital.getIdentifierFirstRep().getValue());
-					
-		enc.getDiagnosis().clear(); //clear all procedures & diagnoses
+		//patient -> bundles
+		pipeline.addStage("convert", config.getConvertThreads(), () -> new ConvertStage(new PatientConverter(config, caregivers, locations), memoryGovernor, progress, traceLog));
 		
-		//Diagnoses
-		for(Condition c : conditions) {
-			int rank = admission.getDiagnoses().get(conditions.indexOf(c)).getSeqNumber();
-			
-			//set Condition in enc.diagnosis
-			enc.addDiagnosis().setCondition(new Reference(c.getId())).setRank(rank);
-			
-			//add Condition to bundle
-			bundleC.addUUIDResourceWithConditionToBundle(c, "identifier=" + c.getIdentifierFirstRep().getSystem() + "|" + c.getIdentifierFirstRep().getValue());
+		if(bulkSink != null) {
+			//bundles are staged as NDJSON
+			pipeline.<ConvertedBundle,Object>addStage("sink", config.getSinkThreads(), () -> (bundle, out) -> {
+				long start = System.nanoTime();
+				bulkSink.addBundle(bundle.bundle);
+				traceSink(bundle.trace, start);
+			});
+			return pipeline;
 		}
 		
-		//Procedures		
-		for(Procedure p : procedures) {
-			int rank = admission.getProcedures().get(procedures.indexOf(p)).getSeqNumber();
-			
-			//set Procedure in enc.diagnosis
-			enc.addDiagnosis().setCondition(new Reference(p.getId())).setRank(rank);
-			
-			//add Procedure to bundle
-			bundleC.addUUIDResourceWithConditionToBundle(p, "identifier=" + p.getIdentifierFirstRep().getSystem() + "|" + p.getIdentifierFirstRep().getValue());
-		}
+		//bundle -> bundle message (encoded once, the queue or the spool file carries the final bytes)
+		pipeline.<ConvertedBundle,EncodedBundle>addStage("encode", config.getEncodeThreads(), () -> (bundle, out) -> out.accept(encode(bundle)));
 		
-		//create transfer chain
+		//bundle message -> transport
+		pipeline.<EncodedBundle,Object>addStage("sink", config.getSinkThreads(), () -> (encoded, out) -> {
+			long start = System.nanoTime();
+			bundleBytes.add(encoded.message.getPayloadSize());
+			transport.send(encoded.message);
+			bundlesSent.incrementAndGet();
+			traceSink(encoded.trace, start);
+		});
+		return pipeline;
+	}
+	
+	private EncodedBundle encode(ConvertedBundle bundle) {
+		long start = System.nanoTime();
+		BundleMessage message;
+		if(spool != null) {
+			message = spool.write(bundle.number, fhir.getEncoder(), bundle.bundle);
+		}
+		else {
+			message = fhir.encodeBundle(bundle.number, bundle.bundle);
+		}
+		if(bundle.trace != null) {
+			bundle.trace.addEncode(System.nanoTime() - start, message.getPayloadSize());
+		}
+		return new EncodedBundle(message, bundle.trace);
+	}
+	
+	private void traceSink(PatientTrace trace, long start) {
+		if(trace != null) {
+			trace.addSink(System.nanoTime() - start);
+			traceLog.done(trace);
+		}
+	}
+	
+	/**
+	 * Extraction stage: one db connection per thread
+	 */
+	private class ExtractStage implements Pipeline.Stage<PatientTask,ExtractedPatient> {
+		private final ConnectDB db = new ConnectDB(config);
+
+		@Override
+		public void process(PatientTask task, Consumer<ExtractedPatient> out) {
+			PatientTrace trace = traceLog != null ? new PatientTrace(task) : null;
+			MPatient mimicPat = null;
+			long bytes = 0;
+			boolean handedOver = false;
+			db.setTrace(trace);
+			try {
+				//reserve before loading (estimate from the row counts), correct to the loaded patient afterwards
+				bytes = reserveMemory(task);
+				if(task.isAdmissionPart()) {
+					mimicPat = db.getAdmissionPart(task);
+				}
+				else {
+					mimicPat = db.getPatientByRowId(task.getRowId(), task.getSplitAdmissions());
+				}
+				if(mimicPat == null) {
+					if(progress != null) {
+						progress.taskDone(task, 0);
+					}
+					return;
+				}
+				bytes = adjustMemory(bytes, mimicPat);
+				out.accept(new ExtractedPatient(task, mimicPat, bytes, trace));
+				handedOver = true;
+			}
+			finally {
+				db.setTrace(null);
+				//not handed over: the conversion stage does not release
+				if(!handedOver) {
+					if(mimicPat != null) {
+						mimicPat.releaseEventSpills();
+					}
+					if(memoryGovernor != null && bytes > 0) {
+						memoryGovernor.release(bytes);
+					}
+				}
+			}
+		}
 		
-		enc.getLocation().clear(); //clear all locations -> to be newly added
+		private long reserveMemory(PatientTask task) {
+			if(memoryGovernor == null) {
+				return 0;
+			}
+			//estimated by the planner
+			long bytes = task.getMemoryEstimate();
+			try {
+				memoryGovernor.reserve(bytes);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}
+			return bytes;
+		}
 		
-		for(MTransfer t : admission.getTransfers()) {
-			Location locWard = locations.get(t.getCurrWard()).getFhirLocation();
-			String identifier = locWard.getIdentifierFirstRep().getValue();
-			String id;
-			if(!locationsInBundle.containsKey(identifier)) {
-				//add to memory list:
-				locationsInBundle.put(identifier, locWard.getId());
-				id =  locWard.getId();
-				//Location: Set Hospital als TOp-Orga
-				locWard.setManagingOrganization(new Reference(hospital.getId()));
-				
-				bundleC.addUUIDResourceWithConditionToBundle(locWard, "identifier=" + locWard.getIdentifierFirstRep().getSystem() + "|" + identifier);
-			}else {
-				id = locationsInBundle.get(identifier);
+		private long adjustMemory(long reservedBytes, MPatient mimicPat) {
+			if(memoryGovernor == null) {
+				return 0;
 			}
-
-			//Ward as Location
-			enc.addLocation().setLocation(new Reference(id)).setPeriod(new Period().setStart(t.getIntime()).setEnd(t.getOuttime()));
+			long bytes = PatientMemoryEstimator.estimate(mimicPat);
+			memoryGovernor.adjust(reservedBytes, bytes);
+			return bytes;
 		}
 		
-		//add Encounter to bundle
-		bundleC.addUUIDResourceWithConditionToBundle(enc,"identifier=" + enc.getIdentifierFirstRep().getSystem() + "|" + enc.getIdentifierFirstRep().getValue());
+		@Override
+		public void close() {
+			db.close();
+		}
 	}
+	
+	/**
+	 * Conversion stage: one converter per thread; releases the memory of the patient after the conversion and reports the task as done
+	 */
+	private static class ConvertStage implements Pipeline.Stage<ExtractedPatient,ConvertedBundle> {
+		private final PatientConverter converter;
+		private final MemoryGovernor memoryGovernor;
+		private final ProgressReporter progress;
+		private final TraceLog traceLog;
+		//time blocked by the next stage during the current conversion
+		private long blockedNanos;
+		
+		private ConvertStage(PatientConverter converter, MemoryGovernor memoryGovernor, ProgressReporter progress, TraceLog traceLog) {
+			this.converter = converter;
+			this.memoryGovernor = memoryGovernor;
+			this.progress = progress;
+			this.traceLog = traceLog;
+		}
 
-	private String processCaregiver(int caregiverId) {
-		MCaregiver cgHere = caregivers.get(caregiverId);
-		//Create FHIR-Resources for Practitioner und -Role
-		Practitioner pFhir = cgHere.getFhirRepresentation();
-		String identifier = pFhir.getIdentifierFirstRep().getValue();
-		String id;
-		if(!caregiversInBundle.containsKey(identifier)) {
-			//add to memory list
-			caregiversInBundle.put(identifier, pFhir.getId());
-			id = pFhir.getId();
-			bundleC.addUUIDResourceWithConditionToBundle(pFhir, "identifier=" + pFhir.getIdentifierFirstRep().getSystem() + "|" + identifier);
-			
-			PractitionerRole roleFhir = cgHere.getFhirRepresentationRole();
-			if(roleFhir != null) {
-				roleFhir.setPractitioner(new Reference(pFhir.getId()));
-				roleFhir.setOrganization(new Reference(hospital.getId()));
-				bundleC.addUUIDResourceWithConditionToBundle(roleFhir, "identifier=" + roleFhir.getIdentifierFirstRep().getSystem() + "|" + roleFhir.getIdentifierFirstRep().getValue());
+		@Override
+		public void process(ExtractedPatient patient, Consumer<ConvertedBundle> out) {
+			PatientTrace trace = patient.trace;
+			int admissions = 0;
+			long start = System.nanoTime();
+			blockedNanos = 0;
+			try {
+				converter.convert(patient.patient, patient.task.getRowId(), patient.task.getPartNumber(), (number, bundle) -> {
+					if(trace != null) {
+						trace.bundleCreated();
+					}
+					long handOver = System.nanoTime();
+					out.accept(new ConvertedBundle(number, bundle, trace));
+					blockedNanos += System.nanoTime() - handOver;
+				});
+				//admission parts: the admission is counted with its first part
+				if(!patient.task.isAdmissionPart()) {
+					admissions = patient.patient.getAdmissions().size();
+				}
+				else if(patient.task.getPart() == 0) {
+					admissions = 1;
+				}
+			}
+			finally {
+				if(memoryGovernor != null) {
+					memoryGovernor.release(patient.reservedBytes);
+				}
+				if(progress != null) {
+					progress.taskDone(patient.task, admissions);
+				}
+				if(trace != null) {
+					trace.setConvertNanos(System.nanoTime() - start - blockedNanos);
+					traceLog.done(trace);
+				}
 			}
 		}
-		else {
-			id = caregiversInBundle.get(identifier);
-		}
-		return id;
 	}
 	
-	private Organization createTopHospital() {
-		//Create a "dummy" Organization that is "top player" of PractitionerRoles and Locations
-		Organization hospital = new Organization();
+	private static class ExtractedPatient {
+		private final PatientTask task;
+		private final MPatient patient;
+		//reserved memory (MemoryGovernor)
+		private final long reservedBytes;
+		//null if not traced
+		private final PatientTrace trace;
 		
-		hospital.addIdentifier().setSystem("http://www.imi-mimic.de").setValue("hospital");
-		
-		hospital.addType().addCoding().setCode("prov").setSystem("http://hl7.org/fhir/organization-type").setDisplay("Healthcare Provider");
-		hospital.setName("IMI-Mimic Hospital");
+		private ExtractedPatient(PatientTask task, MPatient patient, long reservedBytes, PatientTrace trace) {
+			this.task = task;
+			this.patient = patient;
+			this.reservedBytes = reservedBytes;
+			this.trace = trace;
+		}
+	}
+	
+	private static class ConvertedBundle {
+		private final String number;
+		private final Bundle bundle;
+		private final PatientTrace trace;
 		
+		private ConvertedBundle(String number, Bundle bundle, PatientTrace trace) {
+			this.number = number;
+			this.bundle = bundle;
+			this.trace = trace;
+		}
+	}
+	
+	private static class EncodedBundle {
+		private final BundleMessage message;
+		private final PatientTrace trace;
 		
-		hospital.setId(IdDt.newRandomUuid());
-		return hospital;
+		private EncodedBundle(BundleMessage message, PatientTrace trace) {
+			this.message = message;
+			this.trace = trace;
+		}
 	}
 }
@@ -15,9 +15,37 @@ limitations under the License.
 /***********************************************************************/
 package de.uzl.itcr.mimic2fhir;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.ArrayDeque;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Condition;
 import org.hl7.fhir.r4.model.Encounter;
 import org.hl7.fhir.r4.model.Location;
@@ -32,17 +60,21 @@ import org.hl7.fhir.r4.model.PractitionerRole;
 import org.hl7.fhir.r4.model.Procedure;
 import org.hl7.fhir.r4.model.Reference;
 
-import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.model.primitive.IdDt;
-import ca.uhn.fhir.narrative.DefaultThymeleafNarrativeGenerator;
 import de.uzl.itcr.mimic2fhir.model.MAdmission;
 import de.uzl.itcr.mimic2fhir.model.MCaregiver;
+import de.uzl.itcr.mimic2fhir.model.MChartevent;
 import de.uzl.itcr.mimic2fhir.model.MPatient;
 import de.uzl.itcr.mimic2fhir.model.MTransfer;
 import de.uzl.itcr.mimic2fhir.model.MWard;
+import de.uzl.itcr.mimic2fhir.work.BundleCache;
 import de.uzl.itcr.mimic2fhir.work.BundleControl;
+import de.uzl.itcr.mimic2fhir.work.BundleEncoder;
+import de.uzl.itcr.mimic2fhir.work.BundleEncoding;
 import de.uzl.itcr.mimic2fhir.work.Config;
 import de.uzl.itcr.mimic2fhir.work.ConnectDB;
+import de.uzl.itcr.mimic2fhir.work.ConnectDBPool;
+import de.uzl.itcr.mimic2fhir.work.FhirContextHolder;
+import de.uzl.itcr.mimic2fhir.work.PatientConverter;
 
 /**
  * Application for transforming data from mimiciii to fhir
@@ -51,21 +83,33 @@ import de.uzl.itcr.mimic2fhir.work.ConnectDB;
  * 
  * This class is a clone of Mimic2Fhir, but altered to allow iterating over the returned patient's fhir bundles.
  * This removes the requirement for a Rabbit MQ instance and a fhir server, but does not allow limiting the number of results, nor provide various output modes. 
+ * 
+ * Thread-safe after start(): every call converts with its own bundle state, patient ids are handed out by a lock-free cursor 
+ * and db access goes through a pool of connections (setDbConnections). 
+ * streamPatients() returns a splittable stream of bundles for parallel processing, 
+ * getPatientAsBytesAsync() and writePatientAsync() convert on own executors without blocking the caller. 
+ * getPatients() converts a cohort of patients with one query per table for a whole batch of patients.
  */
 public class Mimic2Fhir2 {
 	//Config-Object
 	private Config config;
-	private ConnectDB dbAccess;
+	private ConnectDBPool dbPool;
+	private int dbConnections = Runtime.getRuntime().availableProcessors();
+	private int batchSize = 50;
 	private HashMap<Integer,MCaregiver> caregivers;
-	private FhirContext fhirContext;
+	private volatile BundleEncoder encoder;
+	private BundleCache cache;
+	private BundleEncoding encoding = BundleEncoding.JSON_PRETTY;
 	private HashMap<Integer,MWard> locations;
 
-	private HashMap<String,String> locationsInBundle;
-	private HashMap<String,String> caregiversInBundle;
-	private HashMap<String,String> medicationInBundle;
-	private Organization hospital;
-	private BundleControl bundleC;
 	private List<Integer> rowIds = null;
+	//next index in rowIds
+	private final AtomicInteger cursor = new AtomicInteger();
+	
+	//asynchronous calls: db access, conversion/encoding, timeouts
+	private ExecutorService dbExecutor;
+	private ExecutorService convertExecutor;
+	private ScheduledExecutorService timeouts;
 
 	
 	public Config getConfig() {
@@ -80,60 +124,563 @@ public class Mimic2Fhir2 {
 		this.config = config;
 	}
 
+	/**
+	 * Set encoding of returned bundles (default: pretty printed json)
+	 * @param encoding bundle encoding
+	 */
+	public void setEncoding(BundleEncoding encoding) {
+		this.encoding = encoding;
+		this.encoder = null;
+	}
+	
+	/**
+	 * Set cache for converted bundles (default: none) - repeated requests for a patient are answered from the cache. 
+	 * Invalidate the cache (BundleCache.invalidate) when the data of a patient changes.
+	 * @param cache bundle cache, null: no cache
+	 */
+	public void setCache(BundleCache cache) {
+		this.cache = cache;
+	}
+	
+	/**
+	 * Set max. number of db connections used by concurrent calls (default: number of processors); before start()
+	 * @param dbConnections max. number of db connections
+	 */
+	public void setDbConnections(int dbConnections) {
+		this.dbConnections = dbConnections;
+	}
+
+	/**
+	 * Set number of patients loaded together by getPatients() (default: 50) - 
+	 * larger batches mean fewer queries, but all rows of a batch are held in memory
+	 * @param batchSize patients per batch
+	 */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = batchSize;
+	}
+
     /**
 	 * Start transformation 
 	 */
 	public void start() {	
-    	//Connection to mimic postgres DB
-    	dbAccess = new ConnectDB(config);
+    	//Connections to mimic postgres DB
+    	dbPool = new ConnectDBPool(config, dbConnections);
+    	ConnectDB dbAccess = borrow();
+    	try {
+	    	//Preload Caregivers
+	    	caregivers = dbAccess.getCaregivers();
+	    	
+	    	//Preload Wards
+	    	locations = dbAccess.getLocations();
+	    	
+	        // loop all patients..
+	        rowIds = Collections.unmodifiableList(new ArrayList<Integer>(dbAccess.getPatientRowIds()));
+	        cursor.set(0);
+    	}
+    	finally {
+    		dbPool.release(dbAccess);
+    	}
     	
-    	//Preload Caregivers
-    	caregivers = dbAccess.getCaregivers();
-    	
-    	//Preload Wards
-    	locations = dbAccess.getLocations();
-    	
-    	//initialize memoryLists of locations and caregivers and medication (-> conditional creates, each resource only once in bundle)
-    	locationsInBundle = new HashMap<String,String>();
-    	caregiversInBundle = new HashMap<String,String>();
-    	medicationInBundle = new HashMap<String,String>();
-    	
-    	//Preload Hospital
-    	hospital = createTopHospital();
-    	
-    	bundleC = new BundleControl();
-
-        // loop all patients..
-        rowIds = dbAccess.getPatientRowIds();
+    	FhirContextHolder.setNarrativeMode(config.getNarrativeMode());
     }
-
-	private void resetMemoryLists() {
-		caregiversInBundle.clear();
-		locationsInBundle.clear();
-		medicationInBundle.clear();
-	}
 	
-	public synchronized Integer getNextPatientId() {
-	    return rowIds.remove(0);
+	/**
+	 * Next patient id (lock-free, every id is handed out once)
+	 * @return row id of the next patient or null, if all patients have been handed out
+	 */
+	public Integer getNextPatientId() {
+	    int index = cursor.getAndIncrement();
+	    return index < rowIds.size() ? rowIds.get(index) : null;
 	}
 
+    /**
+     * Get next patient (see getNextPatientId())
+     * @return encoded bundle or null, if all patients have been handed out
+     */
     public String getNextPatient() {
-        return getPatient(getNextPatientId());
+        Integer patientId = getNextPatientId();
+        return patientId != null ? getPatient(patientId) : null;
     }
 	
+    /**
+     * Patient ids not yet handed out
+     * @return row ids (read-only)
+     */
     public List<Integer> getPatientIds() {
-        return rowIds;
+        return rowIds.subList(Math.min(cursor.get(), rowIds.size()), rowIds.size());
     }
     
+    /**
+     * Stream of the bundles of all patients not yet handed out (encoded as string, see getPatient()). 
+     * Patient ids are taken from the same cursor as getNextPatientId(), so several streams and callers can share the work.
+     * @param parallel true: parallel stream (common fork join pool)
+     * @return stream of encoded bundles
+     */
+    public Stream<String> streamPatients(boolean parallel) {
+        return StreamSupport.stream(new PatientIdSpliterator(), parallel).map(this::getPatient).filter(Objects::nonNull);
+    }
+    
+    /**
+     * Stream of the bundles of all patients not yet handed out (encoded as bytes, see getPatientAsBytes())
+     * @param parallel true: parallel stream (common fork join pool)
+     * @return stream of encoded bundles
+     */
+    public Stream<byte[]> streamPatientsAsBytes(boolean parallel) {
+        return StreamSupport.stream(new PatientIdSpliterator(), parallel).map(this::getPatientAsBytes).filter(Objects::nonNull);
+    }
+    
+	/**
+	 * Get all admissions of a patient as one bundle, encoded as string
+	 * @param patientId row id of patient
+	 * @return encoded bundle or null, if no patient found
+	 */
 	public String getPatient(Integer patientId) {
-        MPatient mimicPat = null;
-        if (rowIds != null && !rowIds.isEmpty()) {
-            mimicPat = dbAccess.getPatientByRowId(patientId);
+        long generation = cacheGeneration();
+        String cached = getCachedString(patientId);
+        if (cached != null) {
+            return cached;
         }
+        return convertPatient(patientId, bundle -> toCache(patientId, generation, getEncoder().encodeToString(bundle)));
+    }
+
+	/**
+	 * Get the bundles of a list of patients (encoded as string, see getPatient()). 
+	 * Patients are loaded in batches (setBatchSize) with one query per table for all patients of a batch, 
+	 * bundles are converted one by one while iterating. Patient ids without patient are skipped. 
+	 * Iterate to the end: chart event spill files of oversized admissions of the current batch are deleted when their patient is converted.
+	 * @param patientIds row ids of patients
+	 * @return iterator of encoded bundles, in order of patientIds
+	 */
+    public Iterator<String> getPatients(List<Integer> patientIds) {
+        return new PatientBatchIterator<String>(patientIds, this::getCachedString, 
+                (patientId, generation, bundle) -> toCache(patientId, generation, getEncoder().encodeToString(bundle)));
+    }
+    
+	/**
+	 * Get the bundles of a list of patients (encoded as bytes, see getPatientAsBytes() and getPatients())
+	 * @param patientIds row ids of patients
+	 * @return iterator of encoded bundles, in order of patientIds
+	 */
+    public Iterator<byte[]> getPatientsAsBytes(List<Integer> patientIds) {
+        return new PatientBatchIterator<byte[]>(patientIds, this::getCached, 
+                (patientId, generation, bundle) -> toCache(patientId, generation, getEncoder().encode(bundle)));
+    }
+
+	/**
+	 * Get all admissions of a patient as one bundle, encoded as bytes (gzipped, if configured)
+	 * @param patientId row id of patient
+	 * @return encoded bundle or null, if no patient found (cached bundles must not be modified)
+	 */
+    public byte[] getPatientAsBytes(Integer patientId) {
+        long generation = cacheGeneration();
+        byte[] cached = getCached(patientId);
+        if (cached != null) {
+            return cached;
+        }
+        return convertPatient(patientId, bundle -> toCache(patientId, generation, getEncoder().encode(bundle)));
+    }
+
+    /**
+     * Get all admissions of a patient as one bundle, encoded as bytes (gzipped, if configured) - asynchronous. 
+     * Db access runs on a dedicated executor with one thread per db connection (setDbConnections), 
+     * conversion and encoding on a second executor with one thread per processor; callers are never blocked.
+     * Cancelling the future skips the steps that have not started yet.
+     * @param patientId row id of patient
+     * @return future of the encoded bundle (null, if no patient found)
+     */
+    public CompletableFuture<byte[]> getPatientAsBytesAsync(Integer patientId) {
+        long generation = cacheGeneration();
+        byte[] cached = getCached(patientId);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        return convertPatientAsync(patientId, bundle -> toCache(patientId, generation, getEncoder().encode(bundle)), null);
+    }
+    
+    /**
+     * Like getPatientAsBytesAsync(Integer), but the future fails with a TimeoutException after the given time
+     * @param patientId row id of patient
+     * @param timeout max. time until the bundle is encoded
+     * @param unit unit of timeout
+     * @return future of the encoded bundle (null, if no patient found)
+     */
+    public CompletableFuture<byte[]> getPatientAsBytesAsync(Integer patientId, long timeout, TimeUnit unit) {
+        return withTimeout(getPatientAsBytesAsync(patientId), timeout, unit);
+    }
+    
+    /**
+     * Write all admissions of a patient as one bundle to a stream (gzipped, if configured) - asynchronous, see getPatientAsBytesAsync(Integer). 
+     * The bundle is encoded into a buffer and copied to the stream only if the future is not done yet: 
+     * after the future was cancelled, the stream is not touched (a cancel during the copy does not stop it).
+     * @param patientId row id of patient
+     * @param out target stream; it is closed afterwards, if the bundle was written
+     * @return future: true, if the bundle was written; false, if no patient found
+     */
+    public CompletableFuture<Boolean> writePatientAsync(Integer patientId, OutputStream out) {
+        return writePatientAsync(patientId, out, new CompletableFuture<Boolean>(), new AtomicBoolean());
+    }
+    
+    // streamTaken: set by the writer before the copy or by the timeout - whoever is first owns the stream
+    private CompletableFuture<Boolean> writePatientAsync(Integer patientId, OutputStream out, CompletableFuture<Boolean> result, AtomicBoolean streamTaken) {
+        startExecutors();
+        CompletableFuture<byte[]> encoded = getPatientAsBytesAsync(patientId);
+        // cancelled or timed out: skip the steps that have not started yet
+        result.whenComplete((written, e) -> encoded.cancel(false));
+        encoded.whenCompleteAsync((bundle, e) -> {
+            if (e != null) {
+                result.completeExceptionally(e);
+            } else if (bundle == null) {
+                result.complete(Boolean.FALSE);
+            } else if (!result.isDone() && streamTaken.compareAndSet(false, true)) {
+                try {
+                    result.complete(write(bundle, out));
+                } catch (Throwable t) {
+                    result.completeExceptionally(t);
+                }
+            }
+        }, convertExecutor);
+        return result;
+    }
+    
+    private static Boolean write(byte[] bundle, OutputStream out) {
+        try (OutputStream o = out) {
+            o.write(bundle);
+            return Boolean.TRUE;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    private byte[] getCached(Integer patientId) {
+        return cache != null ? cache.get(BundleCache.key(patientId, encoding, config.isGzipBundles())) : null;
+    }
+    
+    private long cacheGeneration() {
+        return cache != null ? cache.getGeneration() : 0;
+    }
+    
+    // generation: taken before the patient was loaded (a patient invalidated meanwhile is not cached)
+    private byte[] toCache(Integer patientId, long generation, byte[] bundle) {
+        if (cache != null) {
+            cache.put(BundleCache.key(patientId, encoding, config.isGzipBundles()), bundle, generation);
+        }
+        return bundle;
+    }
+    
+    private String getCachedString(Integer patientId) {
+        byte[] cached = cache != null ? cache.get(BundleCache.key(patientId, encoding, false)) : null;
+        return cached != null ? new String(cached, StandardCharsets.UTF_8) : null;
+    }
+    
+    private String toCache(Integer patientId, long generation, String bundle) {
+        if (cache != null) {
+            cache.put(BundleCache.key(patientId, encoding, false), bundle.getBytes(StandardCharsets.UTF_8), generation);
+        }
+        return bundle;
+    }
+    
+    /**
+     * Like writePatientAsync(Integer, OutputStream), but the future fails with a TimeoutException after the given time. 
+     * The timeout only fires before the copy to the stream has started: after a timeout, the stream belongs to the caller 
+     * (e.g. to send an error response), it is neither written nor closed.
+     * @param patientId row id of patient
+     * @param out target stream
+     * @param timeout max. time until the copy to the stream starts
+     * @param unit unit of timeout
+     * @return future: true, if the bundle was written; false, if no patient found
+     */
+    public CompletableFuture<Boolean> writePatientAsync(Integer patientId, OutputStream out, long timeout, TimeUnit unit) {
+        AtomicBoolean streamTaken = new AtomicBoolean();
+        CompletableFuture<Boolean> result = withTimeout(new CompletableFuture<Boolean>(), timeout, unit, streamTaken);
+        return writePatientAsync(patientId, out, result, streamTaken);
+    }
+    
+    /**
+     * Stop the executors of the asynchronous calls and close the db connections
+     */
+    public void close() {
+        synchronized (this) {
+            if (dbExecutor != null) {
+                dbExecutor.shutdown();
+                convertExecutor.shutdown();
+                timeouts.shutdown();
+                dbExecutor = null;
+            }
+        }
+        if (dbPool != null) {
+            dbPool.close();
+        }
+    }
+
+    private <T> T convertPatient(Integer patientId, Function<Bundle, T> encode) {
+        MPatient mimicPat = loadPatient(patientId);
         if (mimicPat == null) {
             return null;
         }
+        return encode.apply(new PatientBundle().create(mimicPat));
+    }
+    
+    private MPatient loadPatient(Integer patientId) {
+        if (rowIds == null || rowIds.isEmpty()) {
+            return null;
+        }
+        ConnectDB dbAccess = borrow();
         try {
+            return dbAccess.getPatientByRowId(patientId);
+        } finally {
+            dbPool.release(dbAccess);
+        }
+    }
+    
+    private Map<Integer,MPatient> loadPatients(List<Integer> patientIds) {
+        ConnectDB dbAccess = borrow();
+        try {
+            return dbAccess.getPatientsByRowIds(patientIds);
+        } finally {
+            dbPool.release(dbAccess);
+        }
+    }
+    
+    private <T> CompletableFuture<T> convertPatientAsync(Integer patientId, Function<Bundle, T> encode, T notFound) {
+        CompletableFuture<T> result = new CompletableFuture<T>();
+        startExecutors();
+        //every step checks first, if the result is already done (cancelled, timed out)
+        dbExecutor.execute(() -> {
+            if (result.isDone()) {
+                return;
+            }
+            try {
+                MPatient mimicPat = loadPatient(patientId);
+                if (mimicPat == null) {
+                    result.complete(notFound);
+                    return;
+                }
+                try {
+                    convertExecutor.execute(() -> {
+                        if (result.isDone()) {
+                            // not converted: delete spill files of oversized admissions
+                            mimicPat.releaseEventSpills();
+                            return;
+                        }
+                        try {
+                            result.complete(encode.apply(new PatientBundle().create(mimicPat)));
+                        } catch (Throwable e) {
+                            result.completeExceptionally(e);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    mimicPat.releaseEventSpills();
+                    throw e;
+                }
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+    
+    private <T> CompletableFuture<T> withTimeout(CompletableFuture<T> future, long timeout, TimeUnit unit) {
+        return withTimeout(future, timeout, unit, null);
+    }
+    
+    // guard: the timeout only fires, if it can set the guard first (null: always)
+    private <T> CompletableFuture<T> withTimeout(CompletableFuture<T> future, long timeout, TimeUnit unit, AtomicBoolean guard) {
+        startExecutors();
+        ScheduledFuture<?> timer = timeouts.schedule(() -> {
+            if (guard == null || guard.compareAndSet(false, true)) {
+                future.completeExceptionally(new TimeoutException("Patient not converted within " + timeout + " " + unit));
+            }
+        }, timeout, unit);
+        future.whenComplete((r, e) -> timer.cancel(false));
+        return future;
+    }
+    
+    private synchronized void startExecutors() {
+        if (dbExecutor == null) {
+            //bounded db concurrency: one thread per connection
+            dbExecutor = Executors.newFixedThreadPool(dbPool.getSize(), daemonThreads("mimic2fhir-db"));
+            convertExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), daemonThreads("mimic2fhir-convert"));
+            timeouts = Executors.newSingleThreadScheduledExecutor(daemonThreads("mimic2fhir-timeout"));
+        }
+    }
+    
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger number = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + number.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+    
+    private ConnectDB borrow() {
+        try {
+            return dbPool.borrow();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a db connection", e);
+        }
+    }
+
+    private BundleEncoder getEncoder() {
+        BundleEncoder e = encoder;
+        if (e == null) {
+            //encoder is thread-safe, a second instance in a race does no harm
+            e = new BundleEncoder(encoding, config.isGzipBundles());
+            encoder = e;
+        }
+        return e;
+    }
+    
+    /**
+     * Claims patient ids from the shared cursor; splits off blocks of ids for parallel streams
+     */
+    private class PatientIdSpliterator implements Spliterator<Integer> {
+        private static final int BLOCK = 16;
+
+        @Override
+        public boolean tryAdvance(Consumer<? super Integer> action) {
+            Integer patientId = getNextPatientId();
+            if (patientId == null) {
+                return false;
+            }
+            action.accept(patientId);
+            return true;
+        }
+
+        @Override
+        public Spliterator<Integer> trySplit() {
+            int from = cursor.getAndAdd(BLOCK);
+            if (from >= rowIds.size()) {
+                return null;
+            }
+            return rowIds.subList(from, Math.min(from + BLOCK, rowIds.size())).spliterator();
+        }
+
+        @Override
+        public long estimateSize() {
+            return Math.max(0, rowIds.size() - cursor.get());
+        }
+
+        @Override
+        public int characteristics() {
+            return NONNULL | CONCURRENT;
+        }
+    }
+    
+    /**
+     * Encodes (and caches) the bundle of a loaded patient
+     */
+    private interface BatchEncoder<T> {
+        /**
+         * @param patientId row id of patient
+         * @param generation cache generation before the patient was loaded
+         * @param bundle converted bundle
+         * @return encoded bundle
+         */
+        T encode(Integer patientId, long generation, Bundle bundle);
+    }
+    
+    /**
+     * Loads the next batch of patients when the current one is used up; cached bundles are not loaded again
+     */
+    private class PatientBatchIterator<T> implements Iterator<T> {
+        private final List<Integer> patientIds;
+        private final Function<Integer, T> cached;
+        private final BatchEncoder<T> encode;
+        //current batch: ids in order, cached bundles and loaded patients (with the cache generation before loading)
+        private final ArrayDeque<Integer> pending = new ArrayDeque<Integer>();
+        private final HashMap<Integer, T> hits = new HashMap<Integer, T>();
+        private Map<Integer, MPatient> loaded = Collections.emptyMap();
+        private long generation;
+        private int position = 0;
+        
+        private PatientBatchIterator(List<Integer> patientIds, Function<Integer, T> cached, BatchEncoder<T> encode) {
+            this.patientIds = patientIds;
+            this.cached = cached;
+            this.encode = encode;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (true) {
+                Integer patientId = pending.peek();
+                if (patientId == null) {
+                    if (position >= patientIds.size()) {
+                        return false;
+                    }
+                    loadBatch();
+                } else if (hits.containsKey(patientId) || loaded.containsKey(patientId)) {
+                    return true;
+                } else {
+                    //no patient with this id
+                    pending.poll();
+                }
+            }
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Integer patientId = pending.poll();
+            T hit = hits.get(patientId);
+            if (hit != null) {
+                return hit;
+            }
+            return encode.encode(patientId, generation, new PatientBundle().create(loaded.get(patientId)));
+        }
+        
+        private void loadBatch() {
+            List<Integer> batch = patientIds.subList(position, Math.min(position + batchSize, patientIds.size()));
+            position += batch.size();
+            hits.clear();
+            generation = cacheGeneration();
+            List<Integer> misses = new ArrayList<Integer>();
+            for (Integer patientId : batch) {
+                T hit = cached.apply(patientId);
+                if (hit != null) {
+                    hits.put(patientId, hit);
+                } else {
+                    misses.add(patientId);
+                }
+            }
+            loaded = misses.isEmpty() ? Collections.<Integer, MPatient>emptyMap() : loadPatients(misses);
+            if (loaded == null) {
+                throw new IllegalStateException("Loading patients " + misses.get(0) + ".. failed");
+            }
+            pending.addAll(batch);
+        }
+    }
+    
+    /**
+     * Conversion state of one call: all admissions of a patient in one bundle
+     */
+    private class PatientBundle {
+        private final BundleControl bundleC = new BundleControl();
+        //memoryLists of locations and caregivers and medication (-> conditional creates, each resource only once in bundle)
+        private final HashMap<String,String> locationsInBundle = new HashMap<String,String>();
+        private final HashMap<String,String> caregiversInBundle = new HashMap<String,String>();
+        private final HashMap<String,String> medicationInBundle = new HashMap<String,String>();
+        //resources are changed while they are encoded (narratives) - no shared instance
+        private final Organization hospital = PatientConverter.createTopHospital();
+        private static final int EVENT_CHUNK_SIZE = 10000;
+        
+        private PatientBundle() {
+            bundleC.setUploadMode(config.getUploadMode());
+        }
+        
+        private Bundle create(MPatient mimicPat) {
+            try {
+                return createBundle(mimicPat);
+            } finally {
+                // delete spill files of oversized admissions
+                mimicPat.releaseEventSpills();
+            }
+        }
+        
+        private Bundle createBundle(MPatient mimicPat) {
             // Fill FHIR-Structure
             Patient fhirPat = mimicPat.createFhirFromMimic();
 
@@ -153,8 +700,6 @@ public class Mimic2Fhir2 {
                 List<Medication> medications = admission.createFhirMedicationsFromMimic();
                 List<MedicationStatement> prescriptions = admission.createFhirMedicationStatementsFromMimic(fhirPat.getId(), enc.getId());
 
-                // create Observations per Admission
-                List<Observation> obs = admission.createFhirObservationsFromMimic(fhirPat.getId(), enc.getId());
                 // create Observation from Labevents
                 List<Observation> obsLab = admission.createFhirLabObservationsFromMimic(fhirPat.getId(), enc.getId());
                 // create Observation from Noteevents
@@ -182,19 +727,22 @@ public class Mimic2Fhir2 {
                     bundleC.addUUIDResourceToBundle(mstmt);
                 }
 
-                // add observations to bundle
-                for (Observation o : obs) {
-                    // get Caregiver for this event
-                    int caregiverId = admission.getEvents().get(obs.indexOf(o)).getCareGiverId();
-                    if (caregiverId != 0) {
-                        String pFhirId = processCaregiver(caregiverId);
-
-                        // Set caregiver-Reference -> Performer
-                        o.addPerformer(new Reference(pFhirId));
+                // add observations to bundle (spilled chart events are read from their file in chunks)
+                admission.forEachEventChunk(EVENT_CHUNK_SIZE, events -> {
+                    for (MChartevent event : events) {
+                        Observation o = event.getFhirObservation(fhirPat.getId(), enc.getId());
+                        // get Caregiver for this event
+                        int caregiverId = event.getCareGiverId();
+                        if (caregiverId != 0) {
+                            String pFhirId = processCaregiver(caregiverId);
+
+                            // Set caregiver-Reference -> Performer
+                            o.addPerformer(new Reference(pFhirId));
+                        }
+                        // Order important - these reference pat & encounter
+                        bundleC.addResourceToBundle(o);
                     }
-                    // Order important - these reference pat & encounter
-                    bundleC.addResourceToBundle(o);
-                }
+                });
 
                 for (Observation o : obsLab) {
                     bundleC.addResourceToBundle(o);
@@ -214,120 +762,94 @@ public class Mimic2Fhir2 {
                 }
             }
 
-            if (fhirContext == null) {
-                fhirContext = FhirContext.forR4();
-                // Use the narrative generator
-                fhirContext.setNarrativeGenerator(new DefaultThymeleafNarrativeGenerator());
-            }
-            String jsonBundle = fhirContext.newJsonParser().setPrettyPrint(true).encodeResourceToString(bundleC.getTransactionBundle());
-
-            return jsonBundle;
-        } finally {
-            // reset bundle and memory lists
-            bundleC.resetBundle();
-            resetMemoryLists();
-            bundleC.resetInternalBundleNumber();
+            return bundleC.getTransactionBundle();
         }
-    }
-
-	
-    private void createBasicBundle(Patient fhirPat, MAdmission admission, Encounter enc, List<Condition> conditions, 
-			List<Procedure> procedures) {
+        
+	    private void createBasicBundle(Patient fhirPat, MAdmission admission, Encounter enc, List<Condition> conditions, 
+				List<Procedure> procedures) {
 		
-		//Pat to bundle
-		bundleC.addUUIDResourceWithConditionToBundle(fhirPat, "identifier=" + fhirPat.getIdentifierFirstRep().getSystem() + "|" + fhirPat.getIdentifierFirstRep().getValue());
+			//Pat to bundle
+			bundleC.addUUIDResourceWithConditionToBundle(fhirPat, "identifier=" + fhirPat.getIdentifierFirstRep().getSystem() + "|" + fhirPat.getIdentifierFirstRep().getValue());
 		
-		//Top of all: Hospital
-		bundleC.addUUIDResourceWithConditionToBundle(hospital, "identifier=" + hospital.getIdentifierFirstRep().getSystem() + "|" + hospital.getIdentifierFirstRep().getValue());
+			//Top of all: Hospital
+			bundleC.addUUIDResourceWithConditionToBundle(hospital, "identifier=" + hospital.getIdentifierFirstRep().getSystem() + "|" + hospital.getIdentifierFirstRep().getValue());
 					
-		enc.getDiagnosis().clear(); //clear all procedures & diagnoses
+			enc.getDiagnosis().clear(); //clear all procedures & diagnoses
 		
-		//Diagnoses
-		for(Condition c : conditions) {
-			int rank = admission.getDiagnoses().get(conditions.indexOf(c)).getSeqNumber();
+			//Diagnoses
+			for(Condition c : conditions) {
+				int rank = admission.getDiagnoses().get(conditions.indexOf(c)).getSeqNumber();
 			
-			//set Condition in enc.diagnosis
-			enc.addDiagnosis().setCondition(new Reference(c.getId())).setRank(rank);
+				//set Condition in enc.diagnosis
+				enc.addDiagnosis().setCondition(new Reference(c.getId())).setRank(rank);
 			
-			//add Condition to bundle
-			bundleC.addUUIDResourceWithConditionToBundle(c, "identifier=" + c.getIdentifierFirstRep().getSystem() + "|" + c.getIdentifierFirstRep().getValue());
-		}
+				//add Condition to bundle
+				bundleC.addUUIDResourceWithConditionToBundle(c, "identifier=" + c.getIdentifierFirstRep().getSystem() + "|" + c.getIdentifierFirstRep().getValue());
+			}
 		
-		//Procedures		
-		for(Procedure p : procedures) {
-			int rank = admission.getProcedures().get(procedures.indexOf(p)).getSeqNumber();
+			//Procedures		
+			for(Procedure p : procedures) {
+				int rank = admission.getProcedures().get(procedures.indexOf(p)).getSeqNumber();
 			
-			//set Procedure in enc.diagnosis
-			enc.addDiagnosis().setCondition(new Reference(p.getId())).setRank(rank);
+				//set Procedure in enc.diagnosis
+				enc.addDiagnosis().setCondition(new Reference(p.getId())).setRank(rank);
 			
-			//add Procedure to bundle
-			bundleC.addUUIDResourceWithConditionToBundle(p, "identifier=" + p.getIdentifierFirstRep().getSystem() + "|" + p.getIdentifierFirstRep().getValue());
-		}
+				//add Procedure to bundle
+				bundleC.addUUIDResourceWithConditionToBundle(p, "identifier=" + p.getIdentifierFirstRep().getSystem() + "|" + p.getIdentifierFirstRep().getValue());
+			}
 		
-		//create transfer chain
+			//create transfer chain
 		
-		enc.getLocation().clear(); //clear all locations -> to be newly added
+			enc.getLocation().clear(); //clear all locations -> to be newly added
 		
-		for(MTransfer t : admission.getTransfers()) {
-			Location locWard = locations.get(t.getCurrWard()).getFhirLocation();
-			String identifier = locWard.getIdentifierFirstRep().getValue();
-			String id;
-			if(!locationsInBundle.containsKey(identifier)) {
-				//add to memory list:
-				locationsInBundle.put(identifier, locWard.getId());
-				id =  locWard.getId();
-				//Location: Set Hospital als TOp-Orga
-				locWard.setManagingOrganization(new Reference(hospital.getId()));
+			for(MTransfer t : admission.getTransfers()) {
+				Location locWard = locations.get(t.getCurrWard()).getFhirLocation();
+				String identifier = locWard.getIdentifierFirstRep().getValue();
+				String id;
+				if(!locationsInBundle.containsKey(identifier)) {
+					//add to memory list:
+					locationsInBundle.put(identifier, locWard.getId());
+					id =  locWard.getId();
+					//Location: Set Hospital als TOp-Orga
+					locWard.setManagingOrganization(new Reference(hospital.getId()));
 				
-				bundleC.addUUIDResourceWithConditionToBundle(locWard, "identifier=" + locWard.getIdentifierFirstRep().getSystem() + "|" + identifier);
-			}else {
-				id = locationsInBundle.get(identifier);
-			}
+					bundleC.addUUIDResourceWithConditionToBundle(locWard, "identifier=" + locWard.getIdentifierFirstRep().getSystem() + "|" + identifier);
+				}else {
+					id = locationsInBundle.get(identifier);
+				}
 
-			//Ward as Location
-			enc.addLocation().setLocation(new Reference(id)).setPeriod(new Period().setStart(t.getIntime()).setEnd(t.getOuttime()));
-		}
+				//Ward as Location
+				enc.addLocation().setLocation(new Reference(id)).setPeriod(new Period().setStart(t.getIntime()).setEnd(t.getOuttime()));
+			}
 		
-		//add Encounter to bundle
-		bundleC.addUUIDResourceWithConditionToBundle(enc,"identifier=" + enc.getIdentifierFirstRep().getSystem() + "|" + enc.getIdentifierFirstRep().getValue());
-	}
+			//add Encounter to bundle
+			bundleC.addUUIDResourceWithConditionToBundle(enc,"identifier=" + enc.getIdentifierFirstRep().getSystem() + "|" + enc.getIdentifierFirstRep().getValue());
+		}
 
-	private String processCaregiver(int caregiverId) {
-		MCaregiver cgHere = caregivers.get(caregiverId);
-		//Create FHIR-Resources for Practitioner und -Role
-		Practitioner pFhir = cgHere.getFhirRepresentation();
-		String identifier = pFhir.getIdentifierFirstRep().getValue();
-		String id;
-		if(!caregiversInBundle.containsKey(identifier)) {
-			//add to memory list
-			caregiversInBundle.put(identifier, pFhir.getId());
-			id = pFhir.getId();
-			bundleC.addUUIDResourceWithConditionToBundle(pFhir, "identifier=" + pFhir.getIdentifierFirstRep().getSystem() + "|" + identifier);
+		private String processCaregiver(int caregiverId) {
+			MCaregiver cgHere = caregivers.get(caregiverId);
+			//Create FHIR-Resources for Practitioner und -Role
+			Practitioner pFhir = cgHere.getFhirRepresentation();
+			String identifier = pFhir.getIdentifierFirstRep().getValue();
+			String id;
+			if(!caregiversInBundle.containsKey(identifier)) {
+				//add to memory list
+				caregiversInBundle.put(identifier, pFhir.getId());
+				id = pFhir.getId();
+				bundleC.addUUIDResourceWithConditionToBundle(pFhir, "identifier=" + pFhir.getIdentifierFirstRep().getSystem() + "|" + identifier);
 			
-			PractitionerRole roleFhir = cgHere.getFhirRepresentationRole();
-			if(roleFhir != null) {
-				roleFhir.setPractitioner(new Reference(pFhir.getId()));
-				roleFhir.setOrganization(new Reference(hospital.getId()));
-				bundleC.addUUIDResourceWithConditionToBundle(roleFhir, "identifier=" + roleFhir.getIdentifierFirstRep().getSystem() + "|" + roleFhir.getIdentifierFirstRep().getValue());
+				PractitionerRole roleFhir = cgHere.getFhirRepresentationRole();
+				if(roleFhir != null) {
+					roleFhir.setPractitioner(new Reference(pFhir.getId()));
+					roleFhir.setOrganization(new Reference(hospital.getId()));
+					bundleC.addUUIDResourceWithConditionToBundle(roleFhir, "identifier=" + roleFhir.getIdentifierFirstRep().getSystem() + "|" + roleFhir.getIdentifierFirstRep().getValue());
+				}
 			}
+			else {
+				id = caregiversInBundle.get(identifier);
+			}
+			return id;
 		}
-		else {
-			id = caregiversInBundle.get(identifier);
-		}
-		return id;
-	}
 	
-	private Organization createTopHospital() {
-		//Create a "dummy" Organization that is "top player" of PractitionerRoles and Locations
-		Organization hospital = new Organization();
-		
-		hospital.addIdentifier().setSystem("http://www.imi-mimic.de").setValue("hospital");
-		
-		hospital.addType().addCoding().setCode("prov").setSystem("http://hl7.org/fhir/organization-type").setDisplay("Healthcare Provider");
-		hospital.setName("IMI-Mimic Hospital");
-		
-		
-		hospital.setId(IdDt.newRandomUuid());
-		return hospital;
-	}
-}
\ No newline at end of file
+    }
+}
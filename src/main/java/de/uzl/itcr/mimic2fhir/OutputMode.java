@@ -21,6 +21,7 @@ package de.uzl.itcr.mimic2fhir;
  * -FILE: Print to xml-Files
  * -BOTH: Console and file
  * -SERVER: Push to a Fhir server
+ * -BULK_IMPORT: Stage NDJSON files and let a Fhir server load them via $import
  * @author Stefanie Ververs
  *
  */
@@ -28,5 +29,6 @@ public enum OutputMode {
 	PRINT_CONSOLE,
 	PRINT_FILE,
 	PRINT_BOTH,
-	PUSH_SERVER
+	PUSH_SERVER,
+	BULK_IMPORT
 }
@@ -18,6 +18,7 @@ package de.uzl.itcr.mimic2fhir.model;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.function.Consumer;
 
 import org.hl7.fhir.r4.model.CodeableConcept;
 import org.hl7.fhir.r4.model.Coding;
@@ -32,7 +33,8 @@ import org.hl7.fhir.r4.model.Period;
 import org.hl7.fhir.r4.model.Procedure;
 import org.hl7.fhir.r4.model.Reference;
 
-import ca.uhn.fhir.model.primitive.IdDt;
+import de.uzl.itcr.mimic2fhir.tools.ChartEventSpill;
+import de.uzl.itcr.mimic2fhir.tools.ResourceIds;
 
 /**
  * Represents one row (and references) in mimiciii.admissions
@@ -63,6 +65,8 @@ public class MAdmission {
 	private String admissionLocation;
 	
 	private List<MChartevent> events;
+	//chart events of an oversized admission staged on disk (instead of events)
+	private ChartEventSpill eventSpill;
 	private List<MLabevent> labevents;
 	private List<MNoteevent> noteevents;
 	
@@ -108,7 +112,60 @@ public class MAdmission {
 		return events;
 	}
 	public void addEvent(MChartevent event) {
-		events.add(event);
+		if(eventSpill != null) {
+			eventSpill.write(event);
+		}
+		else {
+			events.add(event);
+		}
+	}
+	
+	/**
+	 * Move the chart events to a spill file (oversized admission); further events are written to the file as well
+	 * @param spill spill file
+	 */
+	public void spillEvents(ChartEventSpill spill) {
+		for(MChartevent event : events) {
+			spill.write(event);
+		}
+		events = new ArrayList<MChartevent>();
+		eventSpill = spill;
+	}
+	
+	public ChartEventSpill getEventSpill() {
+		return eventSpill;
+	}
+	
+	/**
+	 * Number of chart events (in memory and spilled)
+	 * @return number of chart events
+	 */
+	public long getNumberOfEvents() {
+		return events.size() + (eventSpill != null ? eventSpill.size() : 0);
+	}
+	
+	/**
+	 * Process all chart events in chunks: events in memory as one chunk, spilled events read from the file chunk by chunk
+	 * @param chunkSize max. number of spilled events per chunk
+	 * @param action receives every chunk (do not keep the list)
+	 */
+	public void forEachEventChunk(int chunkSize, Consumer<List<MChartevent>> action) {
+		if(!events.isEmpty()) {
+			action.accept(events);
+		}
+		if(eventSpill != null) {
+			eventSpill.forEachChunk(chunkSize, action);
+		}
+	}
+	
+	/**
+	 * Delete the spill file (after conversion)
+	 */
+	public void releaseEventSpill() {
+		if(eventSpill != null) {
+			eventSpill.close();
+			eventSpill = null;
+		}
 	}
 	
 	public List<MLabevent> getLabEvents() {
@@ -312,9 +369,9 @@ public class MAdmission {
 			enc.setHospitalization(ehc);
 				
 
-			// Give the encounter a temporary UUID so that other resources in
+			// Give the encounter an id (derived from the admission) so that other resources in
 			// the transaction can refer to it
-			enc.setId(IdDt.newRandomUuid());
+			enc.setId(ResourceIds.fromIdentifier(enc.fhirType(), enc.getIdentifierFirstRep()));
 			
 			return enc;
 	}
@@ -20,7 +20,7 @@ import org.hl7.fhir.r4.model.Narrative.NarrativeStatus;
 import org.hl7.fhir.r4.model.Practitioner;
 import org.hl7.fhir.r4.model.PractitionerRole;
 
-import ca.uhn.fhir.model.primitive.IdDt;
+import de.uzl.itcr.mimic2fhir.tools.ResourceIds;
 
 /**
  * Represents one row in mimiciii.caregivers
@@ -68,8 +68,8 @@ public class MCaregiver {
 		p.getText().setStatus(NarrativeStatus.GENERATED);
 		p.getText().setDivAsString("<div>Caregiver with Id " + caregiverId + "</div>");
 	
-		// temporary UUID
-		p.setId(IdDt.newRandomUuid());
+		// id from caregiver id
+		p.setId(ResourceIds.fromIdentifier(p.fhirType(), p.getIdentifierFirstRep()));
 		
 		return p;
 	}
@@ -83,6 +83,7 @@ public class MCaregiver {
 		
 		//Id
 		role.addIdentifier().setSystem("http://www.imi-mimic.de/pracRole").setValue(Integer.toString(caregiverId));
+		role.setId(ResourceIds.fromIdentifier(role.fhirType(), role.getIdentifierFirstRep()));
 				
 		//code (~Role)
 		CodeableConcept cc = new CodeableConcept();
@@ -25,12 +25,17 @@ import org.hl7.fhir.r4.model.Reference;
 import org.hl7.fhir.r4.model.StringType;
 import org.hl7.fhir.r4.model.Observation.ObservationStatus;
 
+import de.uzl.itcr.mimic2fhir.tools.ResourceIds;
+
 /**
  * Represents one row in mimiciii.chartevents
  * @author Stefanie Ververs
  *
  */
 public class MChartevent {
+	 //Row-Id
+	 private int rowId;
+	 
 	 //Rekord-Datum
 	 private Date recordDate;
 	 
@@ -58,6 +63,14 @@ public class MChartevent {
 		this.hasNumVal = hasNumVal;
 	}
 
+	public int getRowId() {
+		return rowId;
+	}
+
+	public void setRowId(int rowId) {
+		this.rowId = rowId;
+	}
+
 	public Date getRecordDate() {
 		return recordDate;
 	}
@@ -116,6 +129,9 @@ public class MChartevent {
 	public Observation getFhirObservation(String patId, String encId) {
 		Observation observation = new Observation();
 		
+		//Id from row id
+		observation.setId(ResourceIds.fromKey(observation.fhirType(), "chartevents/" + this.rowId));
+		
 		observation.setStatus(ObservationStatus.FINAL);
 		
 		//Expect all chartevents to be vital signs
@@ -19,7 +19,7 @@ import org.hl7.fhir.r4.model.CodeableConcept;
 import org.hl7.fhir.r4.model.Condition;
 import org.hl7.fhir.r4.model.Reference;
 
-import ca.uhn.fhir.model.primitive.IdDt;
+import de.uzl.itcr.mimic2fhir.tools.ResourceIds;
 
 /**
  * Represents one diagnose in diagnoses_icd joined with d_icd_diagnoses
@@ -82,9 +82,9 @@ public class MDiagnose {
 		
 		cond.setCode(diagnoseCode);
 		
-		// Give the condition a temporary UUID so that other resources in
+		// Give the condition an id (derived from admission and seq_num) so that other resources in
 		// the transaction can refer to it
-		cond.setId(IdDt.newRandomUuid());
+		cond.setId(ResourceIds.fromIdentifier(cond.fhirType(), cond.getIdentifierFirstRep()));
 		
 		return cond;
 	}
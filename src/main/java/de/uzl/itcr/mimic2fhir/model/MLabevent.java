@@ -26,13 +26,18 @@ import org.hl7.fhir.r4.model.Reference;
 import org.hl7.fhir.r4.model.StringType;
 import org.hl7.fhir.r4.model.Observation.ObservationStatus;
 
+import de.uzl.itcr.mimic2fhir.tools.ResourceIds;
+
 /**
  * Represents one row in mimiciii.labevents
  * @author Stefanie Ververs
  *
  */
 public class MLabevent {
-	//Rekord-Datum
+		 //Row-Id
+		 private int rowId;
+		 
+		 //Rekord-Datum
 		 private Date acquisitionDate;
 		 
 		 //Type
@@ -51,6 +56,14 @@ public class MLabevent {
 		 
 		 private String loinc;
 		 
+		 public int getRowId() {
+			return rowId;
+		}
+
+		public void setRowId(int rowId) {
+			this.rowId = rowId;
+		}
+
 		 public String getFluid() {
 			return fluid;
 		}
@@ -136,6 +149,9 @@ public class MLabevent {
 		public Observation getFhirObservation(String patId, String encId) {
 			Observation observation = new Observation();
 			
+			//Id from row id
+			observation.setId(ResourceIds.fromKey(observation.fhirType(), "labevents/" + this.rowId));
+			
 			observation.setStatus(ObservationStatus.FINAL);
 			
 			//all laboratory
@@ -26,6 +26,7 @@ import org.hl7.fhir.r4.model.Reference;
 import org.hl7.fhir.r4.model.Observation.ObservationStatus;
 
 import de.uzl.itcr.mimic2fhir.tools.Helper;
+import de.uzl.itcr.mimic2fhir.tools.ResourceIds;
 
 /**
  * Represents one row in mimiciii.noteevents
@@ -33,6 +34,7 @@ import de.uzl.itcr.mimic2fhir.tools.Helper;
  *
  */
 public class MNoteevent {
+	private int rowId;
 	private Date chartdate;
 	private String category;
 	private String description;
@@ -40,6 +42,12 @@ public class MNoteevent {
 	private String text;
 	private boolean hasError;
 	
+	public int getRowId() {
+		return rowId;
+	}
+	public void setRowId(int rowId) {
+		this.rowId = rowId;
+	}
 	public boolean getHasError() {
 		return hasError;
 	}
@@ -86,6 +94,9 @@ public class MNoteevent {
 	public Observation getFhirObservation(String patId, String encId) {
 		Observation observation = new Observation();
 		
+		//Id from row id
+		observation.setId(ResourceIds.fromKey(observation.fhirType(), "noteevents/" + this.rowId));
+		
 		if(this.getHasError()) {
 			observation.setStatus(ObservationStatus.ENTEREDINERROR);
 		}
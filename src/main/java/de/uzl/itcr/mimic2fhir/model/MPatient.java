@@ -25,7 +25,7 @@ import org.hl7.fhir.r4.model.Enumerations.AdministrativeGender;
 import org.hl7.fhir.r4.model.HumanName.NameUse;
 import org.hl7.fhir.r4.model.Patient;
 
-import ca.uhn.fhir.model.primitive.IdDt;
+import de.uzl.itcr.mimic2fhir.tools.ResourceIds;
 
 /**
  * FHIR-Patient with data from mimic3, one row in mimiciii.patients
@@ -47,6 +47,15 @@ public class MPatient {
 	public List<MAdmission> getAdmissions() {
 		return admissions;
 	}
+	
+	/**
+	 * Delete the chart event spill files of all admissions (after conversion or if the patient is not converted)
+	 */
+	public void releaseEventSpills() {
+		for(MAdmission admission : admissions) {
+			admission.releaseEventSpill();
+		}
+	}
 
 	private String patientSubjectId;
 	public String getPatientSubjectId() {
@@ -364,9 +373,9 @@ public class MPatient {
 		}
 		
 		
-		// Give the patient a temporary UUID so that other resources in
+		// Give the patient an id (derived from the subject id) so that other resources in
 		// the transaction can refer to it
-		pMimic.setId(IdDt.newRandomUuid());
+		pMimic.setId(ResourceIds.fromIdentifier(pMimic.fhirType(), pMimic.getIdentifierFirstRep()));
 		
 		return pMimic;
 	}
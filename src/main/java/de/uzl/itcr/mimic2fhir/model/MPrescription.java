@@ -32,7 +32,7 @@ import org.hl7.fhir.r4.model.Range;
 import org.hl7.fhir.r4.model.Reference;
 import org.hl7.fhir.r4.model.SimpleQuantity;
 
-import ca.uhn.fhir.model.primitive.IdDt;
+import de.uzl.itcr.mimic2fhir.tools.ResourceIds;
 import de.uzl.itcr.mimic2fhir.tools.RxNormConcept;
 import de.uzl.itcr.mimic2fhir.tools.RxNormLookup;
 
@@ -243,7 +243,8 @@ public class MPrescription {
 			m.addIngredient(new MedicationIngredientComponent(ci));
 		}
 		
-		m.setId(IdDt.newRandomUuid());
+		//id from code (one medication per code)
+		m.setId(ResourceIds.fromKey(m.fhirType(), m.getCode().getCodingFirstRep().getCode()));
 		
 		return m;
 	}
@@ -258,6 +259,7 @@ public class MPrescription {
 		MedicationStatement med = new MedicationStatement();
 		
 		med.addIdentifier().setSystem("http://www.imi-mimic.de/prescriptions").setValue(encId + "_" + seqNum);
+		med.setId(ResourceIds.fromIdentifier(med.fhirType(), med.getIdentifierFirstRep()));
 		
 		med.setStatus(MedicationStatementStatus.COMPLETED);
 
@@ -20,7 +20,7 @@ import org.hl7.fhir.r4.model.Procedure;
 import org.hl7.fhir.r4.model.Reference;
 import org.hl7.fhir.r4.model.Procedure.ProcedureStatus;
 
-import ca.uhn.fhir.model.primitive.IdDt;
+import de.uzl.itcr.mimic2fhir.tools.ResourceIds;
 
 /**
  * Represents one row in mimiciii.procedures_icd joined with d_icd_procedures
@@ -84,9 +84,9 @@ public class MProcedure {
 		
 		proc.setCode(procedureCode);
 		
-		// Give the procedure a temporary UUID so that other resources in
+		// Give the procedure an id (derived from admission and seq_num) so that other resources in
 		// the transaction can refer to it
-		proc.setId(IdDt.newRandomUuid());
+		proc.setId(ResourceIds.fromIdentifier(proc.fhirType(), proc.getIdentifierFirstRep()));
 		
 		return proc;
 	}
@@ -20,7 +20,7 @@ import java.util.Arrays;
 import org.hl7.fhir.r4.model.CodeableConcept;
 import org.hl7.fhir.r4.model.Location;
 
-import ca.uhn.fhir.model.primitive.IdDt;
+import de.uzl.itcr.mimic2fhir.tools.ResourceIds;
 
 /**
  * Represents one ward as location (from transfers)
@@ -86,7 +86,7 @@ public class MWard {
 		}
 		loc.setType(Arrays.asList(cc));
 				
-		loc.setId(IdDt.newRandomUuid());
+		loc.setId(ResourceIds.fromIdentifier(loc.fhirType(), loc.getIdentifierFirstRep()));
 		
 		return loc;
 	}
@@ -0,0 +1,114 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.queue;
+
+import java.util.UUID;
+
+import de.uzl.itcr.mimic2fhir.work.Config;
+
+/**
+ * Transport via RabbitMQ (durable queue BundleQ)
+ * Consumers may run on several machines, see Mimic2Fhir.startConsumer()
+ * End of stream: see StreamCoordinator
+ * A run only stops its own consumers; consumers started with startConsumer() are stopped by a shutdown for all runs (e.g. by the coordinator of a distributed run).
+ *
+ */
+public class AmqpTransport implements BundleTransport {
+	private final Config config;
+	private final boolean stopAllConsumers;
+	private final String runId = UUID.randomUUID().toString();
+	private StreamCoordinator coordinator;
+	private Sender sender;
+	private Receiver receiver;
+	//sent messages, each reported once by the consumers (see Sender.HEADER_MESSAGE)
+	private long produced;
+	
+	/**
+	 * Create new transport
+	 * @param config config-Object (host, consumers, prefetch, confirm batch size)
+	 */
+	public AmqpTransport(Config config) {
+		this(config, true);
+	}
+	
+	/**
+	 * Create new transport
+	 * @param config config-Object (host, consumers, prefetch, confirm batch size)
+	 * @param stopAllConsumers true: finish() stops all consumers of the queue (of all runs and started with startConsumer()), false: only the consumers started by receive()
+	 */
+	public AmqpTransport(Config config, boolean stopAllConsumers) {
+		this.config = config;
+		this.stopAllConsumers = stopAllConsumers;
+	}
+
+	@Override
+	public void receive(BundleSink sink) {
+		receiver = new Receiver(config.getAmqpHost(), config.getConsumerThreads(), config.getAmqpPrefetch(), runId);
+		receiver.setSink(sink);
+		receiver.receive();
+	}
+
+	@Override
+	public synchronized void send(BundleMessage message) {
+		//connect on first message - consumer-only processes don't need a sender
+		if(sender == null) {
+			coordinator = new StreamCoordinator(config.getAmqpHost(), runId);
+			sender = new Sender(config.getAmqpHost(), config.getAmqpConfirmBatchSize(), runId);
+		}
+		sender.send(message);
+		produced++;
+	}
+	
+	private synchronized long produced() {
+		return produced;
+	}
+
+	@Override
+	public void flush() {
+		if(sender != null) {
+			sender.waitForConfirms();
+			coordinator.awaitProcessed(produced());
+		}
+	}
+
+	@Override
+	public long getFailed() {
+		return coordinator != null ? coordinator.getFailed() : 0;
+	}
+
+	@Override
+	public long finish() {
+		if(sender == null) {
+			coordinator = new StreamCoordinator(config.getAmqpHost(), runId);
+		}
+		else {
+			//all bundles are in the queue
+			sender.close();
+		}
+		
+		long completed = coordinator.awaitProcessed(produced());
+		if(stopAllConsumers) {
+			coordinator.shutdownConsumers(Sender.ALL_RUNS);
+		}
+		else {
+			coordinator.close();
+			if(receiver != null) {
+				receiver.shutdown();
+			}
+		}
+		return completed;
+	}
+}
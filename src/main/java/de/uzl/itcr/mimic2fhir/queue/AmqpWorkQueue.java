@@ -0,0 +1,194 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.queue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.GetResponse;
+import com.rabbitmq.client.MessageProperties;
+
+/**
+ * Work queue via RabbitMQ: work items are persistent messages in the durable queue WorkQ. 
+ * Workers fetch one item at a time and acknowledge it when it is done; the items of a crashed worker (connection lost) are delivered again.
+ * Workers report done items to the queue WorkQ.done, the coordinator counts the reports.
+ * Workers should be started after the coordinator has published the items - a worker stops when the queue is empty.
+ *
+ */
+public class AmqpWorkQueue implements WorkQueue {
+	final static String QUEUE_NAME = "WorkQ";
+	final static String DONE_QUEUE = QUEUE_NAME + ".done";
+	
+	private static final long CONFIRM_TIMEOUT_MS = 5 * 60 * 1000;
+	private static final long PROGRESS_INTERVAL_MS = 60 * 1000;
+	
+	private Connection connection;
+	private Channel channel;
+	private int published;
+	
+	//claimed, not yet acknowledged items
+	private final Map<String,Envelope> claimed = new ConcurrentHashMap<String,Envelope>();
+	
+	/**
+	 * Constructor - creates new connection and declares the queues
+	 * @param host RabbitMQ host
+	 */
+	public AmqpWorkQueue(String host) {
+		ConnectionFactory factory = new ConnectionFactory();
+		factory.setHost(host);
+		try {
+			connection = factory.newConnection();
+			channel = connection.createChannel();
+			channel.queueDeclare(QUEUE_NAME, true, false, false, null);
+			channel.queueDeclare(DONE_QUEUE, true, false, false, null);
+		} catch (Exception e) {
+			throw new IllegalStateException("Work queue not available at " + host, e);
+		}
+	}
+
+	@Override
+	public void publish(List<WorkItem> items) {
+		try {
+			//reports of an earlier run must not be counted
+			channel.queuePurge(DONE_QUEUE);
+			channel.confirmSelect();
+			for(WorkItem item : items) {
+				channel.basicPublish("", QUEUE_NAME, MessageProperties.PERSISTENT_TEXT_PLAIN, item.getId().getBytes(StandardCharsets.UTF_8));
+			}
+			channel.waitForConfirmsOrDie(CONFIRM_TIMEOUT_MS);
+			published += items.size();
+		} catch (IOException | TimeoutException e) {
+			throw new IllegalStateException("Broker did not confirm work items", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while publishing work items", e);
+		}
+	}
+
+	@Override
+	public WorkItem claim() {
+		try {
+			GetResponse response = channel.basicGet(QUEUE_NAME, false);
+			if(response == null) {
+				return null;
+			}
+			WorkItem item = WorkItem.parse(new String(response.getBody(), StandardCharsets.UTF_8));
+			claimed.put(item.getId(), response.getEnvelope());
+			return item;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public void complete(WorkItem item) {
+		Envelope envelope = claimed.remove(item.getId());
+		try {
+			//report first: an item reported twice is counted once
+			report(item, Sender.STATUS_OK);
+			channel.basicAck(envelope.getDeliveryTag(), false);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public void fail(WorkItem item) {
+		Envelope envelope = claimed.remove(item.getId());
+		try {
+			//one more try (on any worker), then drop
+			boolean requeue = !envelope.isRedeliver();
+			if(!requeue) {
+				report(item, Sender.STATUS_FAILED);
+			}
+			channel.basicNack(envelope.getDeliveryTag(), false, requeue);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	private void report(WorkItem item, String status) throws IOException {
+		Map<String,Object> headers = new HashMap<String,Object>();
+		headers.put(Sender.HEADER_STATUS, status);
+		channel.basicPublish("", DONE_QUEUE, MessageProperties.PERSISTENT_TEXT_PLAIN.builder().headers(headers).build(), item.getId().getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Override
+	public void awaitCompletion() {
+		Set<String> done = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+		AtomicLong failed = new AtomicLong();
+		try {
+			String consumerTag = channel.basicConsume(DONE_QUEUE, true, new DefaultConsumer(channel) {
+				@Override
+				public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+					if(done.add(new String(body, StandardCharsets.UTF_8))) {
+						if(Sender.STATUS_FAILED.equals(String.valueOf(properties.getHeaders().get(Sender.HEADER_STATUS)))) {
+							failed.incrementAndGet();
+						}
+						synchronized(done) {
+							done.notifyAll();
+						}
+					}
+				}
+			});
+			
+			long nextProgress = System.currentTimeMillis() + PROGRESS_INTERVAL_MS;
+			synchronized(done) {
+				while(done.size() < published) {
+					done.wait(Math.max(1, nextProgress - System.currentTimeMillis()));
+					if(System.currentTimeMillis() >= nextProgress) {
+						System.out.println("Waiting for workers: " + done.size() + " of " + published + " work items done");
+						nextProgress += PROGRESS_INTERVAL_MS;
+					}
+				}
+			}
+			channel.basicCancel(consumerTag);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+		if(failed.get() > 0) {
+			System.out.println("Work items: " + published + ", failed: " + failed.get());
+		}
+	}
+
+	@Override
+	public void close() {
+		try {
+			channel.close();
+			connection.close();
+		} catch (IOException | TimeoutException e) {
+			System.out.println("Work queue: closing the connection failed (" + e.getMessage() + ")");
+		}
+	}
+}
@@ -0,0 +1,172 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.queue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * One bundle on its way from the converter to a sink.
+ * The bundle is carried in its final wire format (already encoded), number, content type and content encoding travel as message headers. 
+ * Spooled bundles (claim check) are not carried at all: the message references a file in the spool directory, see BundleSpool.
+ *
+ */
+public class BundleMessage {
+	private final String number;
+	private final String contentType;
+	private final String contentEncoding;
+	private final byte[] payload;
+	private final Path spoolFile;
+	private final boolean end;
+	//when the message was handed to the transport (ms), for the queue latency
+	private volatile long sentAt;
+	
+	/**
+	 * Create a new bundle message
+	 * @param number bundle number (used for file names)
+	 * @param contentType mime type of the encoded bundle
+	 * @param contentEncoding "gzip" if payload is compressed, else null
+	 * @param payload encoded bundle
+	 */
+	public BundleMessage(String number, String contentType, String contentEncoding, byte[] payload) {
+		this(number, contentType, contentEncoding, payload, null, false);
+	}
+	
+	private BundleMessage(String number, String contentType, String contentEncoding, byte[] payload, Path spoolFile, boolean end) {
+		this.number = number;
+		this.contentType = contentType;
+		this.contentEncoding = contentEncoding;
+		this.payload = payload;
+		this.spoolFile = spoolFile;
+		this.end = end;
+	}
+	
+	/**
+	 * Message referencing a spooled bundle
+	 * @param number bundle number (used for file names)
+	 * @param contentType mime type of the encoded bundle
+	 * @param contentEncoding "gzip" if the file is compressed, else null
+	 * @param spoolFile file with the encoded bundle
+	 * @return message
+	 */
+	public static BundleMessage spooled(String number, String contentType, String contentEncoding, Path spoolFile) {
+		return new BundleMessage(number, contentType, contentEncoding, null, spoolFile, false);
+	}
+	
+	/**
+	 * Message marking the end of the bundle stream
+	 * @return end message
+	 */
+	public static BundleMessage end() {
+		return new BundleMessage("0", null, null, new byte[0], null, true);
+	}
+
+	/**
+	 * Bundle number (patient_admission_part)
+	 * @return bundle number
+	 */
+	public String getNumber() {
+		return number;
+	}
+
+	/**
+	 * Mime type of the payload (e.g. application/fhir+xml)
+	 * @return content type
+	 */
+	public String getContentType() {
+		return contentType;
+	}
+
+	/**
+	 * Content encoding of the payload
+	 * @return "gzip" or null (uncompressed)
+	 */
+	public String getContentEncoding() {
+		return contentEncoding;
+	}
+
+	/**
+	 * Encoded bundle (read from the spool file for spooled bundles)
+	 * @return bundle bytes
+	 */
+	public byte[] getPayload() {
+		if(spoolFile == null) {
+			return payload;
+		}
+		try {
+			return Files.readAllBytes(spoolFile);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	/**
+	 * Size of the encoded bundle
+	 * @return number of bytes
+	 */
+	public long getPayloadSize() {
+		if(spoolFile == null) {
+			return payload.length;
+		}
+		try {
+			return Files.size(spoolFile);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	/**
+	 * Is the bundle in a spool file instead of the message?
+	 * @return true, if spooled
+	 */
+	public boolean isSpooled() {
+		return spoolFile != null;
+	}
+	
+	/**
+	 * Spool file of the bundle
+	 * @return file or null, if the bundle is carried in the message
+	 */
+	public Path getSpoolFile() {
+		return spoolFile;
+	}
+
+	/**
+	 * Time the message was sent
+	 * @return ms since epoch, 0 if unknown
+	 */
+	public long getSentAt() {
+		return sentAt;
+	}
+
+	/**
+	 * Set time the message was sent (by the transport)
+	 * @param sentAt ms since epoch
+	 */
+	public void setSentAt(long sentAt) {
+		this.sentAt = sentAt;
+	}
+
+	/**
+	 * Is this the end-of-stream message?
+	 * @return true, if no more bundles will follow
+	 */
+	public boolean isEnd() {
+		return end;
+	}
+}
@@ -0,0 +1,38 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.queue;
+
+import java.util.function.Consumer;
+
+/**
+ * Consumer side of a transport: processes received bundles
+ *
+ */
+public interface BundleSink {
+	
+	/**
+	 * Process one bundle
+	 * @param message encoded bundle
+	 * @param done called with the outcome (true: processed, false: failed) when the bundle is done - possibly later and from another thread (e.g. after an upload);
+	 * not called, if accept throws
+	 */
+	void accept(BundleMessage message, Consumer<Boolean> done);
+	
+	/**
+	 * End of stream: finish pending work
+	 */
+	void close();
+}
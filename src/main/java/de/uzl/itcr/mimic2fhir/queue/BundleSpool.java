@@ -0,0 +1,85 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.queue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.hl7.fhir.r4.model.Bundle;
+
+import de.uzl.itcr.mimic2fhir.work.BundleEncoder;
+
+/**
+ * Claim check for bundles: the producer encodes a bundle directly into a file of the spool directory, only a reference is sent through the queue.
+ * Consumers read the file (or pass it on as it is) and delete it after the bundle is processed.
+ * Producer and consumers need the same spool directory (same path, e.g. a shared file system).
+ *
+ */
+public class BundleSpool {
+	private final Path directory;
+	
+	/**
+	 * Create spool (directory is created if necessary)
+	 * @param directory spool directory
+	 */
+	public BundleSpool(Path directory) {
+		try {
+			this.directory = Files.createDirectories(directory).toAbsolutePath();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	/**
+	 * Encode bundle into a new spool file
+	 * @param number bundle number
+	 * @param encoder encoder for the wire format
+	 * @param bundle bundle to encode
+	 * @return message referencing the spool file
+	 */
+	public BundleMessage write(String number, BundleEncoder encoder, Bundle bundle) {
+		try {
+			Path file = Files.createTempFile(directory, "bundle" + number + "-", ".spool");
+			OutputStream out = Channels.newOutputStream(FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+			//closes the stream
+			encoder.encode(bundle, out);
+			return BundleMessage.spooled(number, encoder.getContentType(), encoder.getContentEncoding(), file);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	/**
+	 * Delete the spool file of a processed bundle (nothing happens for bundles carried in the message)
+	 * @param message processed bundle
+	 */
+	public static void release(BundleMessage message) {
+		if(!message.isSpooled()) {
+			return;
+		}
+		try {
+			Files.deleteIfExists(message.getSpoolFile());
+		} catch (IOException e) {
+			System.out.println("Spool file " + message.getSpoolFile() + " not deleted (" + e.getMessage() + ")");
+		}
+	}
+}
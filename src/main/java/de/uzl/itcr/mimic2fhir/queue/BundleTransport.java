@@ -0,0 +1,53 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.queue;
+
+/**
+ * Transport of bundle messages from the converter (producer) to the sinks (consumers)
+ *
+ */
+public interface BundleTransport {
+	
+	/**
+	 * Start consuming: every bundle is handed to the sink, sink.close() is called after the end message
+	 * @param sink what to do with the bundles
+	 */
+	void receive(BundleSink sink);
+	
+	/**
+	 * Send a bundle; may block while the consumers are behind
+	 * @param message bundle message
+	 */
+	void send(BundleMessage message);
+	
+	/**
+	 * Wait until every bundle sent so far has been processed by a consumer (the transport stays open)
+	 */
+	void flush();
+	
+	/**
+	 * Number of bundles the consumers could not process (e.g. rejected by the server), counted from the start; 
+	 * includes every bundle sent before the last flush()
+	 * @return failed bundles
+	 */
+	long getFailed();
+	
+	/**
+	 * End of stream: waits until every sent bundle has been processed by a consumer, then stops all consumers and closes the transport
+	 * @return time (ms since epoch) when the last bundle was processed
+	 */
+	long finish();
+}
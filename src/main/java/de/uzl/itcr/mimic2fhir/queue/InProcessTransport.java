@@ -0,0 +1,152 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.queue;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.uzl.itcr.mimic2fhir.work.Metrics;
+
+/**
+ * Transport within this process: a bounded queue (ring buffer) between converter and consumer threads.
+ * The producer blocks while the queue is full, so at most "capacity" bundles wait in memory.
+ * End of stream: an end message is passed from consumer to consumer; the last consumer closes the sink, finish() waits for all of them.
+ *
+ */
+public class InProcessTransport implements BundleTransport {
+	private static final Metrics.Timer PUBLISH_TIMER = Metrics.timer("queue.publish");
+	private static final Metrics.Timer LATENCY_TIMER = Metrics.timer("queue.latency");
+	
+	private final BlockingQueue<BundleMessage> queue;
+	private final int consumers;
+	private final AtomicInteger running = new AtomicInteger();
+	private CountDownLatch stopped = new CountDownLatch(0);
+	
+	private final AtomicLong produced = new AtomicLong();
+	private final AtomicLong processed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong lastCompletion = new AtomicLong();
+	
+	/**
+	 * Create new transport
+	 * @param capacity max. number of waiting bundles
+	 * @param consumers number of consumer threads
+	 */
+	public InProcessTransport(int capacity, int consumers) {
+		this.queue = new ArrayBlockingQueue<BundleMessage>(capacity);
+		this.consumers = consumers;
+	}
+
+	@Override
+	public void receive(BundleSink sink) {
+		running.set(consumers);
+		stopped = new CountDownLatch(consumers);
+		for(int i = 0; i < consumers; i++) {
+			Thread t = new Thread(() -> consume(sink), "bundle-consumer-" + i);
+			t.start();
+		}
+	}
+	
+	private void consume(BundleSink sink) {
+		try {
+			while(true) {
+				BundleMessage message = queue.take();
+				if(message.isEnd()) {
+					//pass the end message on to the other consumers
+					queue.put(message);
+					break;
+				}
+				LATENCY_TIMER.record(TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - message.getSentAt()), 1);
+				try {
+					sink.accept(message, success -> {
+						if(!success) {
+							failed.incrementAndGet();
+						}
+						completed(message);
+					});
+				} catch (Exception e) {
+					System.out.println("Bundle " + message.getNumber() + " failed: " + e);
+					failed.incrementAndGet();
+					completed(message);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			//last consumer finishes the sink
+			if(running.decrementAndGet() == 0) {
+				sink.close();
+			}
+			stopped.countDown();
+		}
+	}
+	
+	private void completed(BundleMessage message) {
+		BundleSpool.release(message);
+		processed.incrementAndGet();
+		lastCompletion.accumulateAndGet(System.currentTimeMillis(), Math::max);
+	}
+
+	@Override
+	public void send(BundleMessage message) {
+		long start = System.nanoTime();
+		try {
+			message.setSentAt(System.currentTimeMillis());
+			queue.put(message);
+			produced.incrementAndGet();
+			PUBLISH_TIMER.stop(start);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public void flush() {
+		try {
+			while(processed.get() < produced.get()) {
+				Thread.sleep(50);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public long getFailed() {
+		return failed.get();
+	}
+
+	@Override
+	public long finish() {
+		try {
+			queue.put(BundleMessage.end());
+			stopped.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+		if(processed.get() != produced.get() || failed.get() > 0) {
+			System.out.println("Bundles sent: " + produced.get() + ", processed: " + processed.get() + ", failed: " + failed.get());
+		}
+		return processed.get() > 0 ? lastCompletion.get() : System.currentTimeMillis();
+	}
+}
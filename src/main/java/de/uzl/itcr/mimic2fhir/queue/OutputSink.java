@@ -0,0 +1,90 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.queue;
+
+import java.util.function.Consumer;
+
+import de.uzl.itcr.mimic2fhir.OutputMode;
+import de.uzl.itcr.mimic2fhir.work.FHIRComm;
+import de.uzl.itcr.mimic2fhir.work.Metrics;
+import de.uzl.itcr.mimic2fhir.work.UploadEngine;
+
+/**
+ * Sink for the output modes: print bundles, write them to files or push them to the server
+ * Bytes are written/pushed as they are, no parsing
+ *
+ */
+public class OutputSink implements BundleSink {
+	private static final Metrics.Timer SINK_TIMER = Metrics.timer("sink");
+	
+	private final OutputMode outputMode;
+	private final FHIRComm fhirConnector;
+	private final UploadEngine uploadEngine;
+	
+	/**
+	 * Create new sink
+	 * @param outputMode how to process bundles
+	 * @param fhirConnector fhir communication
+	 * @param uploadEngine upload engine for pushing bundles to the server (several transactions in flight); if null, bundles are pushed one by one
+	 */
+	public OutputSink(OutputMode outputMode, FHIRComm fhirConnector, UploadEngine uploadEngine) {
+		this.outputMode = outputMode;
+		this.fhirConnector = fhirConnector;
+		this.uploadEngine = uploadEngine;
+	}
+
+	@Override
+	public void accept(BundleMessage message, Consumer<Boolean> done) {
+		//time until the bundle is processed (pushed bundles: until their transaction is done)
+		long start = System.nanoTime();
+		Consumer<Boolean> timedDone = success -> {
+			SINK_TIMER.stop(start);
+			done.accept(success);
+		};
+		switch(outputMode) {
+			case PRINT_CONSOLE:
+				fhirConnector.printBundle(message);
+				break;
+			case PRINT_FILE:
+				fhirConnector.printBundleToFile(message);
+				break;
+			case PRINT_BOTH:
+				fhirConnector.printBundle(message);
+				fhirConnector.printBundleToFile(message);
+				break;
+			case PUSH_SERVER:
+				if(uploadEngine != null) {
+					//done after the transaction
+					uploadEngine.submit(message, timedDone);
+					return;
+				}
+				fhirConnector.bundleToServer(message);
+				break;
+			default:
+				throw new IllegalStateException("Output mode " + outputMode + " does not use the bundle queue");
+		}
+		//print/file/push errors are thrown - the bundle failed
+		timedDone.accept(true);
+	}
+
+	@Override
+	public void close() {
+		if(uploadEngine != null) {
+			//finish uploads still in flight
+			uploadEngine.close();
+		}
+	}
+}
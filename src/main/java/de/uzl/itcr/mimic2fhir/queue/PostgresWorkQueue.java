@@ -0,0 +1,400 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.queue;
+
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import de.uzl.itcr.mimic2fhir.work.Config;
+
+/**
+ * Work queue in the MIMIC postgres database (no broker needed): table work_item in a separate schema.
+ * Workers claim batches of items with SELECT ... FOR UPDATE SKIP LOCKED and send heartbeats while they work on them; 
+ * items whose heartbeat is older than four intervals (crashed worker) are claimed again. An item failing twice is marked FAILED.
+ * The table is the status record of the run: publishing a run again resumes it (done items are skipped, failed items are retried).
+ * Database errors (e.g. a dropped connection) are retried on a new connection; if they persist, the call throws IllegalStateException.
+ *
+ */
+public class PostgresWorkQueue implements WorkQueue {
+	final static String STATUS_PENDING = "PENDING";
+	final static String STATUS_CLAIMED = "CLAIMED";
+	final static String STATUS_DONE = "DONE";
+	final static String STATUS_FAILED = "FAILED";
+	
+	private static final int MAX_ATTEMPTS = 2;
+	private static final int MAX_SQL_ATTEMPTS = 5;
+	private static final long PROGRESS_INTERVAL_MS = 60 * 1000;
+	
+	private final Config config;
+	private final String table;
+	private final String run;
+	private final String worker;
+	private final int claimBatchSize;
+	private final long heartbeatMs;
+	private Connection connection;
+	private ScheduledExecutorService heartbeat;
+	
+	//claimed, not yet processed items of this worker
+	private final Deque<WorkItem> claimed = new ArrayDeque<WorkItem>();
+	
+	/**
+	 * Constructor - creates new connection, schema and table (if necessary)
+	 * @param config config-Object (postgres connection, work queue schema, run, claim batch size, heartbeat)
+	 */
+	public PostgresWorkQueue(Config config) {
+		String schema = config.getWorkQueueSchema();
+		if(!schema.matches("[A-Za-z_][A-Za-z0-9_]*")) {
+			throw new IllegalArgumentException("Invalid work queue schema: " + schema);
+		}
+		this.config = config;
+		this.table = schema + ".work_item";
+		this.run = config.getWorkQueueRun();
+		this.worker = ManagementFactory.getRuntimeMXBean().getName() + "/" + UUID.randomUUID().toString().substring(0, 8);
+		this.claimBatchSize = Math.max(1, config.getWorkClaimBatchSize());
+		this.heartbeatMs = Math.max(1000, config.getWorkHeartbeatMs());
+		
+		try {
+			Class.forName("org.postgresql.Driver");
+			connect();
+			
+			try (Statement statement = connection.createStatement()) {
+				statement.execute("CREATE SCHEMA IF NOT EXISTS " + schema);
+				statement.execute("CREATE TABLE IF NOT EXISTS " + table + " ("
+						+ "run VARCHAR(100) NOT NULL, "
+						+ "first_row_id INT NOT NULL, "
+						+ "last_row_id INT NOT NULL, "
+						+ "status VARCHAR(10) NOT NULL, "
+						+ "attempts INT NOT NULL DEFAULT 0, "
+						+ "worker VARCHAR(200), "
+						+ "heartbeat TIMESTAMP, "
+						+ "completed TIMESTAMP, "
+						+ "priority BIGINT NOT NULL DEFAULT 0, "
+						+ "PRIMARY KEY (run, first_row_id))");
+				//tables of earlier versions
+				statement.execute("ALTER TABLE " + table + " ADD COLUMN IF NOT EXISTS priority BIGINT NOT NULL DEFAULT 0");
+			}
+		} catch (ClassNotFoundException | SQLException e) {
+			throw new IllegalStateException("Work queue not available", e);
+		}
+	}
+	
+	private void connect() throws SQLException {
+		connection = DriverManager.getConnection(
+				"jdbc:postgresql://" + config.getPostgresServer() + ":" 
+						+ config.getPortPostgres() + "/" 
+						+ config.getDbnamePostgres(),
+						config.getUserPostgres(), 
+						config.getPassPostgres());
+	}
+	
+	private interface SqlCall<T> {
+		T call() throws SQLException;
+	}
+	
+	/**
+	 * Run statements of the queue, retry on database errors with a new connection
+	 * @param action description for messages
+	 * @param sql statements
+	 * @return result of the statements
+	 * @throws IllegalStateException if the statements failed MAX_SQL_ATTEMPTS times
+	 */
+	private <T> T retry(String action, SqlCall<T> sql) {
+		for(int attempt = 1; ; attempt++) {
+			try {
+				return sql.call();
+			} catch (SQLException e) {
+				if(attempt >= MAX_SQL_ATTEMPTS) {
+					throw new IllegalStateException("Work queue: " + action + " failed " + attempt + " times", e);
+				}
+				System.out.println("Work queue: " + action + " failed (" + e.getMessage() + "), retrying");
+				try {
+					Thread.sleep(heartbeatMs);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw new IllegalStateException("Work queue: interrupted while retrying " + action, e);
+				}
+				reconnect();
+			}
+		}
+	}
+	
+	private void reconnect() {
+		try {
+			if(connection.isValid(5)) {
+				return;
+			}
+			connection.close();
+		} catch (SQLException e) {
+			//broken anyway
+		}
+		try {
+			connect();
+		} catch (SQLException e) {
+			System.out.println("Work queue: reconnect failed (" + e.getMessage() + ")");
+		}
+	}
+
+	@Override
+	public synchronized void publish(List<WorkItem> items) {
+		try {
+			//resume: done items stay done, failed items get two more attempts
+			try (PreparedStatement statement = connection.prepareStatement("UPDATE " + table + " SET status = ?, attempts = 0 WHERE run = ? AND status = ?")) {
+				statement.setString(1, STATUS_PENDING);
+				statement.setString(2, run);
+				statement.setString(3, STATUS_FAILED);
+				statement.executeUpdate();
+			}
+			try (PreparedStatement statement = connection.prepareStatement("INSERT INTO " + table + " (run, first_row_id, last_row_id, status, priority) VALUES (?, ?, ?, ?, ?) ON CONFLICT (run, first_row_id) DO NOTHING")) {
+				for(WorkItem item : items) {
+					statement.setString(1, run);
+					statement.setInt(2, item.getFirstRowId());
+					statement.setInt(3, item.getLastRowId());
+					statement.setString(4, STATUS_PENDING);
+					statement.setLong(5, item.getCost());
+					statement.addBatch();
+				}
+				statement.executeBatch();
+			}
+		} catch (SQLException e) {
+			throw new IllegalStateException("Work items not published", e);
+		}
+	}
+
+	/**
+	 * Claim the next work item (worker)
+	 * @return work item or null, if there is no work left
+	 * @throws IllegalStateException if the database is not available
+	 */
+	@Override
+	public WorkItem claim() {
+		try {
+			long nextProgress = System.currentTimeMillis() + PROGRESS_INTERVAL_MS;
+			while(true) {
+				synchronized(this) {
+					if(claimed.isEmpty()) {
+						retry("claim", () -> {
+							claimBatch();
+							return null;
+						});
+					}
+					if(!claimed.isEmpty()) {
+						startHeartbeat();
+						return claimed.peek();
+					}
+					//no pending items - wait while other workers might still fail or crash
+					if(retry("count items", this::countStatus).getOrDefault(STATUS_CLAIMED, 0) == 0) {
+						return null;
+					}
+				}
+				if(System.currentTimeMillis() >= nextProgress) {
+					System.out.println("Waiting for other workers to finish their work items");
+					nextProgress += PROGRESS_INTERVAL_MS;
+				}
+				Thread.sleep(heartbeatMs);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+	
+	/**
+	 * Items of crashed workers (no heartbeat for four intervals): failed without attempts left, otherwise claimable again
+	 * @return number of expired items
+	 */
+	private int expireStale() throws SQLException {
+		int expired;
+		try (PreparedStatement statement = connection.prepareStatement("UPDATE " + table + " SET status = CASE WHEN attempts >= ? THEN ? ELSE ? END, "
+				+ "completed = CASE WHEN attempts >= ? THEN now() END, worker = NULL "
+				+ "WHERE run = ? AND status = ? AND heartbeat < now() - ? * INTERVAL '1 millisecond'")) {
+			statement.setInt(1, MAX_ATTEMPTS);
+			statement.setString(2, STATUS_FAILED);
+			statement.setString(3, STATUS_PENDING);
+			statement.setInt(4, MAX_ATTEMPTS);
+			statement.setString(5, run);
+			statement.setString(6, STATUS_CLAIMED);
+			statement.setLong(7, 4 * heartbeatMs);
+			expired = statement.executeUpdate();
+		}
+		return expired;
+	}
+	
+	private void claimBatch() throws SQLException {
+		//items of crashed workers become pending again
+		expireStale();
+		
+		//items selected once in a CTE (a LIMIT subquery in the WHERE clause may be evaluated more than once and claim more items)
+		try (PreparedStatement statement = connection.prepareStatement("WITH next AS ("
+				+ "SELECT first_row_id FROM " + table + " WHERE run = ? AND status = ? "
+				+ "ORDER BY priority DESC, first_row_id LIMIT ? FOR UPDATE SKIP LOCKED) "
+				+ "UPDATE " + table + " W SET status = ?, worker = ?, heartbeat = now(), attempts = attempts + 1 "
+				+ "FROM next WHERE W.run = ? AND W.first_row_id = next.first_row_id "
+				+ "RETURNING W.first_row_id, W.last_row_id, W.priority")) {
+			statement.setString(1, run);
+			statement.setString(2, STATUS_PENDING);
+			statement.setInt(3, claimBatchSize);
+			statement.setString(4, STATUS_CLAIMED);
+			statement.setString(5, worker);
+			statement.setString(6, run);
+			ResultSet rs = statement.executeQuery();
+			while(rs.next()) {
+				claimed.add(new WorkItem(rs.getInt(1), rs.getInt(2), rs.getLong(3)));
+			}
+		}
+	}
+	
+	private void startHeartbeat() {
+		if(heartbeat == null) {
+			heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "work-queue-heartbeat");
+				t.setDaemon(true);
+				return t;
+			});
+			heartbeat.scheduleWithFixedDelay(this::sendHeartbeat, heartbeatMs, heartbeatMs, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	private synchronized void sendHeartbeat() {
+		try (PreparedStatement statement = connection.prepareStatement("UPDATE " + table + " SET heartbeat = now() WHERE run = ? AND worker = ? AND status = ?")) {
+			statement.setString(1, run);
+			statement.setString(2, worker);
+			statement.setString(3, STATUS_CLAIMED);
+			statement.executeUpdate();
+		} catch (SQLException e) {
+			//no retry here: the next heartbeat follows in one interval, items are only taken over after four
+			System.out.println("Work queue: heartbeat failed (" + e.getMessage() + ")");
+			reconnect();
+		}
+	}
+
+	/**
+	 * Work item has been processed completely
+	 * @param item claimed work item
+	 * @throws IllegalStateException if the database is not available
+	 */
+	@Override
+	public synchronized void complete(WorkItem item) {
+		claimed.remove(item);
+		finish("complete " + item, item, "status = '" + STATUS_DONE + "', completed = now()");
+	}
+
+	/**
+	 * Processing of the work item failed - it is delivered once more, then dropped
+	 * @param item claimed work item
+	 * @throws IllegalStateException if the database is not available
+	 */
+	@Override
+	public synchronized void fail(WorkItem item) {
+		claimed.remove(item);
+		//one more try (on any worker), then failed
+		finish("fail " + item, item, "status = CASE WHEN attempts >= " + MAX_ATTEMPTS + " THEN '" + STATUS_FAILED + "' ELSE '" + STATUS_PENDING + "' END, "
+				+ "completed = CASE WHEN attempts >= " + MAX_ATTEMPTS + " THEN now() END");
+	}
+	
+	private void finish(String action, WorkItem item, String set) {
+		//only while claimed by this worker - a stale item may have been taken over (update is idempotent, may be retried)
+		int updated = retry(action, () -> {
+			try (PreparedStatement statement = connection.prepareStatement("UPDATE " + table + " SET " + set + " WHERE run = ? AND first_row_id = ? AND worker = ? AND status = ?")) {
+				statement.setString(1, run);
+				statement.setInt(2, item.getFirstRowId());
+				statement.setString(3, worker);
+				statement.setString(4, STATUS_CLAIMED);
+				return statement.executeUpdate();
+			}
+		});
+		if(updated == 0) {
+			System.out.println("Work queue: work item " + item + " was taken over by another worker (no heartbeat), not updated");
+		}
+	}
+	
+	/**
+	 * Number of work items of the run per status (progress of the run)
+	 * @return status -> number of items
+	 * @throws SQLException
+	 */
+	public synchronized Map<String,Integer> countStatus() throws SQLException {
+		Map<String,Integer> counts = new LinkedHashMap<String,Integer>();
+		try (PreparedStatement statement = connection.prepareStatement("SELECT status, COUNT(*) FROM " + table + " WHERE run = ? GROUP BY status ORDER BY status")) {
+			statement.setString(1, run);
+			ResultSet rs = statement.executeQuery();
+			while(rs.next()) {
+				counts.put(rs.getString(1), rs.getInt(2));
+			}
+		}
+		return counts;
+	}
+
+	/**
+	 * Wait until all published work items are completed or dropped (coordinator). 
+	 * Items of crashed workers are expired like by the workers, so they do not count as in progress forever.
+	 * @throws IllegalStateException if the database is not available
+	 */
+	@Override
+	public void awaitCompletion() {
+		try {
+			long nextProgress = System.currentTimeMillis() + PROGRESS_INTERVAL_MS;
+			Map<String,Integer> counts = retry("count items", this::countStatus);
+			while(counts.getOrDefault(STATUS_PENDING, 0) + counts.getOrDefault(STATUS_CLAIMED, 0) > 0) {
+				int expired;
+				synchronized(this) {
+					expired = retry("expire stale items", this::expireStale);
+				}
+				if(expired > 0) {
+					System.out.println("Work queue: " + expired + " work item(s) of workers without heartbeat expired");
+				}
+				if(System.currentTimeMillis() >= nextProgress) {
+					System.out.println("Waiting for workers: " + counts 
+							+ (counts.getOrDefault(STATUS_CLAIMED, 0) == 0 ? " - no worker is running, start workers to continue" : ""));
+					nextProgress += PROGRESS_INTERVAL_MS;
+				}
+				Thread.sleep(heartbeatMs);
+				counts = retry("count items", this::countStatus);
+			}
+			
+			if(counts.getOrDefault(STATUS_FAILED, 0) > 0) {
+				System.out.println("Work items: " + counts);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		if(heartbeat != null) {
+			heartbeat.shutdown();
+		}
+		try {
+			connection.close();
+		} catch (SQLException e) {
+			System.out.println("Work queue: closing the connection failed (" + e.getMessage() + ")");
+		}
+	}
+}
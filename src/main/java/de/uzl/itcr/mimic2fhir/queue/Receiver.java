@@ -18,45 +18,82 @@ package de.uzl.itcr.mimic2fhir.queue;
 import com.rabbitmq.client.ConnectionFactory;
 import com.rabbitmq.client.Connection;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.concurrent.TimeoutException;
-
-import javax.json.Json;
-import javax.json.JsonObject;
-import javax.json.JsonReader;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.BuiltinExchangeType;
 import com.rabbitmq.client.Channel;
-import com.rabbitmq.client.Consumer;
 import com.rabbitmq.client.DefaultConsumer;
 import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.MessageProperties;
 
-import de.uzl.itcr.mimic2fhir.OutputMode;
-import de.uzl.itcr.mimic2fhir.work.FHIRComm;
+import de.uzl.itcr.mimic2fhir.work.Metrics;
 
 /**
  * RabbitMQ consumer class for receiving and processing bundles
+ * Consumes with several channels (one thread each); every channel gets at most "prefetch" unacknowledged bundles.
+ * A bundle is acknowledged after the sink has completely processed it, so bundles of a crashed consumer are delivered again.
+ * Processed bundles are reported to the done queue of their run; consumers stop when the shutdown is broadcast for their run or for all runs (see StreamCoordinator).
+ * Consumers without run (started with startConsumer()) only stop on a broadcast for all runs.
  * @author Stefanie Ververs
  *
  */
 public class Receiver {
-	private final static String QUEUE_NAME = "BundleQ";
-	private Channel channel;
-	private FHIRComm fhirConnector;
-	private OutputMode outputMode;
+	private static final Metrics.Timer LATENCY_TIMER = Metrics.timer("queue.latency");
+	
+	private final int consumers;
+	private final int prefetch;
+	//run of the consumers started with the conversion, null: standalone consumer
+	private final String runId;
+	private ExecutorService executor;
 	private Connection connection;
+	private final List<Channel> channels = new ArrayList<Channel>();
+	private final List<String> consumerTags = new ArrayList<String>();
+	private Channel doneChannel;
+	private BundleSink sink;
+	private final AtomicBoolean stopping = new AtomicBoolean();
+	
+	//delivered, but not yet acknowledged bundles
+	private final AtomicInteger inFlight = new AtomicInteger();
+	
+	/**
+	 * Constructor - creates new connection
+	 * @param host RabbitMQ host
+	 * @param consumers number of channels/threads consuming the queue
+	 * @param prefetch max. number of unacknowledged bundles per channel
+	 */
+	public Receiver(String host, int consumers, int prefetch) {
+		this(host, consumers, prefetch, null);
+	}
 	
 	/**
-	 * Constructor - creates new channel connection
+	 * Constructor - creates new connection
+	 * @param host RabbitMQ host
+	 * @param consumers number of channels/threads consuming the queue
+	 * @param prefetch max. number of unacknowledged bundles per channel
+	 * @param runId run whose shutdown broadcast stops the consumers, null: only a broadcast for all runs
 	 */
-	public Receiver() {
+	public Receiver(String host, int consumers, int prefetch, String runId) {
+		this.consumers = Math.max(1, consumers);
+		this.prefetch = Math.max(1, prefetch);
+		this.runId = runId;
+		
 		ConnectionFactory factory = new ConnectionFactory();
-		factory.setHost("localhost");
+		factory.setHost(host);
 		try {
-			connection = factory.newConnection();
-			channel = connection.createChannel();
+			//one more thread for the control channel
+			executor = Executors.newFixedThreadPool(this.consumers + 1);
+			connection = factory.newConnection(executor);
 
 		} catch (Exception e) {
 			// TODO Auto-generated catch block
@@ -66,20 +103,11 @@ public class Receiver {
 	}
 	
 	/**
-	 * Set the Fhir-Communication class
-	 * @param fhirCom
-	 */
-	public void setFhirConnector(FHIRComm fhirCom) {
-		this.fhirConnector = fhirCom;
-	}
-	
-	
-	/**
-	 * Set the outputMode (how to process bundles)
-	 * @param outputMode
+	 * Set the sink (what to do with received bundles)
+	 * @param sink
 	 */
-	public void setOutputMode(OutputMode outputMode) {
-		this.outputMode = outputMode;
+	public void setSink(BundleSink sink) {
+		this.sink = sink;
 	}
 
 
@@ -88,48 +116,35 @@ public class Receiver {
 	 */
 	public void receive() {
 		try {
-			channel.queueDeclare(QUEUE_NAME, false, false, false, null);
-			 
-            Consumer consumer = new DefaultConsumer(channel) {
-				  @Override
-				  public void handleDelivery(String consumerTag, Envelope envelope,
-				                             AMQP.BasicProperties properties, byte[] body)
-				      throws IOException {
-					  
-						//bundle xml from json message data
-					    InputStream is = new ByteArrayInputStream(body);
-						JsonReader jsonReader = Json.createReader(is);
-						JsonObject json = jsonReader.readObject();
-						jsonReader.close();
-						
-						String number = json.getString("number");
-						String bundleXml = json.getString("bundle");
-	
-					    if(bundleXml.equals("END"))  {
-					    	//End this queue..
-					    	channel.basicCancel(consumerTag);
-					    	try {
-								channel.close();
-								connection.close();
-							} catch (TimeoutException e) {
-								// TODO Auto-generated catch block
-								e.printStackTrace();
-							}
-					    }
-					    else {
-						    //process bundle
-					    	try {
-					    		performAction(number, bundleXml);
-							} catch (Exception e) {
-								// TODO Auto-generated catch block
-								e.printStackTrace();
-							}
-						   
-					    }
-				  }
-				};
-				channel.basicConsume(QUEUE_NAME, true, consumer);			 
+			for(int i = 0; i < consumers; i++) {
+				Channel channel = connection.createChannel();
+				channel.basicQos(prefetch);
+				channel.queueDeclare(Sender.QUEUE_NAME, true, false, false, null);
+				
+				channels.add(channel);
+				consumerTags.add(channel.basicConsume(Sender.QUEUE_NAME, false, new BundleConsumer(channel)));
+			}
+			
+			doneChannel = connection.createChannel();
 			
+			//shutdown broadcast of the producer (shared by all runs)
+			Channel control = connection.createChannel();
+			control.exchangeDeclare(Sender.CONTROL_EXCHANGE, BuiltinExchangeType.FANOUT, true);
+			String controlQueue = control.queueDeclare().getQueue();
+			control.queueBind(controlQueue, Sender.CONTROL_EXCHANGE, "");
+			control.basicConsume(controlQueue, true, new DefaultConsumer(control) {
+				@Override
+				public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+					Map<String,Object> headers = properties.getHeaders();
+					String run = headers != null && headers.get(Sender.HEADER_RUN) != null ? headers.get(Sender.HEADER_RUN).toString() : null;
+					if(!Sender.ALL_RUNS.equals(run) && (runId == null || !runId.equals(run))) {
+						//shutdown of another run
+						return;
+					}
+					//not on a consumer thread - shutdown closes the connection
+					new Thread(Receiver.this::shutdown, "receiver-shutdown").start();
+				}
+			});
 		} catch (Exception e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -137,23 +152,136 @@ public class Receiver {
 	   
 	}
 	
-	private void performAction(String number, String bundle) {
+	private class BundleConsumer extends DefaultConsumer {
 		
-		//Perform action for bundle
-		switch(outputMode) {
-			case PRINT_CONSOLE:
-				fhirConnector.printBundleAsXml(fhirConnector.getBundleFromString(bundle));
-				break;
-			case PRINT_FILE:
-				fhirConnector.printBundleAsXmlToFile(number, fhirConnector.getBundleFromString(bundle));
-				break;
-			case PRINT_BOTH:
-				fhirConnector.printBundleAsXml(fhirConnector.getBundleFromString(bundle));
-				fhirConnector.printBundleAsXmlToFile(number, fhirConnector.getBundleFromString(bundle));
-				break;
-			case PUSH_SERVER:			
-				fhirConnector.bundleToServer(fhirConnector.getBundleFromString(bundle));
-				break;
+		BundleConsumer(Channel channel) {
+			super(channel);
+		}
+
+		@Override
+		public void handleDelivery(String consumerTag, Envelope envelope,
+		                           AMQP.BasicProperties properties, byte[] body)
+		    throws IOException {
+			
+			//number and run from headers, body is the encoded bundle
+			Map<String,Object> headers = properties.getHeaders();
+			String number = String.valueOf(headers.get(Sender.HEADER_NUMBER));
+			String runId = String.valueOf(headers.get(Sender.HEADER_RUN));
+			//reported back, so the producer counts every sent message once
+			String messageId = headers.get(Sender.HEADER_MESSAGE) != null ? headers.get(Sender.HEADER_MESSAGE).toString() : number;
+			
+			//bundle in the message or in the spool directory
+			BundleMessage message;
+			if(headers.get(Sender.HEADER_SPOOL) != null) {
+				message = BundleMessage.spooled(number, properties.getContentType(), properties.getContentEncoding(), Paths.get(String.valueOf(headers.get(Sender.HEADER_SPOOL))));
+			}
+			else {
+				message = new BundleMessage(number, properties.getContentType(), properties.getContentEncoding(), body);
+			}
+			
+			//time in the queue (clocks of producer and consumer machine may differ a little)
+			Object sent = headers.get(Sender.HEADER_SENT);
+			if(sent instanceof Number) {
+				message.setSentAt(((Number) sent).longValue());
+				LATENCY_TIMER.record(TimeUnit.MILLISECONDS.toNanos(Math.max(0, System.currentTimeMillis() - message.getSentAt())), 1);
+			}
+			
+			//process bundle, report and ack when the sink is done
+			long deliveryTag = envelope.getDeliveryTag();
+			inFlight.incrementAndGet();
+			try {
+				sink.accept(message, success -> {
+					if(success) {
+						complete(getChannel(), deliveryTag, runId, messageId, message);
+					}
+					else {
+						//one more try (on any consumer), then drop; the spool file is kept until then
+						reject(getChannel(), deliveryTag, runId, messageId, message, !envelope.isRedeliver());
+					}
+				});
+			} catch (Exception e) {
+				System.out.println("Bundle " + message.getNumber() + " failed: " + e);
+				//one more try (on any consumer), then drop
+				reject(getChannel(), deliveryTag, runId, messageId, message, !envelope.isRedeliver());
+			}
+		}
+	}
+	
+	private void complete(Channel channel, long deliveryTag, String runId, String messageId, BundleMessage message) {
+		try {
+			//report first: a message reported twice is counted once, a message never reported blocks the end of the run
+			reportDone(runId, messageId, message.getNumber(), Sender.STATUS_OK);
+			channel.basicAck(deliveryTag, false);
+			BundleSpool.release(message);
+		} catch (Exception e) {
+			System.out.println("Bundle " + message.getNumber() + " not acknowledged (" + e.getMessage() + ")");
+		}
+		finally {
+			inFlight.decrementAndGet();
+		}
+	}
+	
+	private void reject(Channel channel, long deliveryTag, String runId, String messageId, BundleMessage message, boolean requeue) {
+		try {
+			if(!requeue) {
+				reportDone(runId, messageId, message.getNumber(), Sender.STATUS_FAILED);
+			}
+			channel.basicNack(deliveryTag, false, requeue);
+			if(!requeue) {
+				BundleSpool.release(message);
+			}
+		} catch (Exception e) {
+			System.out.println("Bundle " + message.getNumber() + " not rejected (" + e.getMessage() + ")");
+		}
+		finally {
+			inFlight.decrementAndGet();
+		}
+	}
+	
+	private void reportDone(String runId, String messageId, String number, String status) throws IOException {
+		Map<String,Object> headers = new HashMap<String,Object>();
+		headers.put(Sender.HEADER_MESSAGE, messageId);
+		headers.put(Sender.HEADER_NUMBER, number);
+		headers.put(Sender.HEADER_STATUS, status);
+		headers.put(Sender.HEADER_COMPLETED, System.currentTimeMillis());
+		
+		//channels are not meant for concurrent publishing (acks come from upload threads)
+		synchronized(doneChannel) {
+			doneChannel.basicPublish("", StreamCoordinator.doneQueue(runId), MessageProperties.PERSISTENT_BASIC.builder().headers(headers).build(), new byte[0]);
+		}
+	}
+	
+	/**
+	 * Stop consuming: pending bundles are finished and acknowledged, then the sink and the connection are closed
+	 */
+	void shutdown() {
+		if(!stopping.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			//no new deliveries
+			for(int i = 0; i < channels.size(); i++) {
+				channels.get(i).basicCancel(consumerTags.get(i));
+			}
+			
+			//finish pending work, then wait for the last acks
+			awaitInFlight();
+			sink.close();
+			awaitInFlight();
+			
+			//closes all channels
+			connection.close();
+		} catch (Exception e) {
+			System.out.println("Receiver: shutdown failed (" + e.getMessage() + ")");
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+	
+	private void awaitInFlight() throws InterruptedException {
+		while(inFlight.get() > 0) {
+			Thread.sleep(50);
 		}
 	}
 }
@@ -18,31 +18,68 @@ package de.uzl.itcr.mimic2fhir.queue;
 import com.rabbitmq.client.Connection;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.TimeoutException;
 
+import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.MessageProperties;
+
+import de.uzl.itcr.mimic2fhir.work.Metrics;
 
 /**
  * Publisher class for sending bundle message to RabbitMQ
+ * Messages are persistent (durable queue) and confirmed by the broker in batches
  * @author Stefanie Ververs
  *
  */
 public class Sender {
-	private final static String QUEUE_NAME = "BundleQ";
+	final static String QUEUE_NAME = "BundleQ";
+	final static String HEADER_NUMBER = "number";
+	//id of one sent message: a resent bundle (retried work item) is a new message, a redelivery is not
+	final static String HEADER_MESSAGE = "message";
+	final static String HEADER_TYPE = "type";
+	final static String HEADER_RUN = "run";
+	final static String HEADER_SPOOL = "spool";
+	final static String HEADER_SENT = "sent";
+	final static String HEADER_STATUS = "status";
+	final static String HEADER_COMPLETED = "completed";
+	final static String TYPE_BUNDLE = "BUNDLE";
+	final static String STATUS_OK = "OK";
+	final static String STATUS_FAILED = "FAILED";
+	final static String CONTROL_EXCHANGE = QUEUE_NAME + ".control";
+	//run header of a shutdown broadcast for all consumers (of all runs and started with startConsumer())
+	final static String ALL_RUNS = "*";
+	
+	private static final long CONFIRM_TIMEOUT_MS = 5 * 60 * 1000;
+	private static final Metrics.Timer PUBLISH_TIMER = Metrics.timer("queue.publish");
+	
 	private Channel channel;
 	private Connection connection;
+	private final int confirmBatchSize;
+	private final String runId;
+	private int unconfirmed;
+	private long sent;
 	
 	/**
 	 * Constructor - creates new channel connection
+	 * @param host RabbitMQ host
+	 * @param confirmBatchSize number of messages published before waiting for the broker's confirms
+	 * @param runId id of this run (consumers report processed bundles to the done queue of the run)
 	 */
-	public Sender() {
+	public Sender(String host, int confirmBatchSize, String runId) {
+		this.confirmBatchSize = Math.max(1, confirmBatchSize);
+		this.runId = runId;
+		
 		ConnectionFactory factory = new ConnectionFactory();
-		factory.setHost("localhost");
+		factory.setHost(host);
 		try {
 			connection = factory.newConnection();
 			channel = connection.createChannel();
-			channel.queueDeclare(QUEUE_NAME, false, false, false, null);
+			channel.queueDeclare(QUEUE_NAME, true, false, false, null);
+			channel.confirmSelect();
 		} catch (Exception e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -51,23 +88,65 @@ public class Sender {
 	
 	/**
 	 * Send message to queue
-	 * @param message json message with number and bundle data
+	 * Bundle bytes are the message body, number, message id, type and run are sent as headers
+	 * Spooled bundles: the message body is empty, the spool file is sent as header
+	 * @param message bundle message
 	 */
-	public void send(String message) {
+	public void send(BundleMessage message) {
+		long start = System.nanoTime();
+		Map<String,Object> headers = new HashMap<String,Object>();
+		headers.put(HEADER_NUMBER, message.getNumber());
+		headers.put(HEADER_MESSAGE, Long.toString(++sent));
+		headers.put(HEADER_TYPE, TYPE_BUNDLE);
+		headers.put(HEADER_RUN, runId);
+		headers.put(HEADER_SENT, System.currentTimeMillis());
+		if(message.isSpooled()) {
+			headers.put(HEADER_SPOOL, message.getSpoolFile().toString());
+		}
+		
+		AMQP.BasicProperties props = MessageProperties.PERSISTENT_BASIC.builder()
+				.contentType(message.getContentType())
+				.contentEncoding(message.getContentEncoding())
+				.headers(headers)
+				.build();
 		try {
-			channel.basicPublish("", QUEUE_NAME, null, message.getBytes());
+			channel.basicPublish("", QUEUE_NAME, props, message.isSpooled() ? new byte[0] : message.getPayload());
 			
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
 		
+		if(++unconfirmed >= confirmBatchSize) {
+			waitForConfirms();
+		}
+		PUBLISH_TIMER.stop(start);
+	}
+	
+	/**
+	 * Wait until the broker has confirmed all published messages
+	 * @throws IllegalStateException if the broker rejected a message or did not confirm in time
+	 */
+	public void waitForConfirms() {
+		if(unconfirmed == 0) {
+			return;
+		}
+		try {
+			channel.waitForConfirmsOrDie(CONFIRM_TIMEOUT_MS);
+			unconfirmed = 0;
+		} catch (IOException | TimeoutException e) {
+			throw new IllegalStateException("Broker did not confirm bundles", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for confirms", e);
+		}
 	}
 	
 	/**
-	 * Close channel connection
+	 * Wait for outstanding confirms and close channel connection
 	 */
 	public void close() {
+		waitForConfirms();
 		try {
 			this.channel.close();
 			this.connection.close();
@@ -0,0 +1,162 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.queue;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.BuiltinExchangeType;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+
+/**
+ * End of stream for the RabbitMQ transport (producer side):
+ * Consumers report every processed bundle to the done queue of the run. 
+ * When all sent bundles are reported (counted once per sent message, redeliveries are reported twice), 
+ * the consumers can be told to shut down via a fanout exchange (the consumers of the run or all consumers).
+ * The reports are counted from the start, so awaitProcessed can be called repeatedly (flush of a worker).
+ *
+ */
+class StreamCoordinator {
+	private static final long PROGRESS_INTERVAL_MS = 60 * 1000;
+	
+	private final String runId;
+	private Connection connection;
+	private Channel channel;
+	private String consumerTag;
+	
+	//reported messages (counted once per message id)
+	private final Set<String> messages = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong lastCompletion = new AtomicLong(System.currentTimeMillis());
+	
+	/**
+	 * Create coordinator, declare the done queue of the run and start counting reports - before the first bundle is sent
+	 * @param host RabbitMQ host
+	 * @param runId id of this run
+	 */
+	StreamCoordinator(String host, String runId) {
+		this.runId = runId;
+		
+		ConnectionFactory factory = new ConnectionFactory();
+		factory.setHost(host);
+		try {
+			connection = factory.newConnection();
+			channel = connection.createChannel();
+			channel.queueDeclare(doneQueue(runId), true, false, false, null);
+			channel.exchangeDeclare(Sender.CONTROL_EXCHANGE, BuiltinExchangeType.FANOUT, true);
+			consumerTag = channel.basicConsume(doneQueue(runId), true, new DefaultConsumer(channel) {
+				@Override
+				public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+					reported(properties.getHeaders());
+				}
+			});
+		} catch (Exception e) {
+			throw new IllegalStateException("Bundle queue not available at " + host, e);
+		}
+	}
+	
+	/**
+	 * Name of the done queue of a run
+	 * @param runId id of the run
+	 * @return queue name
+	 */
+	static String doneQueue(String runId) {
+		return Sender.QUEUE_NAME + ".done." + runId;
+	}
+	
+	private synchronized void reported(Map<String,Object> headers) {
+		Object id = headers.get(Sender.HEADER_MESSAGE) != null ? headers.get(Sender.HEADER_MESSAGE) : headers.get(Sender.HEADER_NUMBER);
+		if(messages.add(String.valueOf(id))) {
+			if(Sender.STATUS_FAILED.equals(String.valueOf(headers.get(Sender.HEADER_STATUS)))) {
+				failed.incrementAndGet();
+			}
+			lastCompletion.accumulateAndGet(((Number) headers.get(Sender.HEADER_COMPLETED)).longValue(), Math::max);
+			notifyAll();
+		}
+	}
+	
+	/**
+	 * Wait until the consumers have reported all sent bundles
+	 * @param produced number of messages sent so far
+	 * @return time (ms since epoch) when the last bundle was processed
+	 */
+	synchronized long awaitProcessed(long produced) {
+		try {
+			long nextProgress = System.currentTimeMillis() + PROGRESS_INTERVAL_MS;
+			while(messages.size() < produced) {
+				wait(Math.max(1, nextProgress - System.currentTimeMillis()));
+				if(System.currentTimeMillis() >= nextProgress) {
+					System.out.println("Waiting for consumers: " + messages.size() + " of " + produced + " bundles processed");
+					nextProgress += PROGRESS_INTERVAL_MS;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return lastCompletion.get();
+	}
+	
+	/**
+	 * Number of reported bundles that could not be processed
+	 * @return failed bundles
+	 */
+	long getFailed() {
+		return failed.get();
+	}
+	
+	/**
+	 * Tell consumers to shut down, then close (see close())
+	 * @param run run id of the consumers to stop, Sender.ALL_RUNS: all consumers
+	 */
+	void shutdownConsumers(String run) {
+		Map<String,Object> headers = new HashMap<String,Object>();
+		headers.put(Sender.HEADER_RUN, run);
+		try {
+			channel.basicPublish(Sender.CONTROL_EXCHANGE, "", new AMQP.BasicProperties.Builder().headers(headers).build(), new byte[0]);
+		} catch (IOException e) {
+			System.out.println("Shutdown of the consumers not sent (" + e.getMessage() + ")");
+		}
+		close();
+	}
+	
+	/**
+	 * Stop counting, remove the done queue and close the connection
+	 */
+	void close() {
+		if(failed.get() > 0) {
+			System.out.println("Bundles processed: " + messages.size() + ", failed: " + failed.get());
+		}
+		try {
+			channel.basicCancel(consumerTag);
+			channel.queueDelete(doneQueue(runId));
+			channel.close();
+			connection.close();
+		} catch (IOException | TimeoutException e) {
+			System.out.println("Closing the coordinator failed (" + e.getMessage() + ")");
+		}
+	}
+}
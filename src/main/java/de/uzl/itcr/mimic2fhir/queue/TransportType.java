@@ -0,0 +1,27 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.queue;
+
+/**
+ * Transport for bundle messages:
+ * -AMQP: RabbitMQ broker (producer and consumers may run in different processes)
+ * -IN_PROCESS: bounded queue in this process, no broker needed
+ *
+ */
+public enum TransportType {
+	AMQP,
+	IN_PROCESS
+}
@@ -0,0 +1,104 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.queue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Unit of work of a distributed run: a range of patients (row ids, both inclusive)
+ *
+ */
+public class WorkItem {
+	private final int firstRowId;
+	private final int lastRowId;
+	private final long cost;
+	
+	/**
+	 * Create work item
+	 * @param firstRowId first patient row id
+	 * @param lastRowId last patient row id (inclusive)
+	 */
+	public WorkItem(int firstRowId, int lastRowId) {
+		this(firstRowId, lastRowId, 0);
+	}
+	
+	/**
+	 * Create work item with estimated cost (see WorkloadPlanner)
+	 * @param firstRowId first patient row id
+	 * @param lastRowId last patient row id (inclusive)
+	 * @param cost estimated cost - items with higher cost are claimed first
+	 */
+	public WorkItem(int firstRowId, int lastRowId, long cost) {
+		this.firstRowId = firstRowId;
+		this.lastRowId = lastRowId;
+		this.cost = cost;
+	}
+	
+	/**
+	 * Split patients 1..numberOfPatients into work items
+	 * @param numberOfPatients number of patients (row ids 1..numberOfPatients)
+	 * @param size max. number of patients per work item
+	 * @return work items in row id order
+	 */
+	public static List<WorkItem> split(int numberOfPatients, int size) {
+		size = Math.max(1, size);
+		List<WorkItem> items = new ArrayList<WorkItem>();
+		for(int first = 1; first <= numberOfPatients; first += size) {
+			items.add(new WorkItem(first, Math.min(first + size - 1, numberOfPatients)));
+		}
+		return items;
+	}
+	
+	/**
+	 * Parse work item from its id
+	 * @param id id as returned by getId() ("first-last")
+	 * @return work item
+	 */
+	public static WorkItem parse(String id) {
+		int dash = id.indexOf('-');
+		return new WorkItem(Integer.parseInt(id.substring(0, dash)), Integer.parseInt(id.substring(dash + 1)));
+	}
+
+	public int getFirstRowId() {
+		return firstRowId;
+	}
+
+	public int getLastRowId() {
+		return lastRowId;
+	}
+
+	/**
+	 * Estimated cost (0: unknown)
+	 * @return cost
+	 */
+	public long getCost() {
+		return cost;
+	}
+	
+	/**
+	 * Id of the work item (unique within a run)
+	 * @return "first-last"
+	 */
+	public String getId() {
+		return firstRowId + "-" + lastRowId;
+	}
+	
+	@Override
+	public String toString() {
+		return getId();
+	}
+}
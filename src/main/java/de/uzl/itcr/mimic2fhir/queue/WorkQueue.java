@@ -0,0 +1,60 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.queue;
+
+import java.util.List;
+
+/**
+ * Work queue of a distributed run: the coordinator publishes work items, workers claim them. 
+ * A claimed item is either completed or failed; items of a crashed worker are delivered again.
+ *
+ */
+public interface WorkQueue {
+	
+	/**
+	 * Publish the work items of a run (coordinator)
+	 * @param items work items
+	 */
+	void publish(List<WorkItem> items);
+	
+	/**
+	 * Claim the next work item (worker)
+	 * @return work item or null, if there is no work left
+	 */
+	WorkItem claim();
+	
+	/**
+	 * Work item has been processed completely
+	 * @param item claimed work item
+	 */
+	void complete(WorkItem item);
+	
+	/**
+	 * Processing of the work item failed - it is delivered once more, then dropped
+	 * @param item claimed work item
+	 */
+	void fail(WorkItem item);
+	
+	/**
+	 * Wait until all published work items are completed or dropped (coordinator)
+	 */
+	void awaitCompletion();
+	
+	/**
+	 * Close connection
+	 */
+	void close();
+}
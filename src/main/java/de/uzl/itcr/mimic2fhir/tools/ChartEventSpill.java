@@ -0,0 +1,225 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.tools;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.Consumer;
+
+import de.uzl.itcr.mimic2fhir.model.MChartevent;
+
+/**
+ * Chart events of an oversized admission staged in a binary file instead of the heap: 
+ * written sequentially through a direct buffer, read back in chunks of a fixed number of events. 
+ * Record: row id, record date, caregiver id, measurement type (index into the types of the file, new types follow inline), 
+ * value, numeric value (flag + double), unit; strings as length + UTF-8 bytes (length -1: null).
+ * The file is deleted by close().
+ *
+ */
+public class ChartEventSpill implements Closeable {
+	private static final int BUFFER_SIZE = 1024 * 1024;
+	private static final long NO_DATE = Long.MIN_VALUE;
+	
+	private final Path file;
+	private FileChannel channel;
+	private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private final HashMap<String,Integer> types = new HashMap<String,Integer>();
+	private long size;
+	
+	/**
+	 * Create spill file
+	 * @param directory directory of the file, null: temporary directory
+	 */
+	public ChartEventSpill(Path directory) {
+		try {
+			file = directory != null ? Files.createTempFile(Files.createDirectories(directory), "chartevents-", ".spill") 
+					: Files.createTempFile("chartevents-", ".spill");
+			channel = FileChannel.open(file, StandardOpenOption.WRITE);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	/**
+	 * Append event
+	 * @param event chart event
+	 */
+	public void write(MChartevent event) {
+		byte[] type = null;
+		Integer typeIndex = types.get(event.getMeasurementType());
+		if(typeIndex == null) {
+			//new type: index = number of known types, string follows
+			typeIndex = types.size();
+			types.put(event.getMeasurementType(), typeIndex);
+			type = bytes(event.getMeasurementType());
+		}
+		byte[] value = bytes(event.getValue());
+		byte[] unit = bytes(event.getUnit());
+		
+		int length = 4 + 8 + 4 + 4 + (type != null ? 4 + len(type) : 0) + 4 + len(value) + 1 + 8 + 4 + len(unit);
+		try {
+			if(buffer.remaining() < length) {
+				flush();
+			}
+			buffer.putInt(event.getRowId());
+			buffer.putLong(event.getRecordDate() != null ? event.getRecordDate().getTime() : NO_DATE);
+			buffer.putInt(event.getCareGiverId());
+			buffer.putInt(typeIndex);
+			if(type != null) {
+				putString(type);
+			}
+			putString(value);
+			buffer.put((byte)(event.hasNumVal() ? 1 : 0));
+			buffer.putDouble(event.getNumValue());
+			putString(unit);
+			size++;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	/**
+	 * Number of events in the file
+	 * @return number of events
+	 */
+	public long size() {
+		return size;
+	}
+	
+	/**
+	 * Read all events in chunks (finishes writing)
+	 * @param chunkSize max. number of events per chunk
+	 * @param action receives every chunk (the list is reused - do not keep it)
+	 */
+	public void forEachChunk(int chunkSize, Consumer<List<MChartevent>> action) {
+		List<String> typeNames = new ArrayList<String>();
+		List<MChartevent> chunk = new ArrayList<MChartevent>(chunkSize);
+		try {
+			finishWriting();
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+					Channels.newInputStream(FileChannel.open(file, StandardOpenOption.READ)), 64 * 1024))) {
+				for(long i = 0; i < size; i++) {
+					chunk.add(read(in, typeNames));
+					if(chunk.size() == chunkSize) {
+						action.accept(chunk);
+						chunk.clear();
+					}
+				}
+			}
+			if(!chunk.isEmpty()) {
+				action.accept(chunk);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	private static MChartevent read(DataInputStream in, List<String> typeNames) throws IOException {
+		MChartevent event = new MChartevent();
+		event.setRowId(in.readInt());
+		long date = in.readLong();
+		if(date != NO_DATE) {
+			event.setRecordDate(new java.sql.Date(date));
+		}
+		event.setCareGiverId(in.readInt());
+		int typeIndex = in.readInt();
+		if(typeIndex == typeNames.size()) {
+			typeNames.add(readString(in));
+		}
+		event.setMeasurementType(typeNames.get(typeIndex));
+		event.setValue(readString(in));
+		boolean hasNumVal = in.readByte() == 1;
+		double numValue = in.readDouble();
+		if(hasNumVal) {
+			event.setNumValue(numValue);
+		}
+		event.setUnit(readString(in));
+		return event;
+	}
+	
+	private void finishWriting() throws IOException {
+		if(channel != null) {
+			flush();
+			channel.close();
+			channel = null;
+			buffer = null;
+		}
+	}
+	
+	private void flush() throws IOException {
+		buffer.flip();
+		while(buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+	
+	private void putString(byte[] s) {
+		if(s == null) {
+			buffer.putInt(-1);
+			return;
+		}
+		buffer.putInt(s.length);
+		buffer.put(s);
+	}
+	
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if(length < 0) {
+			return null;
+		}
+		byte[] s = new byte[length];
+		in.readFully(s);
+		return new String(s, StandardCharsets.UTF_8);
+	}
+	
+	private static byte[] bytes(String s) {
+		return s != null ? s.getBytes(StandardCharsets.UTF_8) : null;
+	}
+	
+	private static int len(byte[] s) {
+		return s != null ? s.length : 0;
+	}
+
+	/**
+	 * Delete the file
+	 */
+	@Override
+	public void close() {
+		try {
+			if(channel != null) {
+				channel.close();
+				channel = null;
+			}
+			Files.deleteIfExists(file);
+		} catch (IOException e) {
+			System.out.println("Event spill " + file + " not deleted (" + e.getMessage() + ")");
+		}
+	}
+}
@@ -0,0 +1,171 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.tools;
+
+import java.util.Date;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+
+import ca.uhn.fhir.context.FhirContext;
+import de.uzl.itcr.mimic2fhir.model.MAdmission;
+import de.uzl.itcr.mimic2fhir.model.MChartevent;
+import de.uzl.itcr.mimic2fhir.model.MDiagnose;
+import de.uzl.itcr.mimic2fhir.model.MLabevent;
+import de.uzl.itcr.mimic2fhir.model.MNoteevent;
+import de.uzl.itcr.mimic2fhir.model.MPatient;
+import de.uzl.itcr.mimic2fhir.work.BundleControl;
+import de.uzl.itcr.mimic2fhir.work.BundleEncoder;
+import de.uzl.itcr.mimic2fhir.work.BundleEncoding;
+import de.uzl.itcr.mimic2fhir.work.FhirContextHolder;
+import de.uzl.itcr.mimic2fhir.work.NarrativeMode;
+
+/**
+ * Benchmark for bundle encodings: reports encoded bytes and encode time for each encoding with and without gzip.
+ * Uses a synthetic admission (no database needed); every iteration encodes a new bundle, so narratives are generated each time.
+ * Usage: EncodingBenchmark [chartevents] [iterations] [OFF|LOW_VOLUME|FULL]
+ *
+ */
+public class EncodingBenchmark {
+	
+	public static void main(String[] args) {
+		int chartevents = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		NarrativeMode narrativeMode = args.length > 2 ? NarrativeMode.valueOf(args[2]) : NarrativeMode.FULL;
+		
+		FhirContextHolder.setNarrativeMode(narrativeMode);
+		FhirContext ctx = FhirContextHolder.getContext();
+		Bundle bundle = createBundle(1, chartevents);
+		
+		System.out.println("Bundle with " + bundle.getEntry().size() + " resources, " + iterations + " iterations, narratives: " + narrativeMode);
+		System.out.println(String.format("%-12s %-5s %14s %12s", "encoding", "gzip", "bytes", "ms/bundle"));
+		
+		for(BundleEncoding encoding : BundleEncoding.values()) {
+			for(boolean gzip : new boolean[] {false, true}) {
+				BundleEncoder encoder = new BundleEncoder(ctx, encoding, gzip);
+				
+				//warm up
+				int size = 0;
+				for(int i = 0; i < 3; i++) {
+					size = encoder.encode(createBundle(1, chartevents)).length;
+				}
+				
+				//new bundles (without narratives) for each iteration
+				Bundle[] bundles = new Bundle[iterations];
+				for(int i = 0; i < iterations; i++) {
+					bundles[i] = createBundle(1, chartevents);
+				}
+				
+				long start = System.nanoTime();
+				for(int i = 0; i < iterations; i++) {
+					encoder.encode(bundles[i]);
+				}
+				double ms = (System.nanoTime() - start) / 1e6 / iterations;
+				
+				System.out.println(String.format("%-12s %-5s %14d %12.1f", encoding, gzip, size, ms));
+			}
+		}
+	}
+	
+	/**
+	 * Synthetic transaction bundle for one patient with one admission
+	 * @param subjectId subject id of the patient (event row ids are unique per subject)
+	 * @param chartevents number of chartevents
+	 * @return transaction bundle
+	 */
+	static Bundle createBundle(int subjectId, int chartevents) {
+		int firstRowId = subjectId * chartevents;
+		MPatient pat = new MPatient();
+		pat.setPatientSubjectId(Integer.toString(subjectId));
+		pat.setGender("F");
+		pat.setBirthDate(new Date());
+		
+		MAdmission adm = new MAdmission();
+		adm.setAdmissionId(Integer.toString(100000 + subjectId));
+		adm.setAdmissionType("EMERGENCY");
+		adm.setAdmissionLocation("EMERGENCY ROOM ADMIT");
+		adm.setDischargeLocation("HOME");
+		adm.setAdmissionTime(new Date());
+		adm.setDischargeTime(new Date());
+		pat.addAdmission(adm);
+		
+		for(int i = 1; i <= 10; i++) {
+			MDiagnose d = new MDiagnose();
+			d.setIcd9Code("4019");
+			d.setShortTitle("Hypertension NOS");
+			d.setLongTitle("Unspecified essential hypertension");
+			d.setSeqNumber(i);
+			adm.addDiagnose(d);
+		}
+		
+		for(int i = 0; i < chartevents; i++) {
+			MChartevent e = new MChartevent();
+			e.setRowId(firstRowId + i);
+			e.setRecordDate(new Date());
+			e.setMeasurementType("Heart Rate");
+			e.setValue(Integer.toString(60 + i % 40));
+			e.setNumValue(60 + i % 40);
+			e.setUnit("bpm");
+			adm.addEvent(e);
+		}
+		
+		for(int i = 0; i < chartevents / 5; i++) {
+			MLabevent e = new MLabevent();
+			e.setRowId(firstRowId + i);
+			e.setAcquisitionDate(new Date());
+			e.setMeasurementType("Potassium");
+			e.setFluid("Blood");
+			e.setLoinc("2823-3");
+			e.setValue("4.1");
+			e.setNumValue(4.1);
+			e.setUnit("mEq/L");
+			adm.addLabEvent(e);
+		}
+		
+		StringBuilder text = new StringBuilder();
+		for(int i = 0; i < 60; i++) {
+			text.append("Patient stable overnight, vital signs within normal limits. ");
+		}
+		for(int i = 0; i < chartevents / 500 + 1; i++) {
+			MNoteevent n = new MNoteevent();
+			n.setRowId(firstRowId + i);
+			n.setChartdate(new Date());
+			n.setCategory("Nursing");
+			n.setDescription("Report");
+			n.setText(text.toString());
+			adm.addNoteEvent(n);
+		}
+		
+		BundleControl bundleC = new BundleControl();
+		Patient fhirPat = pat.createFhirFromMimic();
+		bundleC.addUUIDResourceToBundle(fhirPat);
+		Encounter enc = adm.createFhirEncounterFromMimic(fhirPat.getId());
+		bundleC.addUUIDResourceToBundle(enc);
+		adm.createFhirConditionsFromMimic(fhirPat.getId()).forEach(bundleC::addUUIDResourceToBundle);
+		for(Observation o : adm.createFhirObservationsFromMimic(fhirPat.getId(), enc.getId())) {
+			bundleC.addResourceToBundle(o);
+		}
+		for(Observation o : adm.createFhirLabObservationsFromMimic(fhirPat.getId(), enc.getId())) {
+			bundleC.addResourceToBundle(o);
+		}
+		for(Observation o : adm.createFhirNoteObservationsFromMimic(fhirPat.getId(), enc.getId())) {
+			bundleC.addResourceToBundle(o);
+		}
+		return bundleC.getTransactionBundle();
+	}
+}
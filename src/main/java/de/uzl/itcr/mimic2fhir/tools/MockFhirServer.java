@@ -0,0 +1,308 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.tools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Parameters.ParametersParameterComponent;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import ca.uhn.fhir.context.FhirContext;
+import de.uzl.itcr.mimic2fhir.queue.BundleMessage;
+import de.uzl.itcr.mimic2fhir.work.BulkImportSink;
+import de.uzl.itcr.mimic2fhir.work.Config;
+import de.uzl.itcr.mimic2fhir.work.FHIRComm;
+import de.uzl.itcr.mimic2fhir.work.FhirContextHolder;
+import de.uzl.itcr.mimic2fhir.work.UploadEngine;
+
+/**
+ * Local stand-in for a fhir server to measure uploads without a real server.
+ * The server processes a limited number of transactions at once ("capacity"); processing time grows with payload size.
+ * If too many transactions are waiting, it answers 429.
+ * $import downloads the NDJSON files of the request in the background and counts the resources; the status url answers 202 until done.
+ * main() measures upload throughput for one transaction at a time, a fixed number and the adaptive limit, and the throughput of a bulk import.
+ * Usage: MockFhirServer [bundles] [capacity]
+ *
+ */
+public class MockFhirServer {
+	private static final byte[] RESPONSE = "{\"resourceType\":\"Bundle\",\"type\":\"transaction-response\"}".getBytes(StandardCharsets.UTF_8);
+	
+	private final FhirContext ctx = FhirContextHolder.getContext();
+	private final HttpServer server;
+	private final Semaphore capacity;
+	private final long baseLatencyMs;
+	private final double msPerKb;
+	private final int maxWaiting;
+	
+	private final AtomicInteger waiting = new AtomicInteger();
+	private final AtomicLong transactions = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong imported = new AtomicLong();
+	
+	//import job id -> result (null while running)
+	private final Map<String,String> importJobs = new ConcurrentHashMap<String,String>();
+	private final ExecutorService importExecutor = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "mock-import");
+		t.setDaemon(true);
+		return t;
+	});
+	
+	/**
+	 * Create and start mock server on localhost
+	 * @param port port (0: any free port)
+	 * @param capacity number of transactions processed at the same time
+	 * @param baseLatencyMs processing time per transaction
+	 * @param msPerKb additional processing time per kilobyte of payload
+	 * @param maxWaiting max. waiting transactions before answering 429
+	 * @throws IOException if server could not be started
+	 */
+	public MockFhirServer(int port, int capacity, long baseLatencyMs, double msPerKb, int maxWaiting) throws IOException {
+		this.capacity = new Semaphore(capacity, true);
+		this.baseLatencyMs = baseLatencyMs;
+		this.msPerKb = msPerKb;
+		this.maxWaiting = maxWaiting;
+		
+		server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+		server.createContext("/fhir", this::handleTransaction);
+		server.createContext("/fhir/$import", this::handleImport);
+		server.createContext("/fhir/$import-poll-status", this::handleImportStatus);
+		server.setExecutor(Executors.newCachedThreadPool(r -> {
+			Thread t = new Thread(r, "mock-fhir");
+			t.setDaemon(true);
+			return t;
+		}));
+		server.start();
+	}
+	
+	private void handleTransaction(HttpExchange exchange) throws IOException {
+		long bytes = drain(exchange.getRequestBody());
+		
+		if(waiting.incrementAndGet() > maxWaiting) {
+			waiting.decrementAndGet();
+			rejected.incrementAndGet();
+			respond(exchange, 429, new byte[0]);
+			return;
+		}
+		try {
+			capacity.acquire();
+			waiting.decrementAndGet();
+			try {
+				Thread.sleep(baseLatencyMs + (long) (msPerKb * bytes / 1024));
+			}
+			finally {
+				capacity.release();
+			}
+			transactions.incrementAndGet();
+			respond(exchange, 200, RESPONSE);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			respond(exchange, 503, new byte[0]);
+		}
+	}
+	
+	private void handleImport(HttpExchange exchange) throws IOException {
+		Parameters parameters = ctx.newJsonParser().parseResource(Parameters.class, exchange.getRequestBody());
+		String jobId = UUID.randomUUID().toString();
+		importJobs.put(jobId, "");
+		
+		importExecutor.execute(() -> {
+			StringBuilder result = new StringBuilder("{\"output\":[");
+			for(ParametersParameterComponent input : parameters.getParameter()) {
+				if(!"input".equals(input.getName())) {
+					continue;
+				}
+				String type = partValue(input, "type");
+				String url = partValue(input, "url");
+				long count = 0;
+				try (BufferedReader reader = new BufferedReader(new InputStreamReader(new URL(url).openStream(), StandardCharsets.UTF_8))) {
+					String line;
+					while((line = reader.readLine()) != null) {
+						if(!line.isEmpty()) {
+							count++;
+						}
+					}
+				} catch (IOException e) {
+					System.out.println("Mock server: reading " + url + " failed (" + e.getMessage() + ")");
+				}
+				imported.addAndGet(count);
+				if(result.charAt(result.length() - 1) != '[') {
+					result.append(',');
+				}
+				result.append("{\"type\":\"").append(type).append("\",\"count\":").append(count).append(",\"inputUrl\":\"").append(url).append("\"}");
+			}
+			importJobs.put(jobId, result.append("]}").toString());
+		});
+		
+		exchange.getResponseHeaders().set("Content-Location", "/fhir/$import-poll-status?_jobId=" + jobId);
+		respond(exchange, 202, new byte[0]);
+	}
+	
+	private void handleImportStatus(HttpExchange exchange) throws IOException {
+		String query = exchange.getRequestURI().getQuery();
+		String result = query != null ? importJobs.get(query.substring(query.indexOf('=') + 1)) : null;
+		if(result == null) {
+			respond(exchange, 404, new byte[0]);
+		}
+		else if(result.isEmpty()) {
+			exchange.getResponseHeaders().set("X-Progress", imported.get() + " resources imported");
+			respond(exchange, 202, new byte[0]);
+		}
+		else {
+			respond(exchange, 200, result.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+	
+	private static String partValue(ParametersParameterComponent parameter, String name) {
+		for(ParametersParameterComponent part : parameter.getPart()) {
+			if(name.equals(part.getName())) {
+				return part.getValue().primitiveValue();
+			}
+		}
+		return null;
+	}
+	
+	private static long drain(InputStream in) throws IOException {
+		byte[] buffer = new byte[64 * 1024];
+		long bytes = 0;
+		int read;
+		while((read = in.read(buffer)) != -1) {
+			bytes += read;
+		}
+		return bytes;
+	}
+	
+	private static void respond(HttpExchange exchange, int status, byte[] body) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", "application/fhir+json");
+		exchange.sendResponseHeaders(status, body.length > 0 ? body.length : -1);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+	
+	/**
+	 * Base url of this server
+	 * @return base url
+	 */
+	public String getBaseUrl() {
+		return "http://localhost:" + server.getAddress().getPort() + "/fhir";
+	}
+	
+	/**
+	 * Number of processed transactions
+	 * @return transactions
+	 */
+	public long getTransactions() {
+		return transactions.get();
+	}
+	
+	/**
+	 * Number of transactions answered with 429
+	 * @return rejected transactions
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+	
+	/**
+	 * Number of resources loaded by $import
+	 * @return imported resources
+	 */
+	public long getImported() {
+		return imported.get();
+	}
+	
+	/**
+	 * Stop server
+	 */
+	public void stop() {
+		server.stop(0);
+	}
+
+	public static void main(String[] args) throws IOException {
+		int bundles = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		int capacity = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+		
+		//256 KB per bundle
+		byte[] payload = new byte[256 * 1024];
+		
+		System.out.println(String.format("%-10s %8s %12s %10s %8s", "mode", "maxInFl", "bundles/s", "lastLimit", "429s"));
+		run("serial", bundles, capacity, payload, 1, false);
+		run("fixed", bundles, capacity, payload, 4, false);
+		run("fixed", bundles, capacity, payload, 64, false);
+		run("adaptive", bundles, capacity, payload, 64, true);
+		
+		runImport(bundles);
+	}
+	
+	private static void runImport(int bundles) throws IOException {
+		MockFhirServer mock = new MockFhirServer(0, 1, 0, 0, 1);
+		
+		Config config = new Config();
+		config.setFhirServer(mock.getBaseUrl());
+		config.setBulkImportPollMs(100);
+		
+		BulkImportSink sink = new BulkImportSink(new FHIRComm(config), config);
+		long start = System.nanoTime();
+		for(int i = 1; i <= bundles; i++) {
+			sink.addBundle(EncodingBenchmark.createBundle(i, 1000));
+		}
+		sink.close();
+		double seconds = (System.nanoTime() - start) / 1e9;
+		
+		System.out.println(String.format("bulk import: %d resources staged, %d imported, %.1f resources/s", 
+				sink.getCounts().values().stream().mapToLong(Long::longValue).sum(), mock.getImported(), mock.getImported() / seconds));
+		mock.stop();
+	}
+	
+	private static void run(String mode, int bundles, int capacity, byte[] payload, int maxInFlight, boolean adaptive) throws IOException {
+		MockFhirServer mock = new MockFhirServer(0, capacity, 20, 0.1, 2 * capacity);
+		
+		Config config = new Config();
+		config.setFhirServer(mock.getBaseUrl());
+		config.setUploadMaxInFlight(maxInFlight);
+		config.setUploadAdaptive(adaptive);
+		config.setUploadRetryBackoffMs(20);
+		
+		UploadEngine engine = new UploadEngine(new FHIRComm(config), config);
+		long start = System.nanoTime();
+		for(int i = 0; i < bundles; i++) {
+			engine.submit(new BundleMessage(Integer.toString(i), "application/fhir+json", null, payload));
+		}
+		engine.close();
+		double seconds = (System.nanoTime() - start) / 1e9;
+		
+		System.out.println(String.format("%-10s %8d %12.1f %10d %8d", mode, maxInFlight, engine.getSucceeded() / seconds, engine.getCurrentLimit(), mock.getRejected()));
+		mock.stop();
+	}
+}
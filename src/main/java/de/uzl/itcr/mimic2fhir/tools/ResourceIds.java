@@ -0,0 +1,67 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.tools;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+import org.hl7.fhir.r4.model.Identifier;
+
+/**
+ * Deterministic resource ids derived from mimic keys.
+ * Ids are name based UUIDs (urn:uuid:...), so they work as temporary ids inside a transaction bundle 
+ * as well as logical ids for PUT Type/id - the same mimic row always gets the same id.
+ *
+ */
+public class ResourceIds {
+	private static final String URN_UUID = "urn:uuid:";
+	
+	private ResourceIds() {
+	}
+	
+	/**
+	 * Id for a resource identified by its business identifier (the same identifier a conditional create would search for)
+	 * @param resourceType fhir resource type, e.g. Patient
+	 * @param identifier business identifier (system and value)
+	 * @return id as urn:uuid
+	 */
+	public static String fromIdentifier(String resourceType, Identifier identifier) {
+		return fromKey(resourceType, identifier.getSystem() + "|" + identifier.getValue());
+	}
+	
+	/**
+	 * Id for a resource identified by a mimic key
+	 * @param resourceType fhir resource type, e.g. Observation
+	 * @param key unique key within this resource type, e.g. chartevents/4711
+	 * @return id as urn:uuid
+	 */
+	public static String fromKey(String resourceType, String key) {
+		String name = resourceType + "/" + key;
+		return URN_UUID + UUID.nameUUIDFromBytes(name.getBytes(StandardCharsets.UTF_8));
+	}
+	
+	/**
+	 * Logical id (without urn:uuid: prefix) for the use in resource urls
+	 * @param id resource id
+	 * @return logical id
+	 */
+	public static String toLogicalId(String id) {
+		if(id.startsWith(URN_UUID)) {
+			return id.substring(URN_UUID.length());
+		}
+		return id;
+	}
+}
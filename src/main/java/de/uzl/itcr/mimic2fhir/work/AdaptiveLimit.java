@@ -0,0 +1,141 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.work;
+
+/**
+ * Concurrency limit for server uploads that adapts to server latency (AIMD).
+ * The limit grows by one per round of healthy requests and halves on overload responses (429/5xx).
+ * It shrinks by 10% only if the recent latency stays above the tolerated multiple of the long-term average for a whole round of requests:
+ * the long-term average follows the latency slowly, so the gradual queueing that comes with a higher limit does not push it down.
+ * Latency is measured per kilobyte of payload, so differently sized bundles are comparable.
+ * Also works as gate: {@link #acquire()} blocks while the limit of in-flight requests is reached.
+ *
+ */
+public class AdaptiveLimit {
+	private static final double TOLERANCE = 2.0;
+	//weights of a new sample in the recent and the long-term latency average
+	private static final double RECENT_WEIGHT = 0.1;
+	private static final double LONG_TERM_WEIGHT = 0.002;
+	
+	private final int minLimit;
+	private final int maxLimit;
+	private final boolean adaptive;
+	
+	private double limit;
+	private int inFlight;
+	//latency per KB, averaged (-1: no sample yet)
+	private double recentLatency = -1;
+	private double longTermLatency = -1;
+	//consecutive samples with recent latency above tolerance
+	private int slowSamples;
+	
+	/**
+	 * Create new limit
+	 * @param initialLimit limit to start with
+	 * @param maxLimit upper bound for the limit
+	 * @param adaptive adapt to latency? If false, the limit stays at maxLimit
+	 */
+	public AdaptiveLimit(int initialLimit, int maxLimit, boolean adaptive) {
+		this.minLimit = 1;
+		this.maxLimit = Math.max(1, maxLimit);
+		this.adaptive = adaptive;
+		this.limit = adaptive ? Math.max(minLimit, Math.min(initialLimit, this.maxLimit)) : this.maxLimit;
+	}
+	
+	/**
+	 * Wait until a request may be sent
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public synchronized void acquire() throws InterruptedException {
+		while(inFlight >= (int) limit) {
+			wait();
+		}
+		inFlight++;
+	}
+	
+	/**
+	 * Request finished (successful or not)
+	 */
+	public synchronized void release() {
+		inFlight--;
+		notifyAll();
+	}
+	
+	/**
+	 * Record a successful request
+	 * @param latencyMs latency of request in ms
+	 * @param bytes payload size
+	 */
+	public synchronized void onSuccess(long latencyMs, long bytes) {
+		if(!adaptive) {
+			return;
+		}
+		double sample = latencyMs / Math.max(1.0, bytes / 1024.0);
+		if(longTermLatency < 0) {
+			recentLatency = sample;
+			longTermLatency = sample;
+		}
+		recentLatency += RECENT_WEIGHT * (sample - recentLatency);
+		longTermLatency += LONG_TERM_WEIGHT * (sample - longTermLatency);
+		
+		if(recentLatency <= longTermLatency * TOLERANCE) {
+			slowSamples = 0;
+			//additive increase: +1 per round of "limit" requests
+			limit = Math.min(maxLimit, limit + 1.0 / limit);
+		}
+		else if(++slowSamples >= limit) {
+			//slow for a whole round
+			slowSamples = 0;
+			limit = Math.max(minLimit, limit * 0.9);
+		}
+		notifyAll();
+	}
+	
+	/**
+	 * Record an overload response (429, 5xx, connection problems)
+	 */
+	public synchronized void onOverload() {
+		if(adaptive) {
+			limit = Math.max(minLimit, limit / 2);
+		}
+	}
+	
+	/**
+	 * Current limit of concurrent requests
+	 * @return limit
+	 */
+	public synchronized int getLimit() {
+		return (int) limit;
+	}
+	
+	/**
+	 * Number of requests currently in flight
+	 * @return requests in flight
+	 */
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+	
+	/**
+	 * Wait until no request is in flight anymore
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public synchronized void awaitIdle() throws InterruptedException {
+		while(inFlight > 0) {
+			wait();
+		}
+	}
+}
@@ -0,0 +1,93 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.work;
+
+/**
+ * Size of one admission of a patient (number of events per table) - input of the size-aware planning
+ *
+ */
+public class AdmissionSize {
+	//estimated costs relative to one chart event (conversion, encoding and upload)
+	private static final long COST_ADMISSION = 500;
+	private static final long COST_LAB_EVENT = 1;
+	private static final long COST_NOTE_EVENT = 20;
+	private static final long COST_PRESCRIPTION = 10;
+	
+	private final int rowId;
+	private final int admissionId;
+	private final long chartEvents;
+	private final long labEvents;
+	private final long noteEvents;
+	private final long prescriptions;
+	
+	/**
+	 * Create admission size
+	 * @param rowId row id of patient
+	 * @param admissionId HADM_ID, 0: patient without admission
+	 * @param chartEvents number of chart events
+	 * @param labEvents number of lab events
+	 * @param noteEvents number of note events
+	 * @param prescriptions number of prescriptions
+	 */
+	public AdmissionSize(int rowId, int admissionId, long chartEvents, long labEvents, long noteEvents, long prescriptions) {
+		this.rowId = rowId;
+		this.admissionId = admissionId;
+		this.chartEvents = chartEvents;
+		this.labEvents = labEvents;
+		this.noteEvents = noteEvents;
+		this.prescriptions = prescriptions;
+	}
+	
+	/**
+	 * Estimated cost of the admission without its chart events
+	 * @return cost (unit: one chart event)
+	 */
+	public long getBaseCost() {
+		return COST_ADMISSION + labEvents * COST_LAB_EVENT + noteEvents * COST_NOTE_EVENT + prescriptions * COST_PRESCRIPTION;
+	}
+	
+	/**
+	 * Estimated cost of the whole admission
+	 * @return cost (unit: one chart event)
+	 */
+	public long getCost() {
+		return getBaseCost() + chartEvents;
+	}
+
+	public int getRowId() {
+		return rowId;
+	}
+
+	public int getAdmissionId() {
+		return admissionId;
+	}
+
+	public long getChartEvents() {
+		return chartEvents;
+	}
+
+	public long getLabEvents() {
+		return labEvents;
+	}
+
+	public long getNoteEvents() {
+		return noteEvents;
+	}
+
+	public long getPrescriptions() {
+		return prescriptions;
+	}
+}
@@ -0,0 +1,261 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.work;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Parameters.ParametersParameterComponent;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.UriType;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.util.FhirTerser;
+import de.uzl.itcr.mimic2fhir.tools.ResourceIds;
+
+/**
+ * Bulk ingest via the fhir $import operation:
+ * Resources of all bundles are staged as NDJSON files (one file per resource type) instead of being sent as transactions.
+ * On close, the files are served by an embedded http server, the server is asked to $import them and the import status is polled until the server is done.
+ * Transaction placeholders (urn:uuid) are replaced by the logical ids (Type/id) of the resources of the bundle, resources shared by several bundles are written once 
+ * (patients, encounters and the hospital resources; other repeated resources if they were written recently - an older one is written again and the import updates it).
+ *
+ */
+public class BulkImportSink {
+	public static final String NDJSON = "application/fhir+ndjson";
+	
+	private final FHIRComm fhir;
+	private final Config config;
+	private final FhirContext ctx;
+	private final IParser parser;
+	private final FhirTerser terser;
+	private final Path directory;
+	
+	private final Map<String,Writer> writers = new TreeMap<String,Writer>();
+	private final Map<String,Long> counts = new TreeMap<String,Long>();
+	
+	//resource types repeated across bundles or patients, bounded by the number of patients, admissions and hospital resources
+	private static final Set<String> SHARED_TYPES = new HashSet<String>(Arrays.asList("Patient", "Encounter", "Organization", "Location", "Practitioner", "PractitionerRole", "Medication"));
+	private static final int RECENT_IDS = 100000;
+	
+	//ids of written shared resources
+	private final Set<String> written = new HashSet<String>();
+	//ids of recently written other resources (repeated in the next bundles of a patient), least recently written dropped
+	private final Set<String> recent = Collections.newSetFromMap(new LinkedHashMap<String,Boolean>(16, 0.75f, false) {
+		private static final long serialVersionUID = 1L;
+		
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String,Boolean> eldest) {
+			return size() > RECENT_IDS;
+		}
+	});
+	
+	/**
+	 * Create new sink; NDJSON files are staged in the directory specified in Config (or a temporary directory)
+	 * @param fhir fhir communication (used for $import and status requests)
+	 * @param config config-Object
+	 */
+	public BulkImportSink(FHIRComm fhir, Config config) {
+		this.fhir = fhir;
+		this.config = config;
+		this.ctx = FhirContextHolder.getContext();
+		this.parser = ctx.newJsonParser().setPrettyPrint(false);
+		this.terser = ctx.newTerser();
+		
+		try {
+			if(config.getBulkImportPath() != null) {
+				directory = Files.createDirectories(Paths.get(config.getBulkImportPath()));
+			}
+			else {
+				directory = Files.createTempDirectory("mimic2fhir-ndjson");
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Stage all resources of a transaction bundle (thread-safe)
+	 * @param bundle transaction bundle
+	 */
+	public synchronized void addBundle(Bundle bundle) {
+		//placeholders of this bundle -> logical ids
+		Map<String,String> ids = new HashMap<String,String>();
+		for(BundleEntryComponent entry : bundle.getEntry()) {
+			Resource r = entry.getResource();
+			if(r.hasId()) {
+				ids.put(r.getId(), r.fhirType() + "/" + ResourceIds.toLogicalId(r.getId()));
+			}
+		}
+		
+		try {
+			for(BundleEntryComponent entry : bundle.getEntry()) {
+				Resource r = entry.getResource();
+				boolean observation = r instanceof Observation;
+				if(r.hasId() && !observation && !(SHARED_TYPES.contains(r.fhirType()) ? written : recent).add(r.getId())) {
+					//already written
+					continue;
+				}
+				
+				//Observations are created per bundle and not used afterwards - all other resources (patient, encounter, hospital..) are shared with the next bundles
+				Resource out = observation ? r : r.copy();
+				if(out.hasId()) {
+					out.setId(ResourceIds.toLogicalId(out.getId()));
+				}
+				//transaction bundles are self-contained: every placeholder refers to a resource of the bundle
+				for(Reference ref : terser.getAllPopulatedChildElementsOfType(out, Reference.class)) {
+					String target = ids.get(ref.getReference());
+					if(target != null) {
+						ref.setReference(target);
+					}
+				}
+				
+				Writer writer = getWriter(out.fhirType());
+				parser.encodeResourceToWriter(out, writer);
+				writer.write('\n');
+				counts.merge(out.fhirType(), 1L, Long::sum);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private Writer getWriter(String type) throws IOException {
+		Writer writer = writers.get(type);
+		if(writer == null) {
+			writer = Files.newBufferedWriter(directory.resolve(type + ".ndjson"), StandardCharsets.UTF_8);
+			writers.put(type, writer);
+		}
+		return writer;
+	}
+	
+	/**
+	 * Number of staged resources per resource type
+	 * @return resource type -> number of resources
+	 */
+	public Map<String,Long> getCounts() {
+		return counts;
+	}
+	
+	/**
+	 * Directory of the NDJSON files
+	 * @return staging directory
+	 */
+	public Path getDirectory() {
+		return directory;
+	}
+	
+	/**
+	 * Finish staging, serve the NDJSON files and let the server import them. 
+	 * Blocks until the server reports the import as complete (or failed).
+	 */
+	public void close() {
+		HttpServer server = null;
+		try {
+			for(Writer writer : writers.values()) {
+				writer.close();
+			}
+			if(writers.isEmpty()) {
+				return;
+			}
+			
+			server = HttpServer.create(new InetSocketAddress(config.getBulkImportPort()), 0);
+			server.createContext("/", this::serveFile);
+			server.setExecutor(Executors.newFixedThreadPool(4, r -> {
+				Thread t = new Thread(r, "ndjson-server");
+				t.setDaemon(true);
+				return t;
+			}));
+			server.start();
+			String baseUrl = "http://" + config.getBulkImportHost() + ":" + server.getAddress().getPort() + "/";
+			
+			long start = System.currentTimeMillis();
+			String statusUrl = fhir.startBulkImport(parser.encodeResourceToString(createImportParameters(baseUrl)));
+			System.out.println("Bulk import started: " + counts + ", status: " + statusUrl);
+			
+			String result;
+			while((result = fhir.pollBulkImport(statusUrl)) == null) {
+				Thread.sleep(config.getBulkImportPollMs());
+			}
+			System.out.println("Bulk import complete after " + (System.currentTimeMillis() - start) + " ms: " + result);
+		} catch (Exception e) {
+			System.out.println("Bulk import failed: " + e);
+		}
+		finally {
+			if(server != null) {
+				server.stop(0);
+			}
+		}
+	}
+	
+	private Parameters createImportParameters(String baseUrl) {
+		Parameters parameters = new Parameters();
+		parameters.addParameter().setName("inputFormat").setValue(new CodeType(NDJSON));
+		parameters.addParameter().setName("inputSource").setValue(new UriType(baseUrl));
+		parameters.addParameter().setName("storageDetail").addPart().setName("type").setValue(new CodeType("https"));
+		
+		for(String type : writers.keySet()) {
+			ParametersParameterComponent input = parameters.addParameter().setName("input");
+			input.addPart().setName("type").setValue(new CodeType(type));
+			input.addPart().setName("url").setValue(new UriType(baseUrl + type + ".ndjson"));
+		}
+		return parameters;
+	}
+	
+	private void serveFile(HttpExchange exchange) throws IOException {
+		//only the staged files, nothing else from the directory
+		String name = exchange.getRequestURI().getPath().substring(1);
+		String type = name.endsWith(".ndjson") ? name.substring(0, name.length() - ".ndjson".length()) : null;
+		
+		if(type == null || !writers.containsKey(type) || !"GET".equals(exchange.getRequestMethod())) {
+			exchange.sendResponseHeaders(404, -1);
+			exchange.close();
+			return;
+		}
+		
+		Path file = directory.resolve(name);
+		exchange.getResponseHeaders().set("Content-Type", NDJSON);
+		exchange.sendResponseHeaders(200, Files.size(file));
+		try (OutputStream out = exchange.getResponseBody()) {
+			Files.copy(file, out);
+		}
+	}
+}
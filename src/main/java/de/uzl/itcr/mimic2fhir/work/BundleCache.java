@@ -0,0 +1,390 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.work;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.IntConsumer;
+
+/**
+ * LRU cache of encoded patient bundles, key: patient row id and output format (encoding, gzip).
+ * Memory tier bounded by bytes; least recently used bundles are evicted to an optional disk tier (also bounded by bytes) or dropped.
+ * Thread-safe; files are read and written outside the lock. Cached bundles have to be invalidated when the data of a patient changes (invalidate(rowId)); 
+ * listeners are told about invalidations. Bundles converted from data loaded before an invalidation are not cached (see getGeneration()).
+ *
+ */
+public class BundleCache {
+	private final long maxBytes;
+	private long bytes;
+	private final LinkedHashMap<String,byte[]> memory = new LinkedHashMap<String,byte[]>(16, 0.75f, true);
+	
+	private Path spillDirectory;
+	private long maxDiskBytes;
+	private long diskBytes;
+	private final LinkedHashMap<String,SpilledBundle> disk = new LinkedHashMap<String,SpilledBundle>(16, 0.75f, true);
+	//unique file names: a file being read or written is never reused
+	private long spillSequence;
+	
+	//invalidation counter; generation of the last invalidation per row id and of the last invalidateAll
+	private long generation;
+	private final HashMap<Integer,Long> invalidated = new HashMap<Integer,Long>();
+	private long invalidatedAll;
+	
+	private final List<IntConsumer> listeners = new CopyOnWriteArrayList<IntConsumer>();
+	
+	private long hits;
+	private long diskHits;
+	private long misses;
+	private long evictions;
+	
+	/**
+	 * Create new cache (memory only)
+	 * @param maxBytes max. size of all cached bundles in memory
+	 */
+	public BundleCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+	
+	/**
+	 * Keep bundles evicted from memory in files
+	 * @param spillDirectory directory for the files (created, if necessary; cached files are deleted when they are evicted or invalidated)
+	 * @param maxDiskBytes max. size of all files
+	 */
+	public synchronized void setSpillDirectory(Path spillDirectory, long maxDiskBytes) {
+		try {
+			this.spillDirectory = Files.createDirectories(spillDirectory).toAbsolutePath();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		this.maxDiskBytes = maxDiskBytes;
+	}
+	
+	/**
+	 * Key of a patient bundle in a format
+	 * @param rowId row id of the patient
+	 * @param encoding bundle encoding
+	 * @param gzip gzipped bundle?
+	 * @return cache key
+	 */
+	public static String key(int rowId, BundleEncoding encoding, boolean gzip) {
+		return rowId + "." + encoding + (gzip ? ".gz" : "");
+	}
+	
+	private static int rowId(String key) {
+		return Integer.parseInt(key.substring(0, key.indexOf('.')));
+	}
+	
+	/**
+	 * Current generation: take it before loading the data of a bundle and pass it to put(), 
+	 * so a bundle of data loaded before an invalidation of its patient is dropped
+	 * @return generation
+	 */
+	public synchronized long getGeneration() {
+		return generation;
+	}
+	
+	/**
+	 * Get cached bundle (memory, then disk - disk hits are moved back to memory)
+	 * @param key cache key
+	 * @return encoded bundle or null, if not cached
+	 */
+	public byte[] get(String key) {
+		SpilledBundle spilled;
+		long readGeneration;
+		synchronized(this) {
+			byte[] bundle = memory.get(key);
+			if(bundle != null) {
+				hits++;
+				return bundle;
+			}
+			spilled = disk.remove(key);
+			if(spilled == null) {
+				misses++;
+				return null;
+			}
+			diskBytes -= spilled.size;
+			readGeneration = generation;
+		}
+		
+		//the file has left the disk tier: nobody else reads or deletes it
+		byte[] bundle;
+		try {
+			bundle = Files.readAllBytes(spilled.file);
+			Files.delete(spilled.file);
+		} catch (IOException e) {
+			System.out.println("Bundle cache: reading " + spilled.file + " failed (" + e.getMessage() + ")");
+			synchronized(this) {
+				misses++;
+			}
+			return null;
+		}
+		
+		List<Map.Entry<String,byte[]>> evicted;
+		synchronized(this) {
+			if(isStale(key, readGeneration)) {
+				misses++;
+				return null;
+			}
+			diskHits++;
+			evicted = putInMemory(key, bundle);
+		}
+		spill(evicted, readGeneration);
+		return bundle;
+	}
+	
+	/**
+	 * Cache a bundle; bundles larger than the memory tier are not cached
+	 * @param key cache key
+	 * @param bundle encoded bundle
+	 */
+	public void put(String key, byte[] bundle) {
+		put(key, bundle, Long.MAX_VALUE);
+	}
+	
+	/**
+	 * Cache a bundle, unless its patient was invalidated after the data was loaded; bundles larger than the memory tier are not cached
+	 * @param key cache key
+	 * @param bundle encoded bundle
+	 * @param loadGeneration getGeneration() before the data of the bundle was loaded
+	 */
+	public void put(String key, byte[] bundle, long loadGeneration) {
+		if(bundle.length > maxBytes) {
+			return;
+		}
+		Path obsolete;
+		List<Map.Entry<String,byte[]>> evicted;
+		long putGeneration;
+		synchronized(this) {
+			if(isStale(key, loadGeneration)) {
+				return;
+			}
+			obsolete = remove(key);
+			evicted = putInMemory(key, bundle);
+			putGeneration = generation;
+		}
+		delete(obsolete != null ? Collections.singletonList(obsolete) : Collections.<Path>emptyList());
+		spill(evicted, putGeneration);
+	}
+	
+	private boolean isStale(String key, long loadGeneration) {
+		Long rowGeneration = invalidated.get(rowId(key));
+		return invalidatedAll > loadGeneration || (rowGeneration != null && rowGeneration > loadGeneration);
+	}
+	
+	/**
+	 * Add bundle to the memory tier (holding the lock)
+	 * @return bundles evicted from memory, to be spilled without the lock
+	 */
+	private List<Map.Entry<String,byte[]>> putInMemory(String key, byte[] bundle) {
+		byte[] replaced = memory.put(key, bundle);
+		bytes += bundle.length - (replaced != null ? replaced.length : 0);
+		
+		List<Map.Entry<String,byte[]>> evicted = new ArrayList<Map.Entry<String,byte[]>>();
+		Iterator<Map.Entry<String,byte[]>> it = memory.entrySet().iterator();
+		while(bytes > maxBytes && it.hasNext()) {
+			Map.Entry<String,byte[]> eldest = it.next();
+			it.remove();
+			bytes -= eldest.getValue().length;
+			evictions++;
+			evicted.add(eldest);
+		}
+		return evicted;
+	}
+	
+	/**
+	 * Write evicted bundles to the disk tier (without the lock); a bundle invalidated or cached again meanwhile is dropped
+	 * @param evicted bundles evicted from memory
+	 * @param evictGeneration generation when they were evicted
+	 */
+	private void spill(List<Map.Entry<String,byte[]>> evicted, long evictGeneration) {
+		for(Map.Entry<String,byte[]> entry : evicted) {
+			String key = entry.getKey();
+			byte[] bundle = entry.getValue();
+			Path file;
+			synchronized(this) {
+				if(spillDirectory == null) {
+					return;
+				}
+				if(bundle.length > maxDiskBytes) {
+					continue;
+				}
+				file = spillDirectory.resolve(key + "." + spillSequence++ + ".bundle");
+			}
+			try {
+				Files.write(file, bundle);
+			} catch (IOException e) {
+				System.out.println("Bundle cache: writing " + file + " failed (" + e.getMessage() + ")");
+				delete(Collections.singletonList(file));
+				continue;
+			}
+			
+			List<Path> obsolete = new ArrayList<Path>();
+			synchronized(this) {
+				if(isStale(key, evictGeneration) || memory.containsKey(key) || disk.containsKey(key)) {
+					obsolete.add(file);
+				}
+				else {
+					disk.put(key, new SpilledBundle(file, bundle.length));
+					diskBytes += bundle.length;
+					
+					Iterator<Map.Entry<String,SpilledBundle>> it = disk.entrySet().iterator();
+					while(diskBytes > maxDiskBytes && it.hasNext()) {
+						Map.Entry<String,SpilledBundle> eldest = it.next();
+						it.remove();
+						diskBytes -= eldest.getValue().size;
+						obsolete.add(eldest.getValue().file);
+					}
+				}
+			}
+			delete(obsolete);
+		}
+	}
+	
+	private static void delete(List<Path> files) {
+		for(Path file : files) {
+			try {
+				Files.deleteIfExists(file);
+			} catch (IOException e) {
+				System.out.println("Bundle cache: " + file + " not deleted (" + e.getMessage() + ")");
+			}
+		}
+	}
+	
+	/**
+	 * Remove bundle from both tiers (holding the lock)
+	 * @return file to delete without the lock, null if none
+	 */
+	private Path remove(String key) {
+		byte[] bundle = memory.remove(key);
+		if(bundle != null) {
+			bytes -= bundle.length;
+		}
+		SpilledBundle spilled = disk.remove(key);
+		if(spilled != null) {
+			diskBytes -= spilled.size;
+			return spilled.file;
+		}
+		return null;
+	}
+	
+	/**
+	 * Remove all cached bundles of a patient (all formats) and inform the listeners; 
+	 * bundles of the patient loaded before are not cached any more
+	 * @param rowId row id of the patient
+	 */
+	public void invalidate(int rowId) {
+		List<Path> obsolete = new ArrayList<Path>();
+		synchronized(this) {
+			invalidated.put(rowId, ++generation);
+			List<String> keys = new ArrayList<String>();
+			for(String key : memory.keySet()) {
+				if(rowId(key) == rowId) {
+					keys.add(key);
+				}
+			}
+			for(String key : disk.keySet()) {
+				if(rowId(key) == rowId) {
+					keys.add(key);
+				}
+			}
+			for(String key : keys) {
+				Path file = remove(key);
+				if(file != null) {
+					obsolete.add(file);
+				}
+			}
+		}
+		delete(obsolete);
+		for(IntConsumer listener : listeners) {
+			listener.accept(rowId);
+		}
+	}
+	
+	/**
+	 * Remove all cached bundles (e.g. after a reload of the database) and inform the listeners (row id -1)
+	 */
+	public void invalidateAll() {
+		List<Path> obsolete = new ArrayList<Path>();
+		synchronized(this) {
+			invalidatedAll = ++generation;
+			invalidated.clear();
+			memory.clear();
+			bytes = 0;
+			for(SpilledBundle spilled : disk.values()) {
+				obsolete.add(spilled.file);
+			}
+			disk.clear();
+			diskBytes = 0;
+		}
+		delete(obsolete);
+		for(IntConsumer listener : listeners) {
+			listener.accept(-1);
+		}
+	}
+	
+	/**
+	 * Register a listener for invalidations (e.g. to invalidate downstream caches)
+	 * @param listener gets the row id of the invalidated patient, -1 for all patients
+	 */
+	public void addInvalidationListener(IntConsumer listener) {
+		listeners.add(listener);
+	}
+	
+	/**
+	 * Size of the memory tier
+	 * @return bytes of all bundles in memory
+	 */
+	public synchronized long getBytes() {
+		return bytes;
+	}
+	
+	/**
+	 * Size of the disk tier
+	 * @return bytes of all bundles on disk
+	 */
+	public synchronized long getDiskBytes() {
+		return diskBytes;
+	}
+	
+	/**
+	 * Hit/miss statistics
+	 * @return e.g. "hits 90 (disk 5), misses 10, evictions 3, memory 1048576 bytes, disk 524288 bytes"
+	 */
+	public synchronized String getStats() {
+		return "hits " + (hits + diskHits) + " (disk " + diskHits + "), misses " + misses + ", evictions " + evictions 
+				+ ", memory " + bytes + " bytes, disk " + diskBytes + " bytes";
+	}
+	
+	private static class SpilledBundle {
+		private final Path file;
+		private final long size;
+		
+		private SpilledBundle(Path file, long size) {
+			this.file = file;
+			this.size = size;
+		}
+	}
+}
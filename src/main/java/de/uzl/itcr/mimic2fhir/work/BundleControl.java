@@ -18,20 +18,38 @@ package de.uzl.itcr.mimic2fhir.work;
 import java.util.UUID;
 
 import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
 import org.hl7.fhir.r4.model.Bundle.BundleType;
 import org.hl7.fhir.r4.model.Bundle.HTTPVerb;
 import org.hl7.fhir.r4.model.Resource;
 
+import de.uzl.itcr.mimic2fhir.tools.ResourceIds;
+
 /**
  * Handles bundle operations
  * @author Stefanie Ververs
  *
  */
 public class BundleControl {
+	//request part of each entry: "request":{"method":"POST","url":""} + fullUrl, ifNoneExist..
+	private static final int ENTRY_OVERHEAD = 60;
+	
 	private Bundle transactionBundle;
 	private int numberOfResorces= 0;
 	private int internalBundleNumber = 0;
 	
+	//limits for splitting
+	private long estimatedBytes = 0;
+	private long maxBytes = Long.MAX_VALUE;
+	private int maxResources = Integer.MAX_VALUE;
+	private double sizeFactor = 1.0;
+	
+	private UploadMode uploadMode = UploadMode.CONDITIONAL_CREATE;
+	
+	//last estimated resource (isFull followed by add -> estimate only once)
+	private Resource lastEstimated;
+	private long lastEstimate;
+	
 	/**
 	 * creates a new transaction bundle
 	 */
@@ -43,6 +61,19 @@ public class BundleControl {
 		internalBundleNumber = 1;
 	}	
 	
+	/**
+	 * creates a new transaction bundle with limits for splitting (see {@link #isFull(Resource)})
+	 * @param encoding wire format the size estimate refers to
+	 * @param maxBytes max. estimated size of encoded bundle (uncompressed)
+	 * @param maxResources max. number of resources in bundle
+	 */
+	public BundleControl(BundleEncoding encoding, long maxBytes, int maxResources) {
+		this();
+		this.sizeFactor = encoding.getSizeFactor();
+		this.maxBytes = maxBytes;
+		this.maxResources = maxResources;
+	}
+	
 	/**
 	 * Number of resources currently present in bundle
 	 * @return number of resources
@@ -51,6 +82,32 @@ public class BundleControl {
 		return numberOfResorces;
 	}
 	
+	/**
+	 * Set how resources are written to the server: conditional create (default) or PUT with client assigned ids
+	 * @param uploadMode upload mode
+	 */
+	public void setUploadMode(UploadMode uploadMode) {
+		this.uploadMode = uploadMode;
+	}
+	
+	/**
+	 * Estimated size of the encoded bundle (uncompressed, in the wire format given at construction)
+	 * @return estimated bytes
+	 */
+	public long getEstimatedBytes() {
+		return estimatedBytes;
+	}
+	
+	/**
+	 * Would adding this resource exceed the byte budget or the resource limit?
+	 * The byte budget is checked first, the number of resources is a secondary cap.
+	 * @param next resource to be added next
+	 * @return true, if a new bundle should be started before adding the resource
+	 */
+	public boolean isFull(Resource next) {
+		return estimatedBytes + estimate(next) > maxBytes || numberOfResorces + 1 > maxResources;
+	}
+	
 	/**
 	 * Internal bundle number (how often bundle "reset"?) 
 	 * @return internal bundle number
@@ -74,6 +131,7 @@ public class BundleControl {
         transactionBundle.setId(UUID.randomUUID().toString());
 		transactionBundle.setType(BundleType.TRANSACTION);
 		numberOfResorces = 0;
+		estimatedBytes = 0;
 		internalBundleNumber++;
 	}
 	
@@ -91,14 +149,7 @@ public class BundleControl {
 	 */
 	public void addResourceToBundle(Resource rToAdd)
 	{		
-		transactionBundle.addEntry()
-		   .setResource(rToAdd)
-		   .getRequest()
-		      .setUrl(rToAdd.fhirType())
-		      .setMethod(HTTPVerb.POST);
-		
-		numberOfResorces++;
-
+		addEntry(rToAdd, null, null);
 	}
 	
 	/**
@@ -106,32 +157,52 @@ public class BundleControl {
 	 * @param rToAdd fhir-resource to add
 	 */
 	public void addUUIDResourceToBundle(Resource rToAdd){
-		transactionBundle.addEntry()
-		   .setFullUrl(rToAdd.getId())
-		   .setResource(rToAdd)
-		   .getRequest()
-		      .setUrl(rToAdd.fhirType())
-		      .setMethod(HTTPVerb.POST);
-		
-		numberOfResorces++;
-		
+		addEntry(rToAdd, rToAdd.getId(), null);
 	}
 	
 	/**
 	 * Conditional Create:
 	 * Add fhir resource with UUID to current bundle and set condition (create if none exist)
+	 * In upload mode PUT, the resource is sent as PUT Type/id instead (no condition)
 	 * @param rToAdd fhir-resource to add
 	 * @param condition search-condition to match 
 	 */
 	public void addUUIDResourceWithConditionToBundle(Resource rToAdd, String condition) {
-		transactionBundle.addEntry()
-		   .setFullUrl(rToAdd.getId())
-		   .setResource(rToAdd)
-		   .getRequest()
-		      .setUrl(rToAdd.fhirType())
-		      .setIfNoneExist(condition)
-		      .setMethod(HTTPVerb.POST);
+		addEntry(rToAdd, rToAdd.getId(), condition);
+	}
+	
+	private void addEntry(Resource rToAdd, String fullUrl, String condition) {
+		BundleEntryComponent entry = transactionBundle.addEntry()
+				.setFullUrl(fullUrl)
+				.setResource(rToAdd);
+		
+		if(uploadMode == UploadMode.PUT && rToAdd.hasId()) {
+			//client assigned id -> no search on server, rerun overwrites
+			entry.setFullUrl(rToAdd.getId())
+				.getRequest()
+					.setUrl(rToAdd.fhirType() + "/" + ResourceIds.toLogicalId(rToAdd.getId()))
+					.setMethod(HTTPVerb.PUT);
+		}
+		else {
+			entry.getRequest()
+			      .setUrl(rToAdd.fhirType())
+			      .setIfNoneExist(condition)
+			      .setMethod(HTTPVerb.POST);
+		}
 		
 		numberOfResorces++;
+		estimatedBytes += estimate(rToAdd);
+		if(entry.getRequest().hasIfNoneExist()) {
+			estimatedBytes += (long) (condition.length() * sizeFactor);
+		}
+	}
+	
+	private long estimate(Resource r) {
+		if(r != lastEstimated) {
+			lastEstimated = r;
+			long bytes = ResourceSizeEstimator.estimate(r) + ENTRY_OVERHEAD + (r.hasId() ? r.getId().length() : 0);
+			lastEstimate = (long) (bytes * sizeFactor);
+		}
+		return lastEstimate;
 	}
 }
@@ -0,0 +1,181 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.work;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.hl7.fhir.r4.model.Bundle;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+
+/**
+ * Encodes bundles to bytes in the configured wire format (json/xml, compact/pretty, optional gzip)
+ * 
+ */
+public class BundleEncoder {
+	public static final String GZIP = "gzip";
+	
+	private static final Metrics.Timer ENCODE_TIMER = Metrics.timer("encode");
+	
+	private final FhirContext ctx;
+	private final BundleEncoding encoding;
+	private final boolean gzip;
+	
+	//parsers are not thread-safe, but can be reused: one per thread
+	private final ThreadLocal<IParser> parser;
+	
+	/**
+	 * Create new encoder with the shared fhir context
+	 * @param encoding wire format
+	 * @param gzip compress encoded bundles?
+	 */
+	public BundleEncoder(BundleEncoding encoding, boolean gzip) {
+		this(FhirContextHolder.getContext(), encoding, gzip);
+	}
+	
+	/**
+	 * Create new encoder
+	 * @param ctx fhir context
+	 * @param encoding wire format
+	 * @param gzip compress encoded bundles?
+	 */
+	public BundleEncoder(FhirContext ctx, BundleEncoding encoding, boolean gzip) {
+		this.ctx = ctx;
+		this.encoding = encoding;
+		this.gzip = gzip;
+		this.parser = ThreadLocal.withInitial(this::newParser);
+	}
+	
+	/**
+	 * Encode bundle to bytes (UTF-8, gzipped if configured)
+	 * @param bundle bundle to encode
+	 * @return encoded bundle
+	 */
+	public byte[] encode(Bundle bundle) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		encode(bundle, out);
+		return out.toByteArray();
+	}
+	
+	/**
+	 * Encode bundle into a stream (UTF-8, gzipped if configured)
+	 * @param bundle bundle to encode
+	 * @param out target stream; it is closed afterwards
+	 */
+	public void encode(Bundle bundle, OutputStream out) {
+		long start = System.nanoTime();
+		try {
+			OutputStream target = gzip ? new GZIPOutputStream(out, 64 * 1024) : out;
+			try (Writer writer = new OutputStreamWriter(target, StandardCharsets.UTF_8)) {
+				parser.get().encodeResourceToWriter(bundle, writer);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		ENCODE_TIMER.stop(start);
+	}
+	
+	/**
+	 * Encode bundle to string (never gzipped)
+	 * @param bundle bundle to encode
+	 * @return encoded bundle
+	 */
+	public String encodeToString(Bundle bundle) {
+		long start = System.nanoTime();
+		String text = parser.get().encodeResourceToString(bundle);
+		ENCODE_TIMER.stop(start);
+		return text;
+	}
+	
+	/**
+	 * Parse a bundle encoded in this encoder's format (not gzipped)
+	 * @param text encoded bundle
+	 * @return bundle
+	 */
+	public Bundle parse(String text) {
+		return parser.get().parseResource(Bundle.class, text);
+	}
+	
+	/**
+	 * Get the readable text of an encoded bundle (unzips if necessary)
+	 * @param payload encoded bundle
+	 * @param contentEncoding content encoding of payload (gzip or null)
+	 * @return bundle text
+	 */
+	public static String decodeToString(byte[] payload, String contentEncoding) {
+		if(!GZIP.equals(contentEncoding)) {
+			return new String(payload, StandardCharsets.UTF_8);
+		}
+		try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(payload))) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length * 4);
+			byte[] buffer = new byte[64 * 1024];
+			int read;
+			while((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+			return new String(out.toByteArray(), StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private IParser newParser() {
+		IParser parser = encoding.isJson() ? ctx.newJsonParser() : ctx.newXmlParser();
+		return parser.setPrettyPrint(encoding.isPrettyPrint());
+	}
+
+	/**
+	 * Wire format of this encoder
+	 * @return encoding
+	 */
+	public BundleEncoding getEncoding() {
+		return encoding;
+	}
+	
+	/**
+	 * Mime type of encoded bundles
+	 * @return content type
+	 */
+	public String getContentType() {
+		return encoding.getContentType();
+	}
+	
+	/**
+	 * Content encoding of encoded bundles
+	 * @return "gzip" or null
+	 */
+	public String getContentEncoding() {
+		return gzip ? GZIP : null;
+	}
+	
+	/**
+	 * Are encoded bundles gzipped?
+	 * @return true, if gzipped
+	 */
+	public boolean isGzip() {
+		return gzip;
+	}
+}
@@ -0,0 +1,95 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.work;
+
+/**
+ * Encoding of bundles on the wire (queue, files, server)
+ * -JSON: compact json
+ * -JSON_PRETTY: indented json (debugging)
+ * -XML: compact xml
+ * -XML_PRETTY: indented xml (debugging)
+ *
+ */
+public enum BundleEncoding {
+	JSON("application/fhir+json", "json", false, 1.0),
+	JSON_PRETTY("application/fhir+json", "json", true, 1.5),
+	XML("application/fhir+xml", "xml", false, 1.55),
+	XML_PRETTY("application/fhir+xml", "xml", true, 2.35);
+	
+	private final String contentType;
+	private final String fileExtension;
+	private final boolean prettyPrint;
+	private final double sizeFactor;
+	
+	private BundleEncoding(String contentType, String fileExtension, boolean prettyPrint, double sizeFactor) {
+		this.contentType = contentType;
+		this.fileExtension = fileExtension;
+		this.prettyPrint = prettyPrint;
+		this.sizeFactor = sizeFactor;
+	}
+
+	/**
+	 * Mime type for this encoding
+	 * @return content type
+	 */
+	public String getContentType() {
+		return contentType;
+	}
+
+	/**
+	 * File extension (without dot) for this encoding
+	 * @return file extension
+	 */
+	public String getFileExtension() {
+		return fileExtension;
+	}
+
+	/**
+	 * Indent output?
+	 * @return true, if pretty printed
+	 */
+	public boolean isPrettyPrint() {
+		return prettyPrint;
+	}
+	
+	/**
+	 * Size of this encoding relative to compact json (measured with EncodingBenchmark, uncompressed)
+	 * @return size factor
+	 */
+	public double getSizeFactor() {
+		return sizeFactor;
+	}
+	
+	/**
+	 * Json or xml?
+	 * @return true, if json
+	 */
+	public boolean isJson() {
+		return this == JSON || this == JSON_PRETTY;
+	}
+	
+	/**
+	 * Find encoding for a mime type (compact variant)
+	 * @param contentType content type, e.g. application/fhir+json
+	 * @return encoding
+	 */
+	public static BundleEncoding fromContentType(String contentType) {
+		if(contentType != null && contentType.contains("json")) {
+			return JSON;
+		}
+		return XML;
+	}
+}
@@ -30,6 +30,9 @@ import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.util.EntityUtils;
 
+import de.uzl.itcr.mimic2fhir.queue.TransportType;
+import de.uzl.itcr.mimic2fhir.queue.WorkQueueType;
+
 /**
  * Configuration for the transformation
  * Contains Server, DB and other access information for mimiciii-postgres-db as well as fhir server
@@ -40,6 +43,59 @@ public class Config {
 	//private: FHIR-options
 	private String fhirServer;
 	private String fhirxmlFilePath;
+	private BundleEncoding bundleEncoding = BundleEncoding.XML_PRETTY;
+	private boolean gzipBundles;
+	private long bundleByteLimit = 20L * 1024 * 1024;
+	private int bundleResourceLimit = 15000;
+	private NarrativeMode narrativeMode = NarrativeMode.FULL;
+	
+	//private: Upload-options
+	private UploadMode uploadMode = UploadMode.CONDITIONAL_CREATE;
+	private int uploadMaxInFlight = 8;
+	private boolean uploadAdaptive = true;
+	private int uploadMaxRetries = 5;
+	private long uploadRetryBackoffMs = 500;
+	
+	//private: Pipeline-options
+	private int extractThreads = 1;
+	private int convertThreads = 1;
+	private int encodeThreads = 1;
+	private int sinkThreads = 1;
+	private int stageQueueCapacity = 8;
+	private boolean sizeAwareScheduling;
+	private int eventsPerTask = 100000;
+	private long memoryBudget;
+	private int eventSpillThreshold;
+	private String eventSpillPath;
+	private long metricsLogInterval = 60000;
+	private long progressInterval = 10000;
+	private String progressFile;
+	private String traceFile;
+	private double slowPatientPercentile = 99;
+	
+	//private: Queue-options
+	private TransportType transport = TransportType.AMQP;
+	private int queueCapacity = 4;
+	private int consumerThreads = 1;
+	private boolean startLocalConsumers = true;
+	private String amqpHost = "localhost";
+	private int amqpPrefetch = 2;
+	private int amqpConfirmBatchSize = 16;
+	private String spoolPath;
+	
+	//private: Distribution-options (coordinator/worker)
+	private WorkQueueType workQueue = WorkQueueType.AMQP;
+	private int workItemSize = 100;
+	private String workQueueSchema = "mimic2fhir";
+	private String workQueueRun = "default";
+	private int workClaimBatchSize = 1;
+	private long workHeartbeatMs = 30000;
+	
+	//private: Bulk-import-options
+	private String bulkImportPath;
+	private String bulkImportHost = "localhost";
+	private int bulkImportPort;
+	private long bulkImportPollMs = 5000;
 	
 	//private: FHIR-Server-Auth
 	private String ldapUser;
@@ -238,6 +294,710 @@ public class Config {
 		this.fhirxmlFilePath = fhirxmlFilePath;
 	}
 	
+	/**
+	 * Wire format of bundles (queue, files, server) - default: pretty printed xml
+	 * @return encoding
+	 */
+	public BundleEncoding getBundleEncoding() {
+		return bundleEncoding;
+	}
+
+	/**
+	 * Set wire format of bundles; compact json is smallest and fastest, pretty variants are for debugging
+	 * @param bundleEncoding encoding
+	 */
+	public void setBundleEncoding(BundleEncoding bundleEncoding) {
+		this.bundleEncoding = bundleEncoding;
+	}
+
+	/**
+	 * Are encoded bundles gzipped (queue payload, files and server push)?
+	 * @return true, if gzipped
+	 */
+	public boolean isGzipBundles() {
+		return gzipBundles;
+	}
+
+	/**
+	 * Set if encoded bundles are gzipped (queue payload, files and server push)
+	 * @param gzipBundles gzip bundles?
+	 */
+	public void setGzipBundles(boolean gzipBundles) {
+		this.gzipBundles = gzipBundles;
+	}
+	
+	/**
+	 * Max. (estimated) size of an encoded bundle in bytes, before compression - default 20MB
+	 * @return byte budget per bundle
+	 */
+	public long getBundleByteLimit() {
+		return bundleByteLimit;
+	}
+
+	/**
+	 * Set max. (estimated) size of an encoded bundle in bytes; bigger admissions are split into several bundles
+	 * @param bundleByteLimit byte budget per bundle
+	 */
+	public void setBundleByteLimit(long bundleByteLimit) {
+		this.bundleByteLimit = bundleByteLimit;
+	}
+
+	/**
+	 * Max. number of resources in a bundle - default 15000
+	 * @return resource limit per bundle
+	 */
+	public int getBundleResourceLimit() {
+		return bundleResourceLimit;
+	}
+
+	/**
+	 * Set max. number of resources in a bundle (secondary cap next to the byte budget)
+	 * @param bundleResourceLimit resource limit per bundle
+	 */
+	public void setBundleResourceLimit(int bundleResourceLimit) {
+		this.bundleResourceLimit = bundleResourceLimit;
+	}
+	
+	/**
+	 * Narrative generation for encoded resources - default: FULL
+	 * @return narrative mode
+	 */
+	public NarrativeMode getNarrativeMode() {
+		return narrativeMode;
+	}
+
+	/**
+	 * Set narrative generation for encoded resources: 
+	 * OFF (fastest), LOW_VOLUME (not for Observations etc.) or FULL. 
+	 * Applied to the shared fhir context once, when the application starts (Mimic2Fhir.start() etc.)
+	 * @param narrativeMode narrative mode
+	 */
+	public void setNarrativeMode(NarrativeMode narrativeMode) {
+		this.narrativeMode = narrativeMode;
+	}
+	
+	/**
+	 * How resources are written to the server - default: conditional create
+	 * @return upload mode
+	 */
+	public UploadMode getUploadMode() {
+		return uploadMode;
+	}
+
+	/**
+	 * Set how resources are written to the server: 
+	 * conditional create (POST with ifNoneExist) or PUT with ids derived from mimic keys (no searches on server, idempotent)
+	 * @param uploadMode upload mode
+	 */
+	public void setUploadMode(UploadMode uploadMode) {
+		this.uploadMode = uploadMode;
+	}
+	
+	/**
+	 * Number of threads reading patients from the database (one db connection each) - default: 1
+	 * @return number of threads
+	 */
+	public int getExtractThreads() {
+		return extractThreads;
+	}
+
+	/**
+	 * Set number of threads reading patients from the database (one db connection each)
+	 * @param extractThreads number of threads
+	 */
+	public void setExtractThreads(int extractThreads) {
+		this.extractThreads = extractThreads;
+	}
+	
+	/**
+	 * Number of threads converting patients to bundles - default: 1
+	 * @return number of threads
+	 */
+	public int getConvertThreads() {
+		return convertThreads;
+	}
+
+	/**
+	 * Set number of threads converting patients to bundles
+	 * @param convertThreads number of threads
+	 */
+	public void setConvertThreads(int convertThreads) {
+		this.convertThreads = convertThreads;
+	}
+	
+	/**
+	 * Number of threads encoding bundles - default: 1
+	 * @return number of threads
+	 */
+	public int getEncodeThreads() {
+		return encodeThreads;
+	}
+
+	/**
+	 * Set number of threads encoding bundles
+	 * @param encodeThreads number of threads
+	 */
+	public void setEncodeThreads(int encodeThreads) {
+		this.encodeThreads = encodeThreads;
+	}
+	
+	/**
+	 * Number of threads handing bundles to the transport - default: 1
+	 * @return number of threads
+	 */
+	public int getSinkThreads() {
+		return sinkThreads;
+	}
+
+	/**
+	 * Set number of threads handing bundles to the transport
+	 * @param sinkThreads number of threads
+	 */
+	public void setSinkThreads(int sinkThreads) {
+		this.sinkThreads = sinkThreads;
+	}
+	
+	/**
+	 * Max. number of items waiting in front of each pipeline stage - default: 8
+	 * @return stage queue capacity
+	 */
+	public int getStageQueueCapacity() {
+		return stageQueueCapacity;
+	}
+
+	/**
+	 * Set max. number of items waiting in front of each pipeline stage
+	 * @param stageQueueCapacity stage queue capacity
+	 */
+	public void setStageQueueCapacity(int stageQueueCapacity) {
+		this.stageQueueCapacity = stageQueueCapacity;
+	}
+	
+	/**
+	 * Schedule patients by estimated size (largest first) instead of row id order? - default: false
+	 * @return true: size-aware scheduling
+	 */
+	public boolean isSizeAwareScheduling() {
+		return sizeAwareScheduling;
+	}
+
+	/**
+	 * Schedule patients by estimated size: event counts per admission are queried before the run, 
+	 * patients are converted largest first and giant admissions are split into parts (see eventsPerTask). 
+	 * In a distributed run the work items are cut at about the same cost. The counting query takes some time - worth it for large runs.
+	 * @param sizeAwareScheduling true: size-aware scheduling
+	 */
+	public void setSizeAwareScheduling(boolean sizeAwareScheduling) {
+		this.sizeAwareScheduling = sizeAwareScheduling;
+	}
+	
+	/**
+	 * Max. number of chart events of an admission converted by one task (size-aware scheduling) - default: 100000
+	 * @return chart events per task
+	 */
+	public int getEventsPerTask() {
+		return eventsPerTask;
+	}
+
+	/**
+	 * Set max. number of chart events of an admission converted by one task (size-aware scheduling); 
+	 * larger admissions are split into parts that run in parallel
+	 * @param eventsPerTask chart events per task
+	 */
+	public void setEventsPerTask(int eventsPerTask) {
+		this.eventsPerTask = eventsPerTask;
+	}
+	
+	/**
+	 * Memory budget for loaded patients in bytes - default: 0 (no limit)
+	 * @return memory budget
+	 */
+	public long getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	/**
+	 * Set memory budget for loaded patients in bytes (see MemoryGovernor): the extraction waits while the estimated size 
+	 * of the patients in the pipeline would exceed it. The conversion needs memory for the FHIR resources as well - 
+	 * a quarter of the max. heap is a good start.
+	 * @param memoryBudget memory budget, 0: no limit
+	 */
+	public void setMemoryBudget(long memoryBudget) {
+		this.memoryBudget = memoryBudget;
+	}
+	
+	/**
+	 * Number of chart events of an admission above which they are staged on disk - default: 0 (never)
+	 * @return spill threshold
+	 */
+	public int getEventSpillThreshold() {
+		return eventSpillThreshold;
+	}
+
+	/**
+	 * Set number of chart events of an admission above which they are staged in a spill file (see ChartEventSpill) 
+	 * and converted in chunks, so oversized admissions are converted with fixed memory
+	 * @param eventSpillThreshold spill threshold, 0: never
+	 */
+	public void setEventSpillThreshold(int eventSpillThreshold) {
+		this.eventSpillThreshold = eventSpillThreshold;
+	}
+	
+	/**
+	 * Directory of the chart event spill files
+	 * @return directory, null: temporary directory
+	 */
+	public String getEventSpillPath() {
+		return eventSpillPath;
+	}
+
+	/**
+	 * Set directory of the chart event spill files (local disk; files are deleted after conversion)
+	 * @param eventSpillPath directory, null: temporary directory
+	 */
+	public void setEventSpillPath(String eventSpillPath) {
+		this.eventSpillPath = eventSpillPath;
+	}
+	
+	/**
+	 * Interval of the metrics log line in ms - default: 60000
+	 * @return interval
+	 */
+	public long getMetricsLogInterval() {
+		return metricsLogInterval;
+	}
+
+	/**
+	 * Set interval of the metrics log line (timers and counters of db queries, conversion, encoding, queue and sink, see Metrics); 
+	 * the metrics are available over JMX anyway
+	 * @param metricsLogInterval interval in ms, 0: no log line
+	 */
+	public void setMetricsLogInterval(long metricsLogInterval) {
+		this.metricsLogInterval = metricsLogInterval;
+	}
+	
+	/**
+	 * Interval of the progress reports in ms - default: 10000
+	 * @return interval
+	 */
+	public long getProgressInterval() {
+		return progressInterval;
+	}
+
+	/**
+	 * Set interval of the progress reports (console line and status file, see ProgressReporter)
+	 * @param progressInterval interval in ms, 0: no progress reports
+	 */
+	public void setProgressInterval(long progressInterval) {
+		this.progressInterval = progressInterval;
+	}
+	
+	/**
+	 * JSON status file written with every progress report
+	 * @return file path, null: console only
+	 */
+	public String getProgressFile() {
+		return progressFile;
+	}
+
+	/**
+	 * Set JSON status file written with every progress report (replaced atomically, so schedulers can poll it)
+	 * @param progressFile file path, null: console only
+	 */
+	public void setProgressFile(String progressFile) {
+		this.progressFile = progressFile;
+	}
+	
+	/**
+	 * File of the per-patient trace records
+	 * @return file path, null: no traces
+	 */
+	public String getTraceFile() {
+		return traceFile;
+	}
+
+	/**
+	 * Set file of the per-patient trace records (see TraceLog): time and rows of every db fetch, conversion, encoding and sink time 
+	 * and bundle bytes per patient (or admission part)
+	 * @param traceFile file path, *.csv: CSV, else NDJSON; null: no traces
+	 */
+	public void setTraceFile(String traceFile) {
+		this.traceFile = traceFile;
+	}
+	
+	/**
+	 * Latency percentile above which a traced patient is reported as slow - default: 99
+	 * @return percentile
+	 */
+	public double getSlowPatientPercentile() {
+		return slowPatientPercentile;
+	}
+
+	/**
+	 * Set latency percentile (of the recent patients) above which a traced patient is reported as slow
+	 * @param slowPatientPercentile percentile, e.g. 99
+	 */
+	public void setSlowPatientPercentile(double slowPatientPercentile) {
+		this.slowPatientPercentile = slowPatientPercentile;
+	}
+	
+	/**
+	 * Transport for bundle messages - default: AMQP (RabbitMQ)
+	 * @return transport
+	 */
+	public TransportType getTransport() {
+		return transport;
+	}
+
+	/**
+	 * Set transport for bundle messages: AMQP (RabbitMQ on localhost) or IN_PROCESS (bounded queue, no broker)
+	 * @param transport transport
+	 */
+	public void setTransport(TransportType transport) {
+		this.transport = transport;
+	}
+
+	/**
+	 * Max. number of bundles waiting in the in-process queue - default: 4
+	 * @return queue capacity
+	 */
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	/**
+	 * Set max. number of bundles waiting in the in-process queue; the converter blocks while the queue is full.
+	 * Memory needed is about capacity * bundleByteLimit.
+	 * @param queueCapacity queue capacity
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * Number of threads (RabbitMQ: channels) processing bundles from the queue - default: 1
+	 * @return consumer threads
+	 */
+	public int getConsumerThreads() {
+		return consumerThreads;
+	}
+
+	/**
+	 * Set number of threads processing bundles from the queue
+	 * @param consumerThreads consumer threads
+	 */
+	public void setConsumerThreads(int consumerThreads) {
+		this.consumerThreads = consumerThreads;
+	}
+	
+	/**
+	 * Start consumers in the converting process? - default: true
+	 * @return true, if start() also processes bundles
+	 */
+	public boolean isStartLocalConsumers() {
+		return startLocalConsumers;
+	}
+
+	/**
+	 * Set whether start() also processes bundles; set to false, if only consumers on other machines (Mimic2Fhir.startConsumer()) process the RabbitMQ queue (AMQP transport only)
+	 * @param startLocalConsumers start local consumers?
+	 */
+	public void setStartLocalConsumers(boolean startLocalConsumers) {
+		this.startLocalConsumers = startLocalConsumers;
+	}
+
+	/**
+	 * RabbitMQ host - default: localhost
+	 * @return host
+	 */
+	public String getAmqpHost() {
+		return amqpHost;
+	}
+
+	/**
+	 * Set RabbitMQ host
+	 * @param amqpHost host
+	 */
+	public void setAmqpHost(String amqpHost) {
+		this.amqpHost = amqpHost;
+	}
+
+	/**
+	 * Max. number of unacknowledged bundles per consumer channel - default: 2
+	 * @return prefetch
+	 */
+	public int getAmqpPrefetch() {
+		return amqpPrefetch;
+	}
+
+	/**
+	 * Set max. number of unacknowledged bundles per consumer channel (bundles are acknowledged after processing)
+	 * @param amqpPrefetch prefetch
+	 */
+	public void setAmqpPrefetch(int amqpPrefetch) {
+		this.amqpPrefetch = amqpPrefetch;
+	}
+
+	/**
+	 * Number of bundles published before waiting for the broker's confirms - default: 16
+	 * @return confirm batch size
+	 */
+	public int getAmqpConfirmBatchSize() {
+		return amqpConfirmBatchSize;
+	}
+
+	/**
+	 * Set number of bundles published before waiting for the broker's confirms
+	 * @param amqpConfirmBatchSize confirm batch size
+	 */
+	public void setAmqpConfirmBatchSize(int amqpConfirmBatchSize) {
+		this.amqpConfirmBatchSize = amqpConfirmBatchSize;
+	}
+	
+	/**
+	 * Spool directory for bundles (claim check) - default: null (bundles are sent through the queue)
+	 * @return spool directory or null
+	 */
+	public String getSpoolPath() {
+		return spoolPath;
+	}
+
+	/**
+	 * Set spool directory: bundles are written to files there and only references are sent through the queue.
+	 * Producer and all consumers need access to the directory under the same path.
+	 * @param spoolPath spool directory, null: send bundles through the queue
+	 */
+	public void setSpoolPath(String spoolPath) {
+		this.spoolPath = spoolPath;
+	}
+	
+	/**
+	 * Backend of the work queue of a distributed run (coordinator/worker) - default: AMQP
+	 * @return work queue backend
+	 */
+	public WorkQueueType getWorkQueue() {
+		return workQueue;
+	}
+
+	/**
+	 * Set backend of the work queue of a distributed run
+	 * @param workQueue work queue backend
+	 */
+	public void setWorkQueue(WorkQueueType workQueue) {
+		this.workQueue = workQueue;
+	}
+
+	/**
+	 * Max. number of patients per work item - default: 100
+	 * @return patients per work item
+	 */
+	public int getWorkItemSize() {
+		return workItemSize;
+	}
+
+	/**
+	 * Set max. number of patients per work item. 
+	 * A worker acknowledges an item after all of its bundles are processed, so small items lose less work when a worker fails.
+	 * @param workItemSize patients per work item
+	 */
+	public void setWorkItemSize(int workItemSize) {
+		this.workItemSize = workItemSize;
+	}
+	
+	/**
+	 * Schema of the work queue table (POSTGRES work queue) - default: mimic2fhir
+	 * @return schema name
+	 */
+	public String getWorkQueueSchema() {
+		return workQueueSchema;
+	}
+
+	/**
+	 * Set schema of the work queue table (POSTGRES work queue); created if necessary
+	 * @param workQueueSchema schema name
+	 */
+	public void setWorkQueueSchema(String workQueueSchema) {
+		this.workQueueSchema = workQueueSchema;
+	}
+
+	/**
+	 * Name of the run in the work queue table (POSTGRES work queue) - default: "default"
+	 * @return run name
+	 */
+	public String getWorkQueueRun() {
+		return workQueueRun;
+	}
+
+	/**
+	 * Set name of the run in the work queue table (POSTGRES work queue). 
+	 * Coordinator and workers of a run use the same name; starting the coordinator with the name of an earlier run resumes it.
+	 * @param workQueueRun run name
+	 */
+	public void setWorkQueueRun(String workQueueRun) {
+		this.workQueueRun = workQueueRun;
+	}
+
+	/**
+	 * Number of work items a worker claims at once (POSTGRES work queue) - default: 1
+	 * @return claim batch size
+	 */
+	public int getWorkClaimBatchSize() {
+		return workClaimBatchSize;
+	}
+
+	/**
+	 * Set number of work items a worker claims at once (POSTGRES work queue)
+	 * @param workClaimBatchSize claim batch size
+	 */
+	public void setWorkClaimBatchSize(int workClaimBatchSize) {
+		this.workClaimBatchSize = workClaimBatchSize;
+	}
+
+	/**
+	 * Heartbeat interval of workers in ms (POSTGRES work queue) - default: 30000
+	 * @return heartbeat interval
+	 */
+	public long getWorkHeartbeatMs() {
+		return workHeartbeatMs;
+	}
+
+	/**
+	 * Set heartbeat interval of workers in ms (POSTGRES work queue). 
+	 * Items without heartbeat for four intervals are taken over by other workers.
+	 * @param workHeartbeatMs heartbeat interval
+	 */
+	public void setWorkHeartbeatMs(long workHeartbeatMs) {
+		this.workHeartbeatMs = workHeartbeatMs;
+	}
+	
+	/**
+	 * Directory for the NDJSON files of a bulk import
+	 * @return directory, null: temporary directory
+	 */
+	public String getBulkImportPath() {
+		return bulkImportPath;
+	}
+
+	/**
+	 * Set directory for the NDJSON files of a bulk import (null: temporary directory)
+	 * @param bulkImportPath directory
+	 */
+	public void setBulkImportPath(String bulkImportPath) {
+		this.bulkImportPath = bulkImportPath;
+	}
+
+	/**
+	 * Host name the fhir server uses to download the NDJSON files - default: localhost
+	 * @return host name of this machine
+	 */
+	public String getBulkImportHost() {
+		return bulkImportHost;
+	}
+
+	/**
+	 * Set host name the fhir server uses to download the NDJSON files
+	 * @param bulkImportHost host name of this machine (as seen from the fhir server)
+	 */
+	public void setBulkImportHost(String bulkImportHost) {
+		this.bulkImportHost = bulkImportHost;
+	}
+
+	/**
+	 * Port for serving the NDJSON files - default: 0 (any free port)
+	 * @return port
+	 */
+	public int getBulkImportPort() {
+		return bulkImportPort;
+	}
+
+	/**
+	 * Set port for serving the NDJSON files (0: any free port)
+	 * @param bulkImportPort port
+	 */
+	public void setBulkImportPort(int bulkImportPort) {
+		this.bulkImportPort = bulkImportPort;
+	}
+
+	/**
+	 * Interval for polling the import status - default: 5000 ms
+	 * @return interval in ms
+	 */
+	public long getBulkImportPollMs() {
+		return bulkImportPollMs;
+	}
+
+	/**
+	 * Set interval for polling the import status
+	 * @param bulkImportPollMs interval in ms
+	 */
+	public void setBulkImportPollMs(long bulkImportPollMs) {
+		this.bulkImportPollMs = bulkImportPollMs;
+	}
+	
+	/**
+	 * Max. number of concurrent transactions when pushing to the fhir server - default 8
+	 * @return max. transactions in flight
+	 */
+	public int getUploadMaxInFlight() {
+		return uploadMaxInFlight;
+	}
+
+	/**
+	 * Set max. number of concurrent transactions when pushing to the fhir server
+	 * @param uploadMaxInFlight max. transactions in flight
+	 */
+	public void setUploadMaxInFlight(int uploadMaxInFlight) {
+		this.uploadMaxInFlight = uploadMaxInFlight;
+	}
+
+	/**
+	 * Adapt number of concurrent transactions to server latency (up to uploadMaxInFlight)? - default true
+	 * @return true, if adaptive
+	 */
+	public boolean isUploadAdaptive() {
+		return uploadAdaptive;
+	}
+
+	/**
+	 * Set if number of concurrent transactions adapts to server latency; if false, always uploadMaxInFlight are used
+	 * @param uploadAdaptive adaptive concurrency?
+	 */
+	public void setUploadAdaptive(boolean uploadAdaptive) {
+		this.uploadAdaptive = uploadAdaptive;
+	}
+
+	/**
+	 * Max. number of retries of a transaction on 429/5xx or connection problems - default 5
+	 * @return max. retries
+	 */
+	public int getUploadMaxRetries() {
+		return uploadMaxRetries;
+	}
+
+	/**
+	 * Set max. number of retries of a transaction on 429/5xx or connection problems
+	 * @param uploadMaxRetries max. retries
+	 */
+	public void setUploadMaxRetries(int uploadMaxRetries) {
+		this.uploadMaxRetries = uploadMaxRetries;
+	}
+
+	/**
+	 * Wait time before first retry in ms, doubled for each further retry - default 500
+	 * @return backoff in ms
+	 */
+	public long getUploadRetryBackoffMs() {
+		return uploadRetryBackoffMs;
+	}
+
+	/**
+	 * Set wait time before first retry in ms, doubled for each further retry
+	 * @param uploadRetryBackoffMs backoff in ms
+	 */
+	public void setUploadRetryBackoffMs(long uploadRetryBackoffMs) {
+		this.uploadRetryBackoffMs = uploadRetryBackoffMs;
+	}
+	
 	/**
 	 * Get Mimic-Database-Name (e.g. mimic)
 	 * @return DB-Name
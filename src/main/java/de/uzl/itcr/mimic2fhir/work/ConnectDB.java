@@ -15,14 +15,20 @@ limitations under the License.
 /***********************************************************************/
 package de.uzl.itcr.mimic2fhir.work;
 
+import java.nio.file.Paths;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import de.uzl.itcr.mimic2fhir.model.MAdmission;
 import de.uzl.itcr.mimic2fhir.model.MCaregiver;
@@ -35,6 +41,7 @@ import de.uzl.itcr.mimic2fhir.model.MPrescription;
 import de.uzl.itcr.mimic2fhir.model.MProcedure;
 import de.uzl.itcr.mimic2fhir.model.MTransfer;
 import de.uzl.itcr.mimic2fhir.model.MWard;
+import de.uzl.itcr.mimic2fhir.tools.ChartEventSpill;
 
 /**
  * Connection, access and querys to postgresDB
@@ -42,8 +49,13 @@ import de.uzl.itcr.mimic2fhir.model.MWard;
  *
  */
 public class ConnectDB {
+	//tables with query timers and row counters (db.<table>, db.<table>.rows, see Metrics)
+	static final String[] TABLES = {"patients", "admissions", "chartevents", "labevents", "noteevents", "prescriptions", "diagnoses", "procedures", "transfers"};
+	
 	private Config configuration;	
 	private Connection connection = null;
+	//trace of the patient being loaded (see PatientTrace)
+	private PatientTrace trace;
 	
 	/**
 	 * Create new DB-Connection with Config-Object
@@ -86,6 +98,19 @@ public class ConnectDB {
 		}
 	}
 	
+	/**
+	 * Close DB-Connection
+	 */
+	public void close() {
+		try {
+			if(connection != null) {
+				connection.close();
+			}
+		} catch (SQLException e) {
+			System.out.println("Closing the database connection failed (" + e.getMessage() + ")");
+		}
+	}
+	
 	/**
 	 * How many patients in MIMICIII.Patients?
 	 * @return number of patients
@@ -112,7 +137,7 @@ public class ConnectDB {
 	 */
 	public MPatient getFirstPatient() {
 		String query = "SELECT * FROM PATIENTS ORDER BY ROW_ID LIMIT 1";
-		return getOnePatientFromDb(query);
+		return getOnePatientFromDb(query, Collections.<Integer>emptySet());
 	}
 
 	/**
@@ -121,8 +146,124 @@ public class ConnectDB {
 	 * @return filled MPatient-Object
 	 */
 	public MPatient getPatientByRowId(int rowId) {
+		return getPatientByRowId(rowId, Collections.<Integer>emptySet());
+	}
+	
+	/**
+	 * Get patient by rowId without some of its admissions
+	 * @param rowId rowId of patient in patients-Table
+	 * @param skipAdmissions admissions (HADM_ID) not to load
+	 * @return filled MPatient-Object
+	 */
+	public MPatient getPatientByRowId(int rowId, Set<Integer> skipAdmissions) {
 		String query = "SELECT * FROM PATIENTS WHERE ROW_ID = " + rowId + ";";
-		return getOnePatientFromDb(query);
+		return getOnePatientFromDb(query, skipAdmissions);
+	}
+	
+	/**
+	 * Get patient with one part of an admission (see PatientTask): diagnoses, procedures, transfers 
+	 * and the chart events of the part; the first part contains lab events, note events and prescriptions as well
+	 * @param task admission part
+	 * @return MPatient-Object with one admission, null if no patient/admission found or a query failed
+	 */
+	public MPatient getAdmissionPart(PatientTask task) {
+		String query = "SELECT * FROM PATIENTS WHERE ROW_ID = " + task.getRowId();
+		
+        long start = System.nanoTime();
+        try (PreparedStatement statement = connection.prepareStatement(query)) {
+            ResultSet rs = statement.executeQuery();
+        	if (!rs.next()) {
+        		return null;
+        	}
+        	MPatient mPat = readPatient(rs);
+        	String patId = mPat.getPatientSubjectId();
+        	record("patients", start, 1);
+        	
+        	start = System.nanoTime();
+        	try (PreparedStatement admStatement = connection.prepareStatement("SELECT * FROM ADMISSIONS WHERE HADM_ID = " + task.getAdmissionId())) {
+        		ResultSet admRs = admStatement.executeQuery();
+        		if (!admRs.next()) {
+        			return null;
+        		}
+        		MAdmission mAdm = readAdmission(admRs);
+        		record("admissions", start, 1);
+        		
+        		//basic bundle (every part)
+        		getDiagnoses(patId, mAdm);
+        		getProcedures(patId, mAdm);
+        		getTransfers(mAdm, patId);
+        		
+        		//Chartevents of this part
+        		getChartEvents(mAdm, patId, " AND C.ROW_ID >= " + task.getFirstChartRowId() + " AND C.ROW_ID < " + task.getEndChartRowId());
+        		
+        		if(task.getPart() == 0) {
+        			getLabEvents(mAdm, patId);
+        			getNoteEvents(mAdm, patId);
+        			getPrecriptions(mAdm, patId);
+        		}
+        		mPat.addAdmission(mAdm);
+        	}
+        	return mPat;
+		} catch (SQLException e) {
+			System.out.println("Loading " + task + " failed (" + e.getMessage() + ")");
+		}
+		return null;
+	}
+	
+	/**
+	 * Number of events per admission of a range of patients (patients without admission: one entry with admission id 0)
+	 * @param firstRowId first patient row id
+	 * @param lastRowId last patient row id (inclusive)
+	 * @return admission sizes in row id order
+	 */
+	public List<AdmissionSize> getAdmissionSizes(int firstRowId, int lastRowId) {
+		String query = "SELECT P.ROW_ID, A.HADM_ID, " +
+						"(SELECT COUNT(*) FROM CHARTEVENTS C WHERE C.HADM_ID = A.HADM_ID), " +
+						"(SELECT COUNT(*) FROM LABEVENTS L WHERE L.HADM_ID = A.HADM_ID), " +
+						"(SELECT COUNT(*) FROM NOTEEVENTS N WHERE N.HADM_ID = A.HADM_ID), " +
+						"(SELECT COUNT(*) FROM PRESCRIPTIONS R WHERE R.HADM_ID = A.HADM_ID) " +
+						"FROM PATIENTS P " +
+						"LEFT JOIN ADMISSIONS A ON A.SUBJECT_ID = P.SUBJECT_ID " +
+						"WHERE P.ROW_ID BETWEEN " + firstRowId + " AND " + lastRowId + " " +
+						"ORDER BY P.ROW_ID";
+		List<AdmissionSize> sizes = new ArrayList<AdmissionSize>();
+		
+		long start = System.nanoTime();
+        try (PreparedStatement statement = connection.prepareStatement(query)) {
+            ResultSet rs = statement.executeQuery();
+            while (rs.next()) {
+            	sizes.add(new AdmissionSize(rs.getInt(1), rs.getInt(2), rs.getLong(3), rs.getLong(4), rs.getLong(5), rs.getLong(6)));
+            }
+		} catch (SQLException e) {
+			throw new IllegalStateException("Reading admission sizes of patients " + firstRowId + ".." + lastRowId + " failed", e);
+		}
+        record("sizes", start, sizes.size());
+		return sizes;
+	}
+	
+	/**
+	 * Split the chart events of an admission into parts (in row id order)
+	 * @param admissionId HADM_ID
+	 * @param eventsPerPart chart events per part
+	 * @return first chart event row id of every part
+	 */
+	public List<Integer> getChartEventBoundaries(int admissionId, int eventsPerPart) {
+		String query = "SELECT ROW_ID FROM (" +
+						"SELECT ROW_ID, ROW_NUMBER() OVER (ORDER BY ROW_ID) AS RN FROM CHARTEVENTS WHERE HADM_ID = " + admissionId + 
+						") R WHERE (RN - 1) % " + eventsPerPart + " = 0 ORDER BY ROW_ID";
+		List<Integer> boundaries = new ArrayList<Integer>();
+		
+		long start = System.nanoTime();
+        try (PreparedStatement statement = connection.prepareStatement(query)) {
+            ResultSet rs = statement.executeQuery();
+            while (rs.next()) {
+            	boundaries.add(rs.getInt(1));
+            }
+		} catch (SQLException e) {
+			throw new IllegalStateException("Reading chart event parts of admission " + admissionId + " failed", e);
+		}
+        record("boundaries", start, boundaries.size());
+		return boundaries;
 	}
 	
     public List<Integer> getPatientRowIds() {
@@ -143,23 +284,171 @@ public class ConnectDB {
     }
 
 	
-	private MPatient getOnePatientFromDb(String query) {
+	/**
+	 * Get several patients at once: one set-based query per table for all patients and admissions 
+	 * (instead of one query per table and admission)
+	 * @param rowIds rowIds of patients in patients-Table
+	 * @return dictionary - Key: rowId, Value: filled MPatient-Object, in order of rowIds (rowIds without patient are missing); 
+	 * 			null, if a query failed
+	 */
+	public Map<Integer,MPatient> getPatientsByRowIds(Collection<Integer> rowIds) {
+		Map<Integer,MPatient> patients = new LinkedHashMap<Integer,MPatient>();
+		if(rowIds.isEmpty()) {
+			return patients;
+		}
+		HashMap<Integer,MPatient> byRowId = new HashMap<Integer,MPatient>();
+		HashMap<Integer,MPatient> bySubjectId = new HashMap<Integer,MPatient>();
+		HashMap<Integer,MAdmission> admissions = new HashMap<Integer,MAdmission>();
+		
+		try {
+			queryByIds("patients", "SELECT * FROM PATIENTS WHERE ROW_ID = ANY(?)", rowIds, rs -> {
+				MPatient mPat = readPatient(rs);
+				byRowId.put(rs.getInt(1), mPat);
+				bySubjectId.put(rs.getInt(2), mPat);
+			});
+			
+			queryByIds("admissions", "SELECT * FROM ADMISSIONS WHERE SUBJECT_ID = ANY(?)", bySubjectId.keySet(), rs -> {
+				MAdmission mAdm = readAdmission(rs);
+				bySubjectId.get(rs.getInt(2)).addAdmission(mAdm);
+				admissions.put(rs.getInt(3), mAdm);
+			});
+			
+			//HADM_ID is unique over all patients - all further tables by admission
+			queryByIds("diagnoses", "SELECT * FROM diagnoses_icd d" + 
+					"   INNER JOIN d_icd_diagnoses i ON d.icd9_code = i.icd9_code" + 
+					"   WHERE d.hadm_id = ANY(?)" + 
+					"   ORDER BY d.seq_num", admissions.keySet(), 
+					rs -> admissions.get(rs.getInt(3)).addDiagnose(readDiagnose(rs)));
+			
+			queryByIds("procedures", "SELECT * FROM procedures_icd p" + 
+					"   INNER JOIN d_icd_procedures i ON p.icd9_code = i.icd9_code" + 
+					"   WHERE p.hadm_id = ANY(?)" + 
+					"   ORDER BY p.seq_num", admissions.keySet(), 
+					rs -> admissions.get(rs.getInt(3)).addProcedure(readProcedure(rs)));
+			
+			//streamed with a cursor, oversized admissions are spilled (as for single patients)
+			int spillThreshold = configuration.getEventSpillThreshold();
+			queryByIds("chartevents", "SELECT C.SUBJECT_ID, C.HADM_ID, C.CHARTTIME, C.CGID, C.VALUE, C.VALUENUM, C.VALUEUOM, D.LABEL, C.ROW_ID " +
+					"FROM CHARTEVENTS C " +
+				    "INNER JOIN D_ITEMS D ON C.ITEMID = D.ITEMID " + 
+					"WHERE C.HADM_ID = ANY(?)", admissions.keySet(), spillThreshold, rs -> {
+				MChartevent event = readChartEvent(rs);
+				if(event != null) {
+					addChartEvent(admissions.get(rs.getInt(2)), event, spillThreshold);
+				}
+			});
+			
+			queryByIds("labevents", "SELECT L.SUBJECT_ID, L.HADM_ID, L.CHARTTIME, L.VALUE, L.VALUENUM, L.VALUEUOM, L.FLAG, D.LABEL, D.FLUID, D.LOINC_CODE, L.ROW_ID " +
+					"FROM LABEVENTS L " +
+				    "INNER JOIN D_LABITEMS D ON L.ITEMID = D.ITEMID " + 
+					"WHERE L.HADM_ID = ANY(?)", admissions.keySet(), rs -> {
+				MLabevent event = readLabEvent(rs);
+				if(event != null) {
+					admissions.get(rs.getInt(2)).addLabEvent(event);
+				}
+			});
+			
+			queryByIds("noteevents", "SELECT * FROM NOTEEVENTS WHERE HADM_ID = ANY(?)", admissions.keySet(), 
+					rs -> admissions.get(rs.getInt(3)).addNoteEvent(readNoteEvent(rs)));
+			
+			queryByIds("prescriptions", "SELECT * FROM PRESCRIPTIONS WHERE HADM_ID = ANY(?)", admissions.keySet(), 
+					rs -> admissions.get(rs.getInt(3)).addPrescription(readPrescription(rs)));
+			
+			queryByIds("transfers", "SELECT * FROM TRANSFERS WHERE HADM_ID = ANY(?)", admissions.keySet(), rs -> {
+				MAdmission mAdm = admissions.get(rs.getInt(3));
+				mAdm.addTransfer(readTransfer(rs, mAdm.getTransfers().size() + 1));
+			});
+		} catch (SQLException e) {
+			System.out.println("Loading patients " + rowIds.iterator().next() + ".. failed (" + e.getMessage() + ")");
+			for(MPatient mPat : byRowId.values()) {
+				mPat.releaseEventSpills();
+			}
+			return null;
+		}
+		
+		for(Integer rowId : rowIds) {
+			MPatient mPat = byRowId.get(rowId);
+			if(mPat != null) {
+				patients.put(rowId, mPat);
+			}
+		}
+		return patients;
+	}
+	
+	/**
+	 * Run query with one int-array parameter (= ANY(?)), every row is handed to the reader
+	 */
+	private void queryByIds(String table, String query, Collection<Integer> ids, RowReader reader) throws SQLException {
+		queryByIds(table, query, ids, 0, reader);
+	}
+	
+	/**
+	 * Run query with one int-array parameter (= ANY(?)), rows streamed with a cursor of fetchSize rows (0: whole result at once)
+	 */
+	private void queryByIds(String table, String query, Collection<Integer> ids, int fetchSize, RowReader reader) throws SQLException {
+		if(ids.isEmpty()) {
+			return;
+		}
+		long start = System.nanoTime();
+		int rows = 0;
+		try (PreparedStatement statement = connection.prepareStatement(query)) {
+			if(fetchSize > 0) {
+				//cursors need a transaction
+				connection.setAutoCommit(false);
+				statement.setFetchSize(Math.min(fetchSize, 10000));
+			}
+			statement.setArray(1, connection.createArrayOf("integer", ids.toArray()));
+			ResultSet rs = statement.executeQuery();
+			while (rs.next()) {
+				reader.read(rs);
+				rows++;
+			}
+		}
+		finally {
+			if(fetchSize > 0) {
+				endTransaction();
+			}
+		}
+		record(table, start, rows);
+	}
+	
+	/**
+	 * Record query time (timer db.<table>) and read rows (counter db.<table>.rows), see Metrics; and in the trace, if set
+	 */
+	private void record(String table, long start, long rows) {
+		long nanos = System.nanoTime() - start;
+		Metrics.timer("db." + table).record(nanos, 1);
+		if(rows > 0) {
+			Metrics.counter("db." + table + ".rows").add(rows);
+		}
+		if(trace != null) {
+			trace.addFetch(table, nanos, rows);
+		}
+	}
+	
+	/**
+	 * Set trace for the following queries: their time and rows are added to it
+	 * @param trace trace of the patient to load, null: no trace
+	 */
+	public void setTrace(PatientTrace trace) {
+		this.trace = trace;
+	}
+	
+	private interface RowReader {
+		void read(ResultSet rs) throws SQLException;
+	}
+
+	private MPatient getOnePatientFromDb(String query, Set<Integer> skipAdmissions) {
+		long start = System.nanoTime();
         try (PreparedStatement statement = connection.prepareStatement(query)) {
             ResultSet rs = statement.executeQuery();
 
         	if (rs.next()) {
-					MPatient mPat = new MPatient();
-					//SUBJECT_ID
-					mPat.setPatientSubjectId(rs.getString(2));
-					//DOB
-					mPat.setBirthDate(rs.getDate(4));
-					//GENDER
-					mPat.setGender(rs.getString(3));
-					//DOD
-					mPat.setDeathDate(rs.getDate(5));
+					MPatient mPat = readPatient(rs);
+					record("patients", start, 1);
 										
 					//Admissions
-					getPatientAdmissions(mPat);
+					getPatientAdmissions(mPat, skipAdmissions);
 					
 					return mPat;
 			 }
@@ -170,160 +459,132 @@ public class ConnectDB {
 		return null;
 	}
 	
-	private void getPatientAdmissions(MPatient pat) {
+	private void getPatientAdmissions(MPatient pat, Set<Integer> skipAdmissions) {
 		String query = "SELECT * FROM ADMISSIONS WHERE SUBJECT_ID = " + pat.getPatientSubjectId();
 		
+		List<MAdmission> admissions = new ArrayList<MAdmission>();
+		
+		long start = System.nanoTime();
         try (PreparedStatement statement = connection.prepareStatement(query)) {
             ResultSet rs = statement.executeQuery();
-	
 			while (rs.next()) {
-					MAdmission mAdm = new MAdmission();
-					mAdm.setAdmissionId(rs.getString(3));
-					
-					//Times
-					mAdm.setAdmissionTime(rs.getDate(4));
-					mAdm.setDischargeTime(rs.getDate(5));
-					
-					//Type
-					mAdm.setAdmissionType(rs.getString(7));
-					
-					//DschLoc
-					mAdm.setDischargeLocation(rs.getString(9));
-					
-					mAdm.setMaritalStatus(rs.getString(13));
-					mAdm.setLanguage(rs.getString(11));
-					mAdm.setReligion(rs.getString(12));
-					mAdm.setAdmissionLocation(rs.getString(8));
-
-					//Diagnoses
-					getDiagnoses(pat.getPatientSubjectId(), mAdm);;
-					
-					//Procedures
-					getProcedures(pat.getPatientSubjectId(), mAdm);
-					
-					//Chartevents
-					getChartEvents(mAdm, pat.getPatientSubjectId());
-					
-					//Labevents
-					getLabEvents(mAdm, pat.getPatientSubjectId());
-					
-					//Noteevents
-					getNoteEvents(mAdm, pat.getPatientSubjectId());
-										
-					//Prescriptions
-					getPrecriptions(mAdm, pat.getPatientSubjectId());
-										
-					//Transfers
-					getTransfers(mAdm, pat.getPatientSubjectId());
-					
-					pat.addAdmission(mAdm);
+					if(!skipAdmissions.contains(rs.getInt(3))) {
+						admissions.add(readAdmission(rs));
+					}
 			 }
 		} catch (SQLException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
+		record("admissions", start, admissions.size());
+		
+		//the tables of every admission are timed on their own
+		for(MAdmission mAdm : admissions) {
+			//Diagnoses
+			getDiagnoses(pat.getPatientSubjectId(), mAdm);
+			
+			//Procedures
+			getProcedures(pat.getPatientSubjectId(), mAdm);
+			
+			//Chartevents
+			getChartEvents(mAdm, pat.getPatientSubjectId(), "");
+			
+			//Labevents
+			getLabEvents(mAdm, pat.getPatientSubjectId());
+			
+			//Noteevents
+			getNoteEvents(mAdm, pat.getPatientSubjectId());
+			
+			//Prescriptions
+			getPrecriptions(mAdm, pat.getPatientSubjectId());
+			
+			//Transfers
+			getTransfers(mAdm, pat.getPatientSubjectId());
+			
+			pat.addAdmission(mAdm);
+		}
 	}
 	
-	private void getChartEvents(MAdmission admission, String patientSubjId) {
-		String query =  "SELECT C.SUBJECT_ID, C.HADM_ID, C.CHARTTIME, C.CGID, C.VALUE, C.VALUENUM, C.VALUEUOM, D.LABEL " +
+	private void getChartEvents(MAdmission admission, String patientSubjId, String rowCondition) {
+		String query =  "SELECT C.SUBJECT_ID, C.HADM_ID, C.CHARTTIME, C.CGID, C.VALUE, C.VALUENUM, C.VALUEUOM, D.LABEL, C.ROW_ID " +
 						"FROM CHARTEVENTS C " +
 					    "INNER JOIN D_ITEMS D ON C.ITEMID = D.ITEMID " + 
-						"WHERE C.HADM_ID= " + admission.getAdmissionId();
+						"WHERE C.HADM_ID= " + admission.getAdmissionId() + rowCondition;
+		int spillThreshold = configuration.getEventSpillThreshold();
+		long start = System.nanoTime();
+		int rows = 0;
 		
         try (PreparedStatement statement = connection.prepareStatement(query)) {
+        	if(spillThreshold > 0) {
+        		//stream rows with a cursor instead of loading the whole result (needs a transaction)
+        		connection.setAutoCommit(false);
+        		statement.setFetchSize(Math.min(spillThreshold, 10000));
+        	}
             ResultSet rs = statement.executeQuery();
 	
 			 while (rs.next()) { 
-				 
-				 //Value = null ausschließen -> kein Wert
-				 if(rs.getObject(5) != null) {
-				 
-					 MChartevent event = new MChartevent();
-					 
-					 //Rekord-Datum
-					 event.setRecordDate(rs.getDate(3));
-					 
-					 //CareGiver
-					 event.setCareGiverId(rs.getInt(4));
-					 
-					 //Type (Item)
-					 event.setMeasurementType(rs.getString(8));
-					 
-					 //Value + ValueNum
-					 event.setValue(rs.getString(5));
-					 if(rs.getObject(6) != null) {
-						 event.setNumValue(rs.getDouble(6));
-					 }
-					 		 
-					 //Unit
-					 if(rs.getObject(7) != null) {
-						 event.setUnit(rs.getString(7));
-					 }
-					 
-					 admission.addEvent(event);
-				 
+				 MChartevent event = readChartEvent(rs);
+				 rows++;
+				 if(event != null) {
+					 addChartEvent(admission, event, spillThreshold);
 				 }
 			 }
 		} catch (SQLException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
+        finally {
+        	if(spillThreshold > 0) {
+        		endTransaction();
+        	}
+        	record("chartevents", start, rows);
+        }
+	}
+	
+	private void addChartEvent(MAdmission admission, MChartevent event, int spillThreshold) {
+		admission.addEvent(event);
+		
+		//oversized admission: stage events on disk
+		if(spillThreshold > 0 && admission.getEventSpill() == null && admission.getEvents().size() >= spillThreshold) {
+			String path = configuration.getEventSpillPath();
+			admission.spillEvents(new ChartEventSpill(path != null ? Paths.get(path) : null));
+		}
+	}
+	
+	private void endTransaction() {
+		try {
+			connection.commit();
+			connection.setAutoCommit(true);
+		} catch (SQLException e) {
+			System.out.println("Ending the cursor transaction failed (" + e.getMessage() + ")");
+		}
 	}
 	
 	private void getLabEvents(MAdmission admission, String patientSubjId) {
-		String query =  "SELECT L.SUBJECT_ID, L.HADM_ID, L.CHARTTIME, L.VALUE, L.VALUENUM, L.VALUEUOM, L.FLAG, D.LABEL, D.FLUID, D.LOINC_CODE " +
+		String query =  "SELECT L.SUBJECT_ID, L.HADM_ID, L.CHARTTIME, L.VALUE, L.VALUENUM, L.VALUEUOM, L.FLAG, D.LABEL, D.FLUID, D.LOINC_CODE, L.ROW_ID " +
 						"FROM LABEVENTS L " +
 					    "INNER JOIN D_LABITEMS D ON L.ITEMID = D.ITEMID " + 
 						"WHERE L.SUBJECT_ID = " + patientSubjId + " AND L.HADM_ID= " + admission.getAdmissionId();
 
+		long start = System.nanoTime();
+		int rows = 0;
         try (PreparedStatement statement = connection.prepareStatement(query)) {
             ResultSet rs = statement.executeQuery();
 
 			 while (rs.next()) { 
-				 //Value = null ausschließen -> kein Wert
-				 if(rs.getObject(4) != null) {
-				 
-					 MLabevent event = new MLabevent();
-					 
-					 //Rekord-Datum
-					 event.setAcquisitionDate(rs.getDate(3));
-					 				 
-					 //Type (Item)
-					 event.setMeasurementType(rs.getString(8));
-					 
-					 //Fluid 
-					 event.setFluid(rs.getString(9));
-					 
-					 //Loinc-Code
-					 if(rs.getObject(10) != null) {
-						 event.setLoinc(rs.getString(10));
-					 }
-					 
-					 //Value + ValueNum
-					 event.setValue(rs.getString(4));
-					 if(rs.getObject(5) != null) {
-						 event.setNumValue(rs.getDouble(5));
-					 }
-					 		 
-					 //Unit
-					 if(rs.getObject(6) != null) {
-						 event.setUnit(rs.getString(6));
-					 }
-					 
-					 //Flag
-					 //"delta" - might mean both, not considered
-					 if(rs.getObject(7) != null && rs.getString(7) == "abnormal") {
-						 event.setAbnormal(true);
-					 }
-					 
+				 rows++;
+				 MLabevent event = readLabEvent(rs);
+				 if(event != null) {
 					 admission.addLabEvent(event);
-				 
 				 }
 			 }
 		} catch (SQLException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
+		finally {
+			record("labevents", start, rows);
+		}
 	}
 	
 	private void getNoteEvents(MAdmission admission, String patientSubjId) {
@@ -331,39 +592,22 @@ public class ConnectDB {
 						"FROM NOTEEVENTS " +
 						"WHERE SUBJECT_ID = " + patientSubjId + " AND HADM_ID= " + admission.getAdmissionId();
 		
+		long start = System.nanoTime();
+		int rows = 0;
         try (PreparedStatement statement = connection.prepareStatement(query)) {
             ResultSet rs = statement.executeQuery();
             while (rs.next()) { 
-				 boolean isError = rs.getString(10) == "1";
-				 
-				 MNoteevent event = new MNoteevent();
-				 
-				 event.setHasError(isError);
-
-				 //Charttime (incl. date; 5) and Chartdate (4) - two columns..
-				 if(rs.getObject(5) != null) {
-					 event.setChartdate(rs.getDate(5));
-				 }
-				 else{
-					 event.setChartdate(rs.getDate(4));
-				 }
-
-				 //might be null
-				 event.setCaregiverId(rs.getInt(9));
-
-				 event.setCategory(rs.getString(7));
-				 event.setDescription(rs.getString(8));
-
-				 event.setText(rs.getString(11));
-
-				 admission.addNoteEvent(event);
-				 
+				 rows++;
+				 admission.addNoteEvent(readNoteEvent(rs));
 			 }
 			
 		} catch (SQLException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
+		finally {
+			record("noteevents", start, rows);
+		}
 	}
 	
 	private void getDiagnoses(String patId, MAdmission adm) {
@@ -373,21 +617,21 @@ public class ConnectDB {
 					"   WHERE d.subject_id = " + patId + "AND d.hadm_id = " + adm.getAdmissionId() + 
 					"   ORDER BY d.seq_num";
 
+		long start = System.nanoTime();
+		int rows = 0;
         try (PreparedStatement statement = connection.prepareStatement(query)) {
             ResultSet rs = statement.executeQuery();
         	while (rs.next()) {
-					MDiagnose mDiag = new MDiagnose();
-					mDiag.setIcd9Code(rs.getString(5));
-					mDiag.setShortTitle(rs.getString(8));
-					mDiag.setLongTitle(rs.getString(9));
-					mDiag.setSeqNumber(rs.getInt(4));
-
-					adm.addDiagnose(mDiag);
+					rows++;
+					adm.addDiagnose(readDiagnose(rs));
 			 }
 		} catch (SQLException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
+		finally {
+			record("diagnoses", start, rows);
+		}
 	}
 	
 	private void getProcedures(String patId, MAdmission adm) {
@@ -397,21 +641,21 @@ public class ConnectDB {
 					"   WHERE p.subject_id = " + patId + "AND p.hadm_id = " + adm.getAdmissionId() + 
 					"   ORDER BY p.seq_num";
         
+		long start = System.nanoTime();
+		int rows = 0;
 		try (PreparedStatement statement = connection.prepareStatement(query)) {
             ResultSet rs = statement.executeQuery();
         	while (rs.next()) {
-					MProcedure mProc = new MProcedure();
-					mProc.setIcd9Code(rs.getString(5));
-					mProc.setShortTitle(rs.getString(8));
-					mProc.setLongTitle(rs.getString(9));
-					mProc.setSeqNumber(rs.getInt(4));
-
-					adm.addProcedure(mProc);
+					rows++;
+					adm.addProcedure(readProcedure(rs));
 			 }
 		} catch (SQLException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
+		finally {
+			record("procedures", start, rows);
+		}
 	}
 	
 	/**
@@ -446,39 +690,21 @@ public class ConnectDB {
 						"FROM PRESCRIPTIONS " +
 						"WHERE SUBJECT_ID = " + patientSubjId + " AND HADM_ID= " + admission.getAdmissionId();
 		
+		long start = System.nanoTime();
+		int rows = 0;
         try (PreparedStatement statement = connection.prepareStatement(query)) {
         	ResultSet rs = statement.executeQuery();
 			 while (rs.next()) { 			 
-				 MPrescription pres = new MPrescription();
-				 
-				 pres.setStart(rs.getDate(5));
-				 pres.setEnd(rs.getDate(6));
-				 
-				 pres.setDrugtype(rs.getString(7));
-				 pres.setDrug(rs.getString(8));
-				 pres.setDrugNamePoe(rs.getString(9));
-				 pres.setDrugNameGeneric(rs.getString(10));
-				 
-				 pres.setFormularyDrugCd(rs.getString(11));
-				 pres.setGsn(rs.getString(12));
-				 pres.setNdc(rs.getString(13));
-				 
-				 pres.setProdStrength(rs.getString(14));
-				 pres.setDoseValRx(rs.getString(15));
-				 pres.setDoseUnitRx(rs.getString(16));
-				 
-				 pres.setFormValDisp(rs.getString(17));
-				 pres.setFormUnitDisp(rs.getString(18));
-				 
-				 pres.setRoute(rs.getString(19));
-				 
-				 admission.addPrescription(pres);
-
+				 rows++;
+				 admission.addPrescription(readPrescription(rs));
 			 }
 		} catch (SQLException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
+		finally {
+			record("prescriptions", start, rows);
+		}
 	}
 	
 	private void getTransfers(MAdmission admission, String patientSubjId) {
@@ -486,35 +712,23 @@ public class ConnectDB {
 						"FROM TRANSFERS " +
 						"WHERE SUBJECT_ID = " + patientSubjId + " AND HADM_ID= " + admission.getAdmissionId();
 		
+		long start = System.nanoTime();
+		int rows = 0;
         try (PreparedStatement statement = connection.prepareStatement(query)) {
             ResultSet rs = statement.executeQuery();
         	int index = 0;
 			 while (rs.next()) {
+				 rows++;
 				 index++;
-				 MTransfer t = new MTransfer();
-				 
-				 t.setTransferId(rs.getInt(3) + "-" + index);
-				 
-				 t.setEventType(rs.getString(6));
-				 
-				 t.setPrevUnit(rs.getString(7));
-				 t.setCurrUnit(rs.getString(8));
-				 
-				 t.setPrevWard(rs.getInt(9));
-				 t.setCurrWard(rs.getInt(10));
-				 
-				 t.setIntime(rs.getDate(11));
-				 t.setOuttime(rs.getDate(12));
-				 
-				 t.setLengthOfStay(rs.getDouble(13));
-				
-				 admission.addTransfer(t);
-
+				 admission.addTransfer(readTransfer(rs, index));
 			 }
 		} catch (SQLException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
+		finally {
+			record("transfers", start, rows);
+		}
 	}
 
 	/**
@@ -541,4 +755,209 @@ public class ConnectDB {
 		
 		return wards;
 	}
+
+	//Row mappers - shared by single patient and batch queries (column positions as in the queries above)
+	
+	private static MPatient readPatient(ResultSet rs) throws SQLException {
+		MPatient mPat = new MPatient();
+		//SUBJECT_ID
+		mPat.setPatientSubjectId(rs.getString(2));
+		//DOB
+		mPat.setBirthDate(rs.getDate(4));
+		//GENDER
+		mPat.setGender(rs.getString(3));
+		//DOD
+		mPat.setDeathDate(rs.getDate(5));
+		return mPat;
+	}
+	
+	private static MAdmission readAdmission(ResultSet rs) throws SQLException {
+		MAdmission mAdm = new MAdmission();
+		mAdm.setAdmissionId(rs.getString(3));
+		
+		//Times
+		mAdm.setAdmissionTime(rs.getDate(4));
+		mAdm.setDischargeTime(rs.getDate(5));
+		
+		//Type
+		mAdm.setAdmissionType(rs.getString(7));
+		
+		//DschLoc
+		mAdm.setDischargeLocation(rs.getString(9));
+		
+		mAdm.setMaritalStatus(rs.getString(13));
+		mAdm.setLanguage(rs.getString(11));
+		mAdm.setReligion(rs.getString(12));
+		mAdm.setAdmissionLocation(rs.getString(8));
+		return mAdm;
+	}
+	
+	private static MChartevent readChartEvent(ResultSet rs) throws SQLException {
+		//Value = null ausschließen -> kein Wert
+		if(rs.getObject(5) == null) {
+			return null;
+		}
+		MChartevent event = new MChartevent();
+		
+		//Row-Id
+		event.setRowId(rs.getInt(9));
+		
+		//Rekord-Datum
+		event.setRecordDate(rs.getDate(3));
+		
+		//CareGiver
+		event.setCareGiverId(rs.getInt(4));
+		
+		//Type (Item)
+		event.setMeasurementType(rs.getString(8));
+		
+		//Value + ValueNum
+		event.setValue(rs.getString(5));
+		if(rs.getObject(6) != null) {
+			event.setNumValue(rs.getDouble(6));
+		}
+		
+		//Unit
+		if(rs.getObject(7) != null) {
+			event.setUnit(rs.getString(7));
+		}
+		return event;
+	}
+	
+	private static MLabevent readLabEvent(ResultSet rs) throws SQLException {
+		//Value = null ausschließen -> kein Wert
+		if(rs.getObject(4) == null) {
+			return null;
+		}
+		MLabevent event = new MLabevent();
+		
+		//Row-Id
+		event.setRowId(rs.getInt(11));
+		
+		//Rekord-Datum
+		event.setAcquisitionDate(rs.getDate(3));
+		
+		//Type (Item)
+		event.setMeasurementType(rs.getString(8));
+		
+		//Fluid 
+		event.setFluid(rs.getString(9));
+		
+		//Loinc-Code
+		if(rs.getObject(10) != null) {
+			event.setLoinc(rs.getString(10));
+		}
+		
+		//Value + ValueNum
+		event.setValue(rs.getString(4));
+		if(rs.getObject(5) != null) {
+			event.setNumValue(rs.getDouble(5));
+		}
+		
+		//Unit
+		if(rs.getObject(6) != null) {
+			event.setUnit(rs.getString(6));
+		}
+		
+		//Flag
+		//"delta" - might mean both, not considered
+		if(rs.getObject(7) != null && rs.getString(7) == "abnormal") {
+			event.setAbnormal(true);
+		}
+		return event;
+	}
+	
+	private static MNoteevent readNoteEvent(ResultSet rs) throws SQLException {
+		boolean isError = rs.getString(10) == "1";
+		
+		MNoteevent event = new MNoteevent();
+		
+		event.setRowId(rs.getInt(1));
+		
+		event.setHasError(isError);
+		
+		//Charttime (incl. date; 5) and Chartdate (4) - two columns..
+		if(rs.getObject(5) != null) {
+			event.setChartdate(rs.getDate(5));
+		}
+		else{
+			event.setChartdate(rs.getDate(4));
+		}
+		
+		//might be null
+		event.setCaregiverId(rs.getInt(9));
+		
+		event.setCategory(rs.getString(7));
+		event.setDescription(rs.getString(8));
+		
+		event.setText(rs.getString(11));
+		return event;
+	}
+	
+	private static MDiagnose readDiagnose(ResultSet rs) throws SQLException {
+		MDiagnose mDiag = new MDiagnose();
+		mDiag.setIcd9Code(rs.getString(5));
+		mDiag.setShortTitle(rs.getString(8));
+		mDiag.setLongTitle(rs.getString(9));
+		mDiag.setSeqNumber(rs.getInt(4));
+		return mDiag;
+	}
+	
+	private static MProcedure readProcedure(ResultSet rs) throws SQLException {
+		MProcedure mProc = new MProcedure();
+		mProc.setIcd9Code(rs.getString(5));
+		mProc.setShortTitle(rs.getString(8));
+		mProc.setLongTitle(rs.getString(9));
+		mProc.setSeqNumber(rs.getInt(4));
+		return mProc;
+	}
+	
+	private static MPrescription readPrescription(ResultSet rs) throws SQLException {
+		MPrescription pres = new MPrescription();
+		
+		pres.setStart(rs.getDate(5));
+		pres.setEnd(rs.getDate(6));
+		
+		pres.setDrugtype(rs.getString(7));
+		pres.setDrug(rs.getString(8));
+		pres.setDrugNamePoe(rs.getString(9));
+		pres.setDrugNameGeneric(rs.getString(10));
+		
+		pres.setFormularyDrugCd(rs.getString(11));
+		pres.setGsn(rs.getString(12));
+		pres.setNdc(rs.getString(13));
+		
+		pres.setProdStrength(rs.getString(14));
+		pres.setDoseValRx(rs.getString(15));
+		pres.setDoseUnitRx(rs.getString(16));
+		
+		pres.setFormValDisp(rs.getString(17));
+		pres.setFormUnitDisp(rs.getString(18));
+		
+		pres.setRoute(rs.getString(19));
+		return pres;
+	}
+	
+	/**
+	 * @param index running number of transfer within admission (part of transfer id)
+	 */
+	private static MTransfer readTransfer(ResultSet rs, int index) throws SQLException {
+		MTransfer t = new MTransfer();
+		
+		t.setTransferId(rs.getInt(3) + "-" + index);
+		
+		t.setEventType(rs.getString(6));
+		
+		t.setPrevUnit(rs.getString(7));
+		t.setCurrUnit(rs.getString(8));
+		
+		t.setPrevWard(rs.getInt(9));
+		t.setCurrWard(rs.getInt(10));
+		
+		t.setIntime(rs.getDate(11));
+		t.setOuttime(rs.getDate(12));
+		
+		t.setLengthOfStay(rs.getDouble(13));
+		return t;
+	}
 }
@@ -0,0 +1,86 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.work;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of db connections: connections are created on demand up to the pool size, 
+ * further callers wait until a connection is released (bounds the load on the database).
+ *
+ */
+public class ConnectDBPool {
+	private final Config config;
+	private final int size;
+	private final BlockingQueue<ConnectDB> idle = new LinkedBlockingQueue<ConnectDB>();
+	private final AtomicInteger created = new AtomicInteger();
+	
+	/**
+	 * Create new pool
+	 * @param config Config-Object (postgres connection)
+	 * @param size max. number of connections
+	 */
+	public ConnectDBPool(Config config, int size) {
+		this.config = config;
+		this.size = Math.max(1, size);
+	}
+	
+	/**
+	 * Get a connection - waits while all connections are in use
+	 * @return db connection, has to be released after use
+	 * @throws InterruptedException
+	 */
+	public ConnectDB borrow() throws InterruptedException {
+		ConnectDB db = idle.poll();
+		if(db != null) {
+			return db;
+		}
+		if(created.incrementAndGet() <= size) {
+			return new ConnectDB(config);
+		}
+		created.decrementAndGet();
+		return idle.take();
+	}
+	
+	/**
+	 * Return a connection to the pool
+	 * @param db borrowed connection
+	 */
+	public void release(ConnectDB db) {
+		idle.add(db);
+	}
+	
+	/**
+	 * Max. number of connections
+	 * @return pool size
+	 */
+	public int getSize() {
+		return size;
+	}
+	
+	/**
+	 * Close idle connections
+	 */
+	public void close() {
+		ConnectDB db;
+		while((db = idle.poll()) != null) {
+			db.close();
+			created.decrementAndGet();
+		}
+	}
+}
@@ -15,18 +15,38 @@ limitations under the License.
 /***********************************************************************/
 package de.uzl.itcr.mimic2fhir.work;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Date;
 
+import org.apache.http.HttpHeaders;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.GzipCompressingEntity;
+import org.apache.http.Header;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.FileEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
 import org.hl7.fhir.r4.model.Bundle;
 
 import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.narrative.DefaultThymeleafNarrativeGenerator;
 import ca.uhn.fhir.rest.client.apache.GZipContentInterceptor;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
 import ca.uhn.fhir.rest.client.interceptor.BearerTokenAuthInterceptor;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import de.uzl.itcr.mimic2fhir.queue.BundleMessage;
 
 /**
  * Communication and Functions for and with FHIR
@@ -35,7 +55,10 @@ import ca.uhn.fhir.rest.client.interceptor.BearerTokenAuthInterceptor;
  */
 public class FHIRComm {
 	private FhirContext ctx;
+	private BundleEncoder encoder;
+	private BundleEncoder xmlEncoder;
 	private IGenericClient client;
+	private CloseableHttpClient httpClient;
 	
 	private Config configuration;
 	
@@ -45,11 +68,12 @@ public class FHIRComm {
 	 */
 	public FHIRComm(Config config) {
 		this.configuration = config;
-		ctx = FhirContext.forDstu3();
+		//narrative mode of the shared context: set once by the application (FhirContextHolder.setNarrativeMode)
+		ctx = FhirContextHolder.getContext();
 		
-		// Use the narrative generator
-		ctx.setNarrativeGenerator(new DefaultThymeleafNarrativeGenerator());
 		client = ctx.newRestfulGenericClient(configuration.getFhirServer());	
+		encoder = new BundleEncoder(ctx, configuration.getBundleEncoding(), configuration.isGzipBundles());
+		xmlEncoder = new BundleEncoder(ctx, BundleEncoding.XML_PRETTY, false);
 		
 		if(this.configuration.isAuthRequired())
 		{			 
@@ -63,6 +87,16 @@ public class FHIRComm {
 		
 		//Gzip output content
 		client.registerInterceptor(new GZipContentInterceptor());
+		
+		//Plain http client for pushing already encoded bundles (one connection per transaction in flight)
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setSocketTimeout(1500 * 1000)
+				.build();
+		httpClient = HttpClients.custom()
+				.setDefaultRequestConfig(requestConfig)
+				.setMaxConnPerRoute(Math.max(2, configuration.getUploadMaxInFlight()))
+				.setMaxConnTotal(Math.max(2, configuration.getUploadMaxInFlight()))
+				.build();
 	}
 	
 	/**
@@ -104,6 +138,157 @@ public class FHIRComm {
 		
 	
 	
+	/**
+	 * Print encoded bundle to console 
+	 * @param message encoded bundle
+	 * @throws UncheckedIOException if a spooled bundle could not be read
+	 */
+	public void printBundle(BundleMessage message) {
+		System.out.println(BundleEncoder.decodeToString(message.getPayload(), message.getContentEncoding()));
+	}
+	
+	/**
+	 * Save encoded bundle to location specified in Config - bytes are written as they are
+	 * Spooled bundles are linked (or copied, if the spool is on another file system) instead of read into memory
+	 * File name: bundle[number].[xml|json][.gz], number 0 means no number in file name
+	 * @param message encoded bundle
+	 * @throws UncheckedIOException if the file could not be written
+	 */
+	public void printBundleToFile(BundleMessage message) {
+		try {
+			String fileName = "bundle";
+			if(!message.getNumber().equals("0")) {
+				fileName += message.getNumber();
+			}
+			fileName += "." + BundleEncoding.fromContentType(message.getContentType()).getFileExtension();
+			if(BundleEncoder.GZIP.equals(message.getContentEncoding())) {
+				fileName += ".gz";
+			}
+			
+			Path target = Paths.get(configuration.getFhirxmlFilePath(), fileName);
+			if(message.isSpooled()) {
+				//the spool file is deleted after processing, the link stays
+				Files.deleteIfExists(target);
+				try {
+					Files.createLink(target, message.getSpoolFile());
+				} catch (IOException | UnsupportedOperationException e) {
+					Files.copy(message.getSpoolFile(), target);
+				}
+			}
+			else {
+				Files.write(target, message.getPayload());
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	/**
+	 * Send encoded transaction bundle to fhir-server (POST to server base) without parsing it again
+	 * Gzipped payloads are sent as they are, other payloads are gzipped while they are sent (as by the fhir client), 
+	 * both with Content-Encoding gzip; spooled bundles are streamed from their file
+	 * @param message encoded transaction bundle
+	 */
+	public void bundleToServer(BundleMessage message) {
+		HttpPost post = new HttpPost(configuration.getFhirServer());
+		post.setHeader(HttpHeaders.ACCEPT, message.getContentType());
+		setAuthorization(post);
+		
+		ContentType contentType = ContentType.create(message.getContentType(), StandardCharsets.UTF_8);
+		AbstractHttpEntity entity;
+		if(message.isSpooled()) {
+			entity = new FileEntity(message.getSpoolFile().toFile(), contentType);
+		}
+		else {
+			entity = new ByteArrayEntity(message.getPayload(), contentType);
+		}
+		if(message.getContentEncoding() != null) {
+			entity.setContentEncoding(message.getContentEncoding());
+			post.setEntity(entity);
+		}
+		else {
+			post.setEntity(new GzipCompressingEntity(entity));
+		}
+		
+		try (CloseableHttpResponse response = httpClient.execute(post)) {
+			int status = response.getStatusLine().getStatusCode();
+			String body = response.getEntity() != null ? EntityUtils.toString(response.getEntity()) : "";
+			if(status >= 300) {
+				throw BaseServerResponseException.newInstance(status, body);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	/**
+	 * Kick off the bulk $import operation on the fhir-server (asynchronous request)
+	 * @param parameters $import Parameters resource as json
+	 * @return url for polling the import status
+	 */
+	public String startBulkImport(String parameters) {
+		HttpPost post = new HttpPost(resolve("$import"));
+		post.setHeader(HttpHeaders.ACCEPT, "application/fhir+json");
+		post.setHeader("Prefer", "respond-async");
+		setAuthorization(post);
+		post.setEntity(new StringEntity(parameters, ContentType.create("application/fhir+json", StandardCharsets.UTF_8)));
+		
+		try (CloseableHttpResponse response = httpClient.execute(post)) {
+			int status = response.getStatusLine().getStatusCode();
+			String body = response.getEntity() != null ? EntityUtils.toString(response.getEntity()) : "";
+			Header location = response.getFirstHeader(HttpHeaders.CONTENT_LOCATION);
+			if(status != 202 || location == null) {
+				throw BaseServerResponseException.newInstance(status >= 300 ? status : 500, body);
+			}
+			return resolve(location.getValue());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Poll the status of a bulk import
+	 * @param statusUrl url returned by startBulkImport
+	 * @return null while the import is running, the server's result when the import is complete
+	 */
+	public String pollBulkImport(String statusUrl) {
+		HttpGet get = new HttpGet(statusUrl);
+		get.setHeader(HttpHeaders.ACCEPT, "application/json");
+		setAuthorization(get);
+		
+		try (CloseableHttpResponse response = httpClient.execute(get)) {
+			int status = response.getStatusLine().getStatusCode();
+			String body = response.getEntity() != null ? EntityUtils.toString(response.getEntity()) : "";
+			if(status == 202) {
+				return null;
+			}
+			if(status >= 300) {
+				throw BaseServerResponseException.newInstance(status, body);
+			}
+			return body;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private String resolve(String url) {
+		if(url.startsWith("http://") || url.startsWith("https://")) {
+			return url;
+		}
+		String base = configuration.getFhirServer();
+		if(url.startsWith("/")) {
+			//absolute path on the same host
+			return base.substring(0, base.indexOf('/', base.indexOf("//") + 2)) + url;
+		}
+		return base.endsWith("/") ? base + url : base + "/" + url;
+	}
+	
+	private void setAuthorization(HttpRequest request) {
+		if(this.configuration.isAuthRequired()) {
+			request.setHeader(HttpHeaders.AUTHORIZATION, "Bearer " + this.configuration.getToken());
+		}
+	}
+	
 	/**
 	 * Send complete bundle to fhir-server
 	 * @param transactionBundle bundle to push to server
@@ -138,9 +323,25 @@ public class FHIRComm {
 	 * @return bundle xml string
 	 */
 	public String getBundleAsString(Bundle bundle) {
-		return ctx.newXmlParser()
-				.setPrettyPrint(true)
-				.encodeResourceToString(bundle);
+		return xmlEncoder.encodeToString(bundle);
+	}
+	
+	/**
+	 * Encode a bundle once, in the configured wire format
+	 * @param number bundle number
+	 * @param bundle bundle to encode
+	 * @return message with encoded bundle
+	 */
+	public BundleMessage encodeBundle(String number, Bundle bundle) {
+		return new BundleMessage(number, encoder.getContentType(), encoder.getContentEncoding(), encoder.encode(bundle));
+	}
+	
+	/**
+	 * Encoder for the configured wire format
+	 * @return bundle encoder
+	 */
+	public BundleEncoder getEncoder() {
+		return encoder;
 	}
 	
 	/**
@@ -149,9 +350,7 @@ public class FHIRComm {
 	 * @return bundle as Bundle
 	 */
 	public Bundle getBundleFromString(String bundle) {
-		return (Bundle) ctx.newXmlParser()
-				.setPrettyPrint(true)
-				.parseResource(bundle);
+		return xmlEncoder.parse(bundle);
 	}
 
 }
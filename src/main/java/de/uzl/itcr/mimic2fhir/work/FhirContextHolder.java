@@ -0,0 +1,60 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.work;
+
+import ca.uhn.fhir.context.FhirContext;
+
+/**
+ * One fhir context (R4) for the whole process.
+ * Creating a context scans all model classes and takes seconds, so every class uses this one instead of creating its own.
+ * The context is thread-safe; parsers are not - see BundleEncoder for reusable parsers.
+ *
+ */
+public final class FhirContextHolder {
+	
+	private FhirContextHolder() {
+	}
+	
+	//created on first use (class loading is thread-safe)
+	private static class Holder {
+		private static final FhirContext CONTEXT = createContext();
+	}
+	
+	private static FhirContext createContext() {
+		FhirContext ctx = FhirContext.forR4();
+		
+		// Use the narrative generator
+		ctx.setNarrativeGenerator(new SelectiveNarrativeGenerator(NarrativeMode.FULL));
+		return ctx;
+	}
+	
+	/**
+	 * Set narrative generation of the shared context (default: FULL). 
+	 * Applies to all encoders of the process - set it before encoding starts.
+	 * @param mode narrative mode
+	 */
+	public static void setNarrativeMode(NarrativeMode mode) {
+		getContext().setNarrativeGenerator(mode == NarrativeMode.OFF ? null : new SelectiveNarrativeGenerator(mode));
+	}
+	
+	/**
+	 * Shared R4 fhir context
+	 * @return fhir context
+	 */
+	public static FhirContext getContext() {
+		return Holder.CONTEXT;
+	}
+}
@@ -0,0 +1,151 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.work;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Memory budget for loaded patients: the extraction reserves the estimated size of every patient before loading it 
+ * (from its row counts, see PatientMemoryEstimator) and waits while the reservation would exceed the budget; 
+ * after loading, the reservation is corrected to the size of the loaded patient. The conversion releases it. 
+ * Patients are admitted in order of their requests, a patient larger than the budget is admitted when nothing else is reserved.
+ *
+ */
+public class MemoryGovernor {
+	private static final long MB = 1024 * 1024;
+	
+	private final long budget;
+	
+	//guarded by this
+	private long reserved;
+	private long peak;
+	private int patients;
+	//admission in order of requests: ticket being served, tickets given up by interrupted threads
+	private long nextTicket;
+	private long serving;
+	private final Set<Long> cancelled = new HashSet<Long>();
+	private long waitNanos;
+	
+	/**
+	 * Create governor
+	 * @param budget max. reserved bytes
+	 */
+	public MemoryGovernor(long budget) {
+		this.budget = budget;
+	}
+	
+	/**
+	 * Reserve memory - waits until the reservation fits into the budget
+	 * @param bytes estimated size
+	 * @throws InterruptedException
+	 */
+	public synchronized void reserve(long bytes) throws InterruptedException {
+		long ticket = nextTicket++;
+		long start = System.nanoTime();
+		try {
+			while(ticket != serving || (reserved > 0 && reserved + bytes > budget)) {
+				wait();
+			}
+		} catch (InterruptedException e) {
+			//give up the turn
+			if(ticket == serving) {
+				nextTurn();
+			}
+			else {
+				cancelled.add(ticket);
+			}
+			notifyAll();
+			throw e;
+		}
+		waitNanos += System.nanoTime() - start;
+		nextTurn();
+		reserved += bytes;
+		patients++;
+		peak = Math.max(peak, reserved);
+		notifyAll();
+	}
+	
+	private void nextTurn() {
+		serving++;
+		while(cancelled.remove(serving)) {
+			serving++;
+		}
+	}
+	
+	/**
+	 * Correct a reservation (estimate before loading -> size of the loaded patient), does not wait
+	 * @param reservedBytes size reserved so far
+	 * @param bytes new size
+	 */
+	public synchronized void adjust(long reservedBytes, long bytes) {
+		reserved += bytes - reservedBytes;
+		peak = Math.max(peak, reserved);
+		notifyAll();
+	}
+	
+	/**
+	 * Release reserved memory
+	 * @param bytes size passed to reserve() or adjust()
+	 */
+	public synchronized void release(long bytes) {
+		reserved -= bytes;
+		patients--;
+		notifyAll();
+	}
+	
+	/**
+	 * Currently reserved bytes
+	 * @return reserved bytes
+	 */
+	public synchronized long getReservedBytes() {
+		return reserved;
+	}
+	
+	/**
+	 * Max. reserved bytes so far
+	 * @return peak reserved bytes
+	 */
+	public synchronized long getPeakBytes() {
+		return peak;
+	}
+	
+	/**
+	 * Number of patients holding a reservation
+	 * @return patients in flight
+	 */
+	public synchronized int getPatients() {
+		return patients;
+	}
+	
+	/**
+	 * Time spent waiting for memory (all threads)
+	 * @return wait time in ms
+	 */
+	public synchronized long getWaitMs() {
+		return waitNanos / 1000000;
+	}
+
+	public long getBudget() {
+		return budget;
+	}
+	
+	@Override
+	public synchronized String toString() {
+		return "memory: reserved " + reserved / MB + " MB of " + budget / MB + " MB (peak " + peak / MB + " MB), " 
+				+ patients + " patients, waited " + getWaitMs() + " ms";
+	}
+}
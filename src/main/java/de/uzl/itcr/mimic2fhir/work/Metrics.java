@@ -0,0 +1,305 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.work;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Registry of the timers and counters of a run (db queries per table, conversion per resource type, encoding, queue and sink).
+ * Metrics are created on first use and live as long as the process; they are exposed over JMX (de.uzl.itcr.mimic2fhir:type=Metrics) 
+ * and can be printed periodically as one log line (see startLogging()).
+ *
+ */
+public final class Metrics {
+	public static final String OBJECT_NAME = "de.uzl.itcr.mimic2fhir:type=Metrics";
+	
+	private static final Map<String,Timer> timers = new ConcurrentHashMap<String,Timer>();
+	private static final Map<String,Counter> counters = new ConcurrentHashMap<String,Counter>();
+	private static final long startNanos = System.nanoTime();
+	private static ScheduledExecutorService logger;
+	
+	static {
+		register();
+	}
+	
+	private Metrics() {
+	}
+	
+	/**
+	 * Get (or create) timer
+	 * @param name metric name, e.g. db.chartevents
+	 * @return timer
+	 */
+	public static Timer timer(String name) {
+		return timers.computeIfAbsent(name, Timer::new);
+	}
+	
+	/**
+	 * Get (or create) counter
+	 * @param name metric name, e.g. bundle.bytes
+	 * @return counter
+	 */
+	public static Counter counter(String name) {
+		return counters.computeIfAbsent(name, Counter::new);
+	}
+	
+	/**
+	 * Print the metrics line every interval (daemon thread); a second call changes nothing
+	 * @param intervalMs interval in ms
+	 */
+	public static synchronized void startLogging(long intervalMs) {
+		if(logger != null || intervalMs <= 0) {
+			return;
+		}
+		logger = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "metrics-log");
+			t.setDaemon(true);
+			return t;
+		});
+		logger.scheduleAtFixedRate(() -> System.out.println(getSummary()), intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Stop periodic logging
+	 */
+	public static synchronized void stopLogging() {
+		if(logger != null) {
+			logger.shutdownNow();
+			logger = null;
+		}
+	}
+	
+	/**
+	 * All metrics in one line: timers with count, rate, mean and max, then counters with total and rate
+	 * @return metrics line
+	 */
+	public static String getSummary() {
+		double seconds = Math.max(1, System.nanoTime() - startNanos) / 1e9;
+		StringBuilder sb = new StringBuilder("metrics:");
+		for(Timer timer : new TreeMap<String,Timer>(timers).values()) {
+			if(timer.getCount() == 0) {
+				continue;
+			}
+			sb.append(' ').append(timer.name).append('=').append(timer.getCount())
+				.append(String.format(" (%.1f/s, mean %.2f ms, max %.1f ms)", timer.getCount() / seconds, timer.getMeanMs(), timer.getMaxMs()));
+		}
+		for(Counter counter : new TreeMap<String,Counter>(counters).values()) {
+			sb.append(' ').append(counter.name).append('=').append(counter.get())
+				.append(String.format(" (%.1f/s)", counter.get() / seconds));
+		}
+		return sb.toString();
+	}
+	
+	private static void register() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if(!server.isRegistered(name)) {
+				server.registerMBean(new MetricsMBean(), name);
+			}
+		} catch (JMException | SecurityException e) {
+			System.out.println("Metrics: JMX registration failed (" + e.getMessage() + ")");
+		}
+	}
+	
+	/**
+	 * Timer: number, total and max. duration of an operation
+	 */
+	public static final class Timer {
+		private final String name;
+		private final LongAdder count = new LongAdder();
+		private final LongAdder totalNanos = new LongAdder();
+		private final AtomicLong maxNanos = new AtomicLong();
+		
+		private Timer(String name) {
+			this.name = name;
+		}
+		
+		/**
+		 * Record one operation started at start
+		 * @param start System.nanoTime() at the start of the operation
+		 */
+		public void stop(long start) {
+			record(System.nanoTime() - start, 1);
+		}
+		
+		/**
+		 * Record operations
+		 * @param nanos duration of all of them
+		 * @param n number of operations (e.g. resources created), max. is tracked per call
+		 */
+		public void record(long nanos, long n) {
+			count.add(n);
+			totalNanos.add(nanos);
+			maxNanos.accumulateAndGet(n > 1 ? nanos / n : nanos, Math::max);
+		}
+		
+		/**
+		 * Number of recorded operations
+		 * @return count
+		 */
+		public long getCount() {
+			return count.sum();
+		}
+		
+		/**
+		 * Total time of all operations
+		 * @return ms
+		 */
+		public double getTotalMs() {
+			return totalNanos.sum() / 1e6;
+		}
+		
+		/**
+		 * Mean time per operation
+		 * @return ms
+		 */
+		public double getMeanMs() {
+			long n = count.sum();
+			return n == 0 ? 0 : totalNanos.sum() / 1e6 / n;
+		}
+		
+		/**
+		 * Longest operation (longest mean of one record() call)
+		 * @return ms
+		 */
+		public double getMaxMs() {
+			return maxNanos.get() / 1e6;
+		}
+	}
+	
+	/**
+	 * Counter (e.g. bytes)
+	 */
+	public static final class Counter {
+		private final String name;
+		private final LongAdder value = new LongAdder();
+		
+		private Counter(String name) {
+			this.name = name;
+		}
+		
+		/**
+		 * Add to counter
+		 * @param n amount
+		 */
+		public void add(long n) {
+			value.add(n);
+		}
+		
+		/**
+		 * Current value
+		 * @return value
+		 */
+		public long get() {
+			return value.sum();
+		}
+	}
+	
+	/**
+	 * JMX view: per timer the attributes <name>.count, .totalMs, .meanMs and .maxMs, per counter <name>
+	 */
+	private static class MetricsMBean implements DynamicMBean {
+
+		@Override
+		public Object getAttribute(String attribute) throws AttributeNotFoundException {
+			Counter counter = counters.get(attribute);
+			if(counter != null) {
+				return counter.get();
+			}
+			int dot = attribute.lastIndexOf('.');
+			Timer timer = dot > 0 ? timers.get(attribute.substring(0, dot)) : null;
+			if(timer != null) {
+				switch(attribute.substring(dot + 1)) {
+					case "count":
+						return timer.getCount();
+					case "totalMs":
+						return timer.getTotalMs();
+					case "meanMs":
+						return timer.getMeanMs();
+					case "maxMs":
+						return timer.getMaxMs();
+				}
+			}
+			throw new AttributeNotFoundException(attribute);
+		}
+
+		@Override
+		public AttributeList getAttributes(String[] attributes) {
+			AttributeList list = new AttributeList();
+			for(String attribute : attributes) {
+				try {
+					list.add(new Attribute(attribute, getAttribute(attribute)));
+				} catch (AttributeNotFoundException e) {
+					//left out, as defined by DynamicMBean
+				}
+			}
+			return list;
+		}
+
+		@Override
+		public MBeanInfo getMBeanInfo() {
+			//metrics are created on first use: the info is built on every call
+			List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+			for(String name : new TreeMap<String,Timer>(timers).keySet()) {
+				attributes.add(new MBeanAttributeInfo(name + ".count", "long", "Number of operations", true, false, false));
+				attributes.add(new MBeanAttributeInfo(name + ".totalMs", "double", "Total time (ms)", true, false, false));
+				attributes.add(new MBeanAttributeInfo(name + ".meanMs", "double", "Mean time (ms)", true, false, false));
+				attributes.add(new MBeanAttributeInfo(name + ".maxMs", "double", "Max. time (ms)", true, false, false));
+			}
+			for(String name : new TreeMap<String,Counter>(counters).keySet()) {
+				attributes.add(new MBeanAttributeInfo(name, "long", "Counter", true, false, false));
+			}
+			return new MBeanInfo(Metrics.class.getName(), "mimic2fhir metrics", attributes.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[0], null);
+		}
+
+		@Override
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+			throw new AttributeNotFoundException("Metrics are read-only");
+		}
+
+		@Override
+		public AttributeList setAttributes(AttributeList attributes) {
+			return new AttributeList();
+		}
+
+		@Override
+		public Object invoke(String actionName, Object[] params, String[] signature) {
+			throw new UnsupportedOperationException(actionName);
+		}
+	}
+}
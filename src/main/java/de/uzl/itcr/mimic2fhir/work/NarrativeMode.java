@@ -0,0 +1,52 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.work;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Narrative generation: which resources get a generated text (html) when encoded?
+ * -OFF: no narratives (fastest)
+ * -LOW_VOLUME: only resource types that occur once per patient/admission or are shared (Patient, Encounter, Medication, ..), not Observations etc.
+ * -FULL: all resource types (a narrative is generated where a template exists)
+ *
+ */
+public enum NarrativeMode {
+	OFF,
+	LOW_VOLUME,
+	FULL;
+	
+	private static final Set<String> LOW_VOLUME_TYPES = new HashSet<String>(Arrays.asList(
+			"Patient", "Encounter", "Organization", "Location", "Practitioner", "PractitionerRole", "Medication"));
+	
+	/**
+	 * Is a narrative generated for this resource type?
+	 * @param resourceType fhir resource type
+	 * @return true, if narratives are generated
+	 */
+	public boolean isGenerated(String resourceType) {
+		switch(this) {
+			case FULL:
+				return true;
+			case LOW_VOLUME:
+				return LOW_VOLUME_TYPES.contains(resourceType);
+			default:
+				return false;
+		}
+	}
+}
@@ -0,0 +1,397 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.work;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Location;
+import org.hl7.fhir.r4.model.Medication;
+import org.hl7.fhir.r4.model.MedicationStatement;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Organization;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Period;
+import org.hl7.fhir.r4.model.Practitioner;
+import org.hl7.fhir.r4.model.PractitionerRole;
+import org.hl7.fhir.r4.model.Procedure;
+import org.hl7.fhir.r4.model.Reference;
+
+import de.uzl.itcr.mimic2fhir.model.MAdmission;
+import de.uzl.itcr.mimic2fhir.model.MCaregiver;
+import de.uzl.itcr.mimic2fhir.model.MChartevent;
+import de.uzl.itcr.mimic2fhir.model.MPatient;
+import de.uzl.itcr.mimic2fhir.model.MTransfer;
+import de.uzl.itcr.mimic2fhir.model.MWard;
+import de.uzl.itcr.mimic2fhir.tools.ResourceIds;
+
+/**
+ * Conversion of mimic patients to FHIR transaction bundles
+ * Not thread-safe (current bundle and memory lists) - one converter per thread; caregivers and wards are only read and may be shared.
+ * Resources that appear in several bundles (patient, encounter, conditions, procedures, hospital) are copied per bundle:
+ * handed over bundles are encoded asynchronously and the narrative generator changes their resources.
+ *
+ */
+public class PatientConverter {
+	//chart events of a spilled admission read per chunk
+	private static final int EVENT_CHUNK_SIZE = 10000;
+	
+	//conversion time per resource type (see Metrics)
+	private static final Metrics.Timer PATIENT_TIMER = Metrics.timer("convert.Patient");
+	private static final Metrics.Timer ENCOUNTER_TIMER = Metrics.timer("convert.Encounter");
+	private static final Metrics.Timer CONDITION_TIMER = Metrics.timer("convert.Condition");
+	private static final Metrics.Timer PROCEDURE_TIMER = Metrics.timer("convert.Procedure");
+	private static final Metrics.Timer MEDICATION_TIMER = Metrics.timer("convert.MedicationStatement");
+	private static final Metrics.Timer OBSERVATION_TIMER = Metrics.timer("convert.Observation");
+	//resources in handed over bundles
+	static final String RESOURCES_COUNTER = "convert.resources";
+	private static final Metrics.Counter RESOURCES = Metrics.counter(RESOURCES_COUNTER);
+	
+	private final HashMap<Integer,MCaregiver> caregivers;
+	private final HashMap<Integer,MWard> locations;
+	private final Organization hospital;
+	private final BundleControl bundleC;
+	
+	//memoryLists of locations and caregivers and medication (-> conditional creates, each resource only once in bundle)
+	private final HashMap<String,String> locationsInBundle = new HashMap<String,String>();
+	private final HashMap<String,String> caregiversInBundle = new HashMap<String,String>();
+	private final HashMap<String,String> medicationInBundle = new HashMap<String,String>();
+	
+	private BiConsumer<String,Bundle> handler;
+	
+	/**
+	 * Create new converter
+	 * @param config Config-Object (bundle encoding and limits, upload mode)
+	 * @param caregivers preloaded caregivers
+	 * @param locations preloaded wards
+	 */
+	public PatientConverter(Config config, HashMap<Integer,MCaregiver> caregivers, HashMap<Integer,MWard> locations) {
+		this.caregivers = caregivers;
+		this.locations = locations;
+		this.hospital = createTopHospital();
+		this.bundleC = new BundleControl(config.getBundleEncoding(), config.getBundleByteLimit(), config.getBundleResourceLimit());
+		this.bundleC.setUploadMode(config.getUploadMode());
+	}
+	
+	/**
+	 * Convert one patient: one or more transaction bundles per admission (see Config bundle limits)
+	 * @param mimicPat patient with admissions and events
+	 * @param numPat number of the patient (row id) - bundle numbers are [numPat]_[admission]_[bundle]
+	 * @param handler receives every completed bundle with its number
+	 */
+	public void convert(MPatient mimicPat, int numPat, BiConsumer<String,Bundle> handler) {
+		convert(mimicPat, numPat, null, handler);
+	}
+	
+	/**
+	 * Convert one patient or one part of an admission (see PatientTask)
+	 * @param mimicPat patient with admissions and events
+	 * @param numPat number of the patient (row id)
+	 * @param partNumber number of the admission part - bundle numbers are [numPat]_[partNumber]_[bundle]; null: whole patient
+	 * @param handler receives every completed bundle with its number
+	 */
+	public void convert(MPatient mimicPat, int numPat, String partNumber, BiConsumer<String,Bundle> handler) {
+		this.handler = handler;
+		try {
+			convert(mimicPat, numPat, partNumber);
+		} catch (RuntimeException e) {
+			//drop partial bundle
+			bundleC.resetBundle();
+			resetMemoryLists();
+			throw e;
+		}
+		finally {
+			bundleC.resetInternalBundleNumber();
+			this.handler = null;
+			mimicPat.releaseEventSpills();
+		}
+	}
+	
+	private void convert(MPatient mimicPat, int numPat, String partNumber) {
+		//Fill FHIR-Structure
+		long start = System.nanoTime();
+		Patient fhirPat = mimicPat.createFhirFromMimic();	
+		PATIENT_TIMER.stop(start);
+		String patNumber;
+		int admissionIndex = 0;
+
+		//All admissions of one patient
+		for(MAdmission admission : mimicPat.getAdmissions()) {
+
+			//First: Load/create fhir resources
+			start = System.nanoTime();
+			Encounter enc = admission.createFhirEncounterFromMimic(fhirPat.getId());
+			ENCOUNTER_TIMER.stop(start);
+
+			//create Conditions per Admission
+			start = System.nanoTime();
+			List<Condition> conditions = admission.createFhirConditionsFromMimic(fhirPat.getId());
+			CONDITION_TIMER.record(System.nanoTime() - start, conditions.size());
+
+			//create Procedures per Admission
+			start = System.nanoTime();
+			List<Procedure> procedures = admission.createFhirProceduresFromMimic(fhirPat.getId());
+			PROCEDURE_TIMER.record(System.nanoTime() - start, procedures.size());
+
+			//create List Of Medication & MedicationStatements
+			start = System.nanoTime();
+			List<Medication> medications = admission.createFhirMedicationsFromMimic();
+			List<MedicationStatement> prescriptions = admission.createFhirMedicationStatementsFromMimic(fhirPat.getId(), enc.getId());
+			MEDICATION_TIMER.record(System.nanoTime() - start, prescriptions.size());
+	
+			//create Observation from Labevents
+			start = System.nanoTime();
+			List<Observation> obsLab = admission.createFhirLabObservationsFromMimic(fhirPat.getId(), enc.getId());
+			//create Observation from Noteevents
+			List<Observation> obsNotes = admission.createFhirNoteObservationsFromMimic(fhirPat.getId(), enc.getId());
+			OBSERVATION_TIMER.record(System.nanoTime() - start, obsLab.size() + obsNotes.size());
+
+			//create bundle without observations and medication:
+			createBasicBundle(fhirPat, admission, enc, conditions, procedures);
+			
+			//Medication only in first bundle of admission
+			//Prescriptions		
+			for(Medication med : medications) {
+				String identifier = med.getCode().getCodingFirstRep().getCode();
+				if(!medicationInBundle.containsKey(identifier))
+				{
+					bundleC.addUUIDResourceWithConditionToBundle(med, "code=" + med.getCode().getCodingFirstRep().getCode());
+					medicationInBundle.put(identifier, med.getId());
+				}
+			}
+			
+			//..and MedicationStatements (with correct Medication as Reference)
+			for(MedicationStatement mstmt : prescriptions) {
+				String identifier = medications.get(prescriptions.indexOf(mstmt)).getCode().getCodingFirstRep().getCode();
+				String medId = medicationInBundle.get(identifier);
+				mstmt.setMedication(new Reference(medId));
+				
+				bundleC.addUUIDResourceToBundle(mstmt);
+			}
+			
+			//Identification
+			admissionIndex++;
+			patNumber = numPat + "_" + (partNumber != null ? partNumber : Integer.toString(admissionIndex));
+
+			//add observations to bundle - created per chunk of chart events (oversized admissions are read from their spill file)
+			String number = patNumber;
+			admission.forEachEventChunk(EVENT_CHUNK_SIZE, events -> {
+				long chunkStart = System.nanoTime();
+				List<Observation> observations = new ArrayList<Observation>(events.size());
+				for(MChartevent event : events) {
+					observations.add(event.getFhirObservation(fhirPat.getId(), enc.getId()));
+				}
+				OBSERVATION_TIMER.record(System.nanoTime() - chunkStart, events.size());
+				
+				for(int i = 0; i < events.size(); i++) {
+					MChartevent event = events.get(i);
+					Observation o = observations.get(i);
+					
+					//check if bundle is full
+					checkBundleLimit(o, number, fhirPat, admission, enc, conditions, procedures);
+	
+					//get Caregiver for this event
+					int caregiverId = event.getCareGiverId();
+					if(caregiverId != 0) {
+						String pFhirId = processCaregiver(caregiverId);
+	
+						//Set caregiver-Reference -> Performer
+						o.addPerformer(new Reference(pFhirId));
+					}
+					//Order important - these reference pat & encounter
+					bundleC.addResourceToBundle(o);
+				}
+			});
+
+
+			for(Observation o : obsLab) {
+				//check if bundle is full
+				checkBundleLimit(o, patNumber, fhirPat, admission, enc, conditions, procedures);
+
+				bundleC.addResourceToBundle(o);
+			}
+
+			for(Observation o : obsNotes) {
+				//check if bundle is full
+				checkBundleLimit(o, patNumber, fhirPat, admission, enc, conditions, procedures);
+
+				//get Caregiver for this event
+				int caregiverId = admission.getNoteevents().get(obsNotes.indexOf(o)).getCaregiverId();
+				if(caregiverId != 0) {
+					String pFhirId = processCaregiver(caregiverId);
+
+					//Set caregiver-Reference -> Performer
+					o.addPerformer(new Reference(pFhirId));
+				}
+
+				bundleC.addResourceToBundle(o);
+			}
+			
+
+			//Hand bundle over
+			handOver(patNumber);
+
+			//reset bundle and memory lists
+			bundleC.resetBundle();
+			resetMemoryLists();
+			
+
+		}
+	}
+
+	private void checkBundleLimit(Observation next, String numPat, Patient fhirPat, MAdmission admission, Encounter enc,
+			List<Condition> conditions, List<Procedure> procedures) {
+		
+		//if next resource exceeds byte budget or resource limit -> start new bundle
+		if(bundleC.isFull(next)) {
+			//Hand bundle over
+			handOver(numPat);
+			
+			//reset bundle and memory lists
+			bundleC.resetBundle();
+			resetMemoryLists();
+			//reload basic bundle stuff 
+			createBasicBundle(fhirPat, admission, enc, conditions, procedures);
+		}
+	}
+
+	private void handOver(String numPat) {
+		Bundle bundle = bundleC.getTransactionBundle();
+		RESOURCES.add(bundle.getEntry().size());
+		handler.accept(numPat + "_" + bundleC.getInternalBundleNumber(), bundle);
+	}
+
+	private void resetMemoryLists() {
+		caregiversInBundle.clear();
+		locationsInBundle.clear();
+		medicationInBundle.clear();
+	}
+	
+	private void createBasicBundle(Patient fhirPat, MAdmission admission, Encounter enc, List<Condition> conditions,
+			List<Procedure> procedures) {
+		//copies per bundle - previous bundles of the admission may still be encoded
+		Patient pat = fhirPat.copy();
+		Organization org = hospital.copy();
+		Encounter bundleEnc = enc.copy();
+		
+		//Pat to bundle
+		bundleC.addUUIDResourceWithConditionToBundle(pat, "identifier=" + pat.getIdentifierFirstRep().getSystem() + "|" + pat.getIdentifierFirstRep().getValue());
+		
+		//Top of all: Hospital
+		bundleC.addUUIDResourceWithConditionToBundle(org, "identifier=" + org.getIdentifierFirstRep().getSystem() + "|" + org.getIdentifierFirstRep().getValue());
+					
+		bundleEnc.getDiagnosis().clear(); //clear all procedures & diagnoses
+		
+		//Diagnoses
+		for(int i = 0; i < conditions.size(); i++) {
+			Condition c = conditions.get(i).copy();
+			int rank = admission.getDiagnoses().get(i).getSeqNumber();
+			
+			//set Condition in enc.diagnosis
+			bundleEnc.addDiagnosis().setCondition(new Reference(c.getId())).setRank(rank);
+			
+			//add Condition to bundle
+			bundleC.addUUIDResourceWithConditionToBundle(c, "identifier=" + c.getIdentifierFirstRep().getSystem() + "|" + c.getIdentifierFirstRep().getValue());
+		}
+		
+		//Procedures		
+		for(int i = 0; i < procedures.size(); i++) {
+			Procedure p = procedures.get(i).copy();
+			int rank = admission.getProcedures().get(i).getSeqNumber();
+			
+			//set Procedure in enc.diagnosis
+			bundleEnc.addDiagnosis().setCondition(new Reference(p.getId())).setRank(rank);
+			
+			//add Procedure to bundle
+			bundleC.addUUIDResourceWithConditionToBundle(p, "identifier=" + p.getIdentifierFirstRep().getSystem() + "|" + p.getIdentifierFirstRep().getValue());
+		}
+		
+		//create transfer chain
+		
+		bundleEnc.getLocation().clear(); //clear all locations -> to be newly added
+		
+		for(MTransfer t : admission.getTransfers()) {
+			Location locWard = locations.get(t.getCurrWard()).getFhirLocation();
+			String identifier = locWard.getIdentifierFirstRep().getValue();
+			String id;
+			if(!locationsInBundle.containsKey(identifier)) {
+				//add to memory list:
+				locationsInBundle.put(identifier, locWard.getId());
+				id =  locWard.getId();
+				//Location: Set Hospital als TOp-Orga
+				locWard.setManagingOrganization(new Reference(org.getId()));
+				
+				bundleC.addUUIDResourceWithConditionToBundle(locWard, "identifier=" + locWard.getIdentifierFirstRep().getSystem() + "|" + identifier);
+			}else {
+				id = locationsInBundle.get(identifier);
+			}
+
+			//Ward as Location
+			bundleEnc.addLocation().setLocation(new Reference(id)).setPeriod(new Period().setStart(t.getIntime()).setEnd(t.getOuttime()));
+		}
+		
+		//add Encounter to bundle
+		bundleC.addUUIDResourceWithConditionToBundle(bundleEnc,"identifier=" + bundleEnc.getIdentifierFirstRep().getSystem() + "|" + bundleEnc.getIdentifierFirstRep().getValue());
+	}
+
+	private String processCaregiver(int caregiverId) {
+		MCaregiver cgHere = caregivers.get(caregiverId);
+		//Create FHIR-Resources for Practitioner und -Role
+		Practitioner pFhir = cgHere.getFhirRepresentation();
+		String identifier = pFhir.getIdentifierFirstRep().getValue();
+		String id;
+		if(!caregiversInBundle.containsKey(identifier)) {
+			//add to memory list
+			caregiversInBundle.put(identifier, pFhir.getId());
+			id = pFhir.getId();
+			bundleC.addUUIDResourceWithConditionToBundle(pFhir, "identifier=" + pFhir.getIdentifierFirstRep().getSystem() + "|" + identifier);
+			
+			PractitionerRole roleFhir = cgHere.getFhirRepresentationRole();
+			if(roleFhir != null) {
+				roleFhir.setPractitioner(new Reference(pFhir.getId()));
+				roleFhir.setOrganization(new Reference(hospital.getId()));
+				bundleC.addUUIDResourceWithConditionToBundle(roleFhir, "identifier=" + roleFhir.getIdentifierFirstRep().getSystem() + "|" + roleFhir.getIdentifierFirstRep().getValue());
+			}
+		}
+		else {
+			id = caregiversInBundle.get(identifier);
+		}
+		return id;
+	}
+	
+	/**
+	 * Create the "dummy" Organization that is "top player" of PractitionerRoles and Locations
+	 * @return hospital organization
+	 */
+	public static Organization createTopHospital() {
+		//Create a "dummy" Organization that is "top player" of PractitionerRoles and Locations
+		Organization hospital = new Organization();
+		
+		hospital.addIdentifier().setSystem("http://www.imi-mimic.de").setValue("hospital");
+		
+		hospital.addType().addCoding().setCode("prov").setSystem("http://hl7.org/fhir/organization-type").setDisplay("Healthcare Provider");
+		hospital.setName("IMI-Mimic Hospital");
+		
+		
+		hospital.setId(ResourceIds.fromIdentifier(hospital.fhirType(), hospital.getIdentifierFirstRep()));
+		return hospital;
+	}
+}
@@ -0,0 +1,148 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.work;
+
+import java.util.List;
+
+import de.uzl.itcr.mimic2fhir.model.MAdmission;
+import de.uzl.itcr.mimic2fhir.model.MChartevent;
+import de.uzl.itcr.mimic2fhir.model.MDiagnose;
+import de.uzl.itcr.mimic2fhir.model.MLabevent;
+import de.uzl.itcr.mimic2fhir.model.MNoteevent;
+import de.uzl.itcr.mimic2fhir.model.MPatient;
+import de.uzl.itcr.mimic2fhir.model.MPrescription;
+import de.uzl.itcr.mimic2fhir.model.MProcedure;
+import de.uzl.itcr.mimic2fhir.model.MTransfer;
+
+/**
+ * Cheap estimate of the heap size of a loaded patient from its row counts and string sizes 
+ * (object headers, fields and list slots of a 64 bit JVM; strings with two bytes per char).
+ *
+ */
+public class PatientMemoryEstimator {
+	
+	//header, fields, slot in the list of the admission
+	private static final int PATIENT = 64;
+	private static final int ADMISSION = 120;
+	private static final int CHART_EVENT = 56;
+	private static final int LAB_EVENT = 64;
+	private static final int NOTE_EVENT = 48;
+	private static final int PRESCRIPTION = 96;
+	private static final int CODE = 40;
+	private static final int TRANSFER = 72;
+	private static final int DATE = 24;
+	private static final int STRING = 40;
+	//rows not loaded yet: typical number of chars of the strings of a row in MIMIC
+	private static final int CHART_EVENT_CHARS = 40;
+	private static final int LAB_EVENT_CHARS = 40;
+	private static final int NOTE_EVENT_CHARS = 8000;
+	private static final int PRESCRIPTION_CHARS = 120;
+	//diagnoses, procedures and transfers (not counted)
+	private static final int ADMISSION_DETAILS = 4096;
+	
+	private PatientMemoryEstimator() {
+	}
+	
+	/**
+	 * Estimated heap size of a patient with all admissions and events (bytes)
+	 * @param patient loaded patient
+	 * @return estimated size
+	 */
+	public static long estimate(MPatient patient) {
+		long size = PATIENT + 2 * DATE + string(patient.getPatientSubjectId()) + string(patient.getGender());
+		for(MAdmission admission : patient.getAdmissions()) {
+			size += estimate(admission);
+		}
+		return size;
+	}
+	
+	/**
+	 * Estimated heap size of a task before loading it, from the row counts of the admissions of its patient (bytes)
+	 * @param task patient or admission part to load
+	 * @param admissions row counts (see ConnectDB.getAdmissionSizes())
+	 * @param eventsPerPart chart events per admission part (see Config.getEventsPerTask())
+	 * @param spillThreshold chart events kept in memory per admission, 0: all (see Config.getEventSpillThreshold())
+	 * @return estimated size
+	 */
+	public static long estimate(PatientTask task, List<AdmissionSize> admissions, int eventsPerPart, int spillThreshold) {
+		long size = PATIENT + 2 * DATE + 2 * STRING;
+		for(AdmissionSize admission : admissions) {
+			long chartEvents = admission.getChartEvents();
+			boolean otherEvents = true;
+			if(task.isAdmissionPart()) {
+				if(admission.getAdmissionId() != task.getAdmissionId()) {
+					continue;
+				}
+				chartEvents = Math.max(0, Math.min(eventsPerPart, chartEvents - (long)task.getPart() * eventsPerPart));
+				otherEvents = task.getPart() == 0;
+			}
+			else if(admission.getAdmissionId() == 0 || task.getSplitAdmissions().contains(admission.getAdmissionId())) {
+				continue;
+			}
+			if(spillThreshold > 0) {
+				chartEvents = Math.min(chartEvents, spillThreshold);
+			}
+			size += ADMISSION + 2 * DATE + 7 * STRING + ADMISSION_DETAILS 
+					+ chartEvents * (CHART_EVENT + DATE + 3 * STRING + 2 * CHART_EVENT_CHARS);
+			if(otherEvents) {
+				size += admission.getLabEvents() * (LAB_EVENT + DATE + 5 * STRING + 2 * LAB_EVENT_CHARS) 
+						+ admission.getNoteEvents() * (NOTE_EVENT + DATE + 3 * STRING + 2 * NOTE_EVENT_CHARS) 
+						+ admission.getPrescriptions() * (PRESCRIPTION + 2 * DATE + 13 * STRING + 2 * PRESCRIPTION_CHARS);
+			}
+		}
+		return size;
+	}
+	
+	private static long estimate(MAdmission admission) {
+		long size = ADMISSION + 2 * DATE 
+				+ string(admission.getAdmissionId()) + string(admission.getAdmissionType()) 
+				+ string(admission.getAdmissionLocation()) + string(admission.getDischargeLocation()) 
+				+ string(admission.getMaritalStatus()) + string(admission.getLanguage()) + string(admission.getReligion());
+		
+		for(MChartevent e : admission.getEvents()) {
+			size += CHART_EVENT + DATE + string(e.getMeasurementType()) + string(e.getValue()) + string(e.getUnit());
+		}
+		for(MLabevent e : admission.getLabEvents()) {
+			size += LAB_EVENT + DATE + string(e.getMeasurementType()) + string(e.getValue()) + string(e.getUnit()) 
+					+ string(e.getFluid()) + string(e.getLoinc());
+		}
+		for(MNoteevent e : admission.getNoteevents()) {
+			size += NOTE_EVENT + DATE + string(e.getCategory()) + string(e.getDescription()) + string(e.getText());
+		}
+		for(MPrescription p : admission.getPrescriptions()) {
+			size += PRESCRIPTION + 2 * DATE 
+					+ string(p.getDrugtype()) + string(p.getDrug()) + string(p.getDrugNamePoe()) + string(p.getDrugNameGeneric()) 
+					+ string(p.getFormularyDrugCd()) + string(p.getGsn()) + string(p.getNdc()) + string(p.getProdStrength()) 
+					+ string(p.getDoseValRx()) + string(p.getDoseUnitRx()) + string(p.getFormValDisp()) + string(p.getFormUnitDisp()) 
+					+ string(p.getRoute());
+		}
+		for(MDiagnose d : admission.getDiagnoses()) {
+			size += CODE + string(d.getIcd9Code()) + string(d.getShortTitle()) + string(d.getLongTitle());
+		}
+		for(MProcedure p : admission.getProcedures()) {
+			size += CODE + string(p.getIcd9Code()) + string(p.getShortTitle()) + string(p.getLongTitle());
+		}
+		for(MTransfer t : admission.getTransfers()) {
+			size += TRANSFER + 2 * DATE + string(t.getTransferId()) + string(t.getEventType()) 
+					+ string(t.getPrevUnit()) + string(t.getCurrUnit());
+		}
+		return size;
+	}
+	
+	private static long string(String s) {
+		return s != null ? STRING + 2L * s.length() : 0;
+	}
+}
@@ -0,0 +1,148 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.work;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * Unit of work of the extraction: a whole patient (without the admissions that are split into parts) 
+ * or one part of the chart events of a giant admission (see WorkloadPlanner)
+ *
+ */
+public class PatientTask {
+	private final int rowId;
+	private final Set<Integer> splitAdmissions;
+	private final int admissionId;
+	private final int part;
+	private final int firstChartRowId;
+	private final int endChartRowId;
+	private final long cost;
+	private final long memoryEstimate;
+	
+	private PatientTask(int rowId, Set<Integer> splitAdmissions, int admissionId, int part, int firstChartRowId, int endChartRowId, long cost, 
+			long memoryEstimate) {
+		this.rowId = rowId;
+		this.splitAdmissions = splitAdmissions;
+		this.admissionId = admissionId;
+		this.part = part;
+		this.firstChartRowId = firstChartRowId;
+		this.endChartRowId = endChartRowId;
+		this.cost = cost;
+		this.memoryEstimate = memoryEstimate;
+	}
+	
+	/**
+	 * Task for a whole patient
+	 * @param rowId row id of patient
+	 * @return task
+	 */
+	public static PatientTask patient(int rowId) {
+		return patient(rowId, Collections.<Integer>emptySet(), 0);
+	}
+	
+	/**
+	 * Task for a patient without the given admissions
+	 * @param rowId row id of patient
+	 * @param splitAdmissions admissions (HADM_ID) converted by admission parts
+	 * @param cost estimated cost
+	 * @return task
+	 */
+	public static PatientTask patient(int rowId, Set<Integer> splitAdmissions, long cost) {
+		return new PatientTask(rowId, splitAdmissions, 0, 0, 0, 0, cost, 0);
+	}
+	
+	/**
+	 * Task for a part of an admission: chart events with firstChartRowId <= ROW_ID < endChartRowId; 
+	 * part 0 contains the other events (lab, notes, prescriptions) as well
+	 * @param rowId row id of patient
+	 * @param admissionId HADM_ID
+	 * @param part number of part (0..)
+	 * @param firstChartRowId first chart event row id
+	 * @param endChartRowId chart event row id after the part (exclusive)
+	 * @param cost estimated cost
+	 * @return task
+	 */
+	public static PatientTask admissionPart(int rowId, int admissionId, int part, int firstChartRowId, int endChartRowId, long cost) {
+		return new PatientTask(rowId, Collections.<Integer>emptySet(), admissionId, part, firstChartRowId, endChartRowId, cost, 0);
+	}
+	
+	/**
+	 * Same task with an estimated heap size (see PatientMemoryEstimator), reserved before loading it
+	 * @param bytes estimated size
+	 * @return task
+	 */
+	public PatientTask withMemoryEstimate(long bytes) {
+		return new PatientTask(rowId, splitAdmissions, admissionId, part, firstChartRowId, endChartRowId, cost, bytes);
+	}
+
+	/**
+	 * Part of an admission or whole patient?
+	 * @return true: part of an admission
+	 */
+	public boolean isAdmissionPart() {
+		return admissionId != 0;
+	}
+	
+	/**
+	 * Number of the admission part in bundle numbers ([rowId]_[admissionId]p[part]_[bundle])
+	 * @return admission part number, null for a whole patient
+	 */
+	public String getPartNumber() {
+		return isAdmissionPart() ? admissionId + "p" + part : null;
+	}
+	
+	public int getRowId() {
+		return rowId;
+	}
+
+	public Set<Integer> getSplitAdmissions() {
+		return splitAdmissions;
+	}
+
+	public int getAdmissionId() {
+		return admissionId;
+	}
+
+	public int getPart() {
+		return part;
+	}
+
+	public int getFirstChartRowId() {
+		return firstChartRowId;
+	}
+
+	public int getEndChartRowId() {
+		return endChartRowId;
+	}
+
+	public long getCost() {
+		return cost;
+	}
+
+	/**
+	 * Estimated heap size of the loaded task
+	 * @return estimated bytes, 0 if not estimated
+	 */
+	public long getMemoryEstimate() {
+		return memoryEstimate;
+	}
+	
+	@Override
+	public String toString() {
+		return isAdmissionPart() ? rowId + "_" + getPartNumber() : Integer.toString(rowId);
+	}
+}
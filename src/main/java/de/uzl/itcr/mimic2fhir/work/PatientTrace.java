@@ -0,0 +1,166 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.work;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Trace of one task (patient or admission part) on its way through the pipeline: time and rows of every db fetch, 
+ * conversion, encoding and sink time, bundles and bundle bytes. Written to the trace log (see TraceLog) after its last bundle.
+ *
+ */
+public class PatientTrace {
+	private final PatientTask task;
+	
+	//table -> {nanos, rows}; written by the extraction only
+	private final Map<String,long[]> fetches = new LinkedHashMap<String,long[]>();
+	private volatile long convertNanos;
+	private final AtomicLong encodeNanos = new AtomicLong();
+	private final AtomicLong sinkNanos = new AtomicLong();
+	private final AtomicLong bundleBytes = new AtomicLong();
+	private final AtomicInteger bundles = new AtomicInteger();
+	//conversion and bundles still in the pipeline
+	private final AtomicInteger open = new AtomicInteger(1);
+	
+	/**
+	 * Create trace
+	 * @param task traced task
+	 */
+	public PatientTrace(PatientTask task) {
+		this.task = task;
+	}
+	
+	/**
+	 * Add a db query
+	 * @param table table (see ConnectDB.TABLES)
+	 * @param nanos query time
+	 * @param rows read rows
+	 */
+	public void addFetch(String table, long nanos, long rows) {
+		long[] fetch = fetches.computeIfAbsent(table, k -> new long[2]);
+		fetch[0] += nanos;
+		fetch[1] += rows;
+	}
+	
+	/**
+	 * Set conversion time (without the time blocked by the next stage)
+	 * @param convertNanos conversion time
+	 */
+	public void setConvertNanos(long convertNanos) {
+		this.convertNanos = convertNanos;
+	}
+	
+	/**
+	 * A bundle of the task was created - the trace is complete after it has passed the sink
+	 */
+	public void bundleCreated() {
+		bundles.incrementAndGet();
+		open.incrementAndGet();
+	}
+	
+	/**
+	 * Add encoding of a bundle
+	 * @param nanos encoding time
+	 * @param bytes encoded size
+	 */
+	public void addEncode(long nanos, long bytes) {
+		encodeNanos.addAndGet(nanos);
+		bundleBytes.addAndGet(bytes);
+	}
+	
+	/**
+	 * Add sink time of a bundle
+	 * @param nanos sink time
+	 */
+	public void addSink(long nanos) {
+		sinkNanos.addAndGet(nanos);
+	}
+	
+	/**
+	 * The conversion or a bundle is done
+	 * @return true, if it was the last one: the trace is complete
+	 */
+	boolean done() {
+		return open.decrementAndGet() == 0;
+	}
+	
+	public PatientTask getTask() {
+		return task;
+	}
+	
+	/**
+	 * Query time of a table
+	 * @param table table
+	 * @return nanos, 0 if not queried
+	 */
+	public long getFetchNanos(String table) {
+		long[] fetch = fetches.get(table);
+		return fetch != null ? fetch[0] : 0;
+	}
+	
+	/**
+	 * Read rows of a table
+	 * @param table table
+	 * @return rows, 0 if not queried
+	 */
+	public long getFetchRows(String table) {
+		long[] fetch = fetches.get(table);
+		return fetch != null ? fetch[1] : 0;
+	}
+	
+	/**
+	 * Queried tables in order of their first query
+	 * @return tables
+	 */
+	public Iterable<String> getFetchedTables() {
+		return fetches.keySet();
+	}
+	
+	public long getConvertNanos() {
+		return convertNanos;
+	}
+	
+	public long getEncodeNanos() {
+		return encodeNanos.get();
+	}
+	
+	public long getSinkNanos() {
+		return sinkNanos.get();
+	}
+	
+	public long getBundleBytes() {
+		return bundleBytes.get();
+	}
+	
+	public int getBundles() {
+		return bundles.get();
+	}
+	
+	/**
+	 * Time spent on the task in all stages (waiting between the stages not included)
+	 * @return nanos
+	 */
+	public long getTotalNanos() {
+		long total = convertNanos + encodeNanos.get() + sinkNanos.get();
+		for(long[] fetch : fetches.values()) {
+			total += fetch[0];
+		}
+		return total;
+	}
+}
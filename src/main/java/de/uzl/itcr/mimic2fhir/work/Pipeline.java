@@ -0,0 +1,265 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.work;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Staged pipeline: every stage has its own threads and a bounded input queue, so all stages work at the same time 
+ * and a slow stage holds back the ones before it (at most "capacity" items wait per stage).
+ * Per stage, the share of time its threads were busy, waiting for input or blocked by the next stage is measured (see getUtilization()):
+ * the bottleneck is the stage that is busy all the time while the others wait.
+ *
+ */
+public class Pipeline {
+	
+	/**
+	 * Work of one stage thread (one instance per thread, so it may hold resources like a db connection)
+	 * @param <I> input item
+	 * @param <O> output item
+	 */
+	public interface Stage<I,O> {
+		/**
+		 * Process one item
+		 * @param item input item
+		 * @param out passes results to the next stage (any number per item)
+		 */
+		void process(I item, Consumer<O> out);
+		
+		/**
+		 * Release resources after the last item
+		 */
+		default void close() {
+		}
+	}
+	
+	private static final Object END = new Object();
+	
+	private final int capacity;
+	private final List<StageRunner> stages = new ArrayList<StageRunner>();
+	
+	//submitted or emitted, not yet processed items
+	private final AtomicLong inFlight = new AtomicLong();
+	private long startNanos;
+	
+	/**
+	 * Create new pipeline
+	 * @param capacity max. number of waiting items per stage
+	 */
+	public Pipeline(int capacity) {
+		this.capacity = Math.max(1, capacity);
+	}
+	
+	/**
+	 * Add a stage - input of the stage is the output of the stage added before
+	 * @param name stage name (threads and utilization)
+	 * @param threads number of threads
+	 * @param factory creates the work of one thread
+	 * @return this pipeline
+	 */
+	public <I,O> Pipeline addStage(String name, int threads, Supplier<? extends Stage<I,O>> factory) {
+		stages.add(new StageRunner(name, Math.max(1, threads), factory));
+		return this;
+	}
+	
+	/**
+	 * Start the threads of all stages
+	 */
+	public void start() {
+		startNanos = System.nanoTime();
+		for(int i = 0; i < stages.size(); i++) {
+			stages.get(i).start(i + 1 < stages.size() ? stages.get(i + 1).input : null);
+		}
+	}
+	
+	/**
+	 * Submit an item to the first stage; blocks while the stage is full
+	 * @param item input of the first stage
+	 */
+	public void submit(Object item) {
+		inFlight.incrementAndGet();
+		try {
+			stages.get(0).input.put(item);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Wait until all submitted items have passed all stages (the pipeline stays open)
+	 */
+	public void awaitIdle() {
+		try {
+			while(inFlight.get() > 0) {
+				Thread.sleep(20);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Number of items that failed in any stage (exception)
+	 * @return number of failed items
+	 */
+	public long getErrors() {
+		long errors = 0;
+		for(StageRunner stage : stages) {
+			errors += stage.errors.get();
+		}
+		return errors;
+	}
+	
+	/**
+	 * End of input: waits until all stages have processed their items and their threads are closed
+	 */
+	public void finish() {
+		try {
+			stages.get(0).input.put(END);
+			for(StageRunner stage : stages) {
+				stage.stopped.await();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Utilization of all stages since start, one line per stage
+	 * @return e.g. "convert: 4 threads, 120 items, busy 97%, waiting for input 1%, blocked by next stage 2%"
+	 */
+	public String getUtilization() {
+		long elapsed = Math.max(1, System.nanoTime() - startNanos);
+		StringBuilder sb = new StringBuilder();
+		for(StageRunner stage : stages) {
+			long total = elapsed * stage.threads;
+			sb.append(stage.name).append(": ").append(stage.threads).append(" threads, ")
+				.append(stage.items.get()).append(" items, ")
+				.append("busy ").append(100 * stage.busyNanos.get() / total).append("%, ")
+				.append("waiting for input ").append(100 * stage.waitInNanos.get() / total).append("%, ")
+				.append("blocked by next stage ").append(100 * stage.waitOutNanos.get() / total).append("%");
+			if(stage.errors.get() > 0) {
+				sb.append(", failed ").append(stage.errors.get());
+			}
+			sb.append(System.lineSeparator());
+		}
+		return sb.toString();
+	}
+	
+	private class StageRunner {
+		private final String name;
+		private final int threads;
+		private final Supplier<? extends Stage<?,?>> factory;
+		private final BlockingQueue<Object> input = new ArrayBlockingQueue<Object>(capacity);
+		private final AtomicInteger running = new AtomicInteger();
+		private final CountDownLatch stopped;
+		
+		private final AtomicLong items = new AtomicLong();
+		private final AtomicLong errors = new AtomicLong();
+		private final AtomicLong busyNanos = new AtomicLong();
+		private final AtomicLong waitInNanos = new AtomicLong();
+		private final AtomicLong waitOutNanos = new AtomicLong();
+		
+		private StageRunner(String name, int threads, Supplier<? extends Stage<?,?>> factory) {
+			this.name = name;
+			this.threads = threads;
+			this.factory = factory;
+			this.stopped = new CountDownLatch(threads);
+		}
+		
+		private void start(BlockingQueue<Object> output) {
+			running.set(threads);
+			for(int i = 0; i < threads; i++) {
+				new Thread(() -> run(output), name + "-" + i).start();
+			}
+		}
+		
+		@SuppressWarnings("unchecked")
+		private void run(BlockingQueue<Object> output) {
+			Stage<Object,Object> stage = null;
+			//time this thread was blocked by the next stage while processing the current item
+			long[] blocked = new long[1];
+			Consumer<Object> out = o -> {
+				if(output == null) {
+					return;
+				}
+				long t = System.nanoTime();
+				inFlight.incrementAndGet();
+				try {
+					output.put(o);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException(e);
+				}
+				blocked[0] += System.nanoTime() - t;
+			};
+			
+			try {
+				stage = (Stage<Object,Object>) factory.get();
+				while(true) {
+					long t0 = System.nanoTime();
+					Object item = input.take();
+					long t1 = System.nanoTime();
+					waitInNanos.addAndGet(t1 - t0);
+					if(item == END) {
+						//pass the end on to the other threads of this stage
+						input.put(item);
+						break;
+					}
+					
+					blocked[0] = 0;
+					try {
+						stage.process(item, out);
+						items.incrementAndGet();
+					} catch (RuntimeException e) {
+						System.out.println("Stage " + name + " failed: " + e);
+						errors.incrementAndGet();
+					}
+					finally {
+						inFlight.decrementAndGet();
+					}
+					waitOutNanos.addAndGet(blocked[0]);
+					busyNanos.addAndGet(System.nanoTime() - t1 - blocked[0]);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			finally {
+				if(stage != null) {
+					stage.close();
+				}
+				//last thread of the stage ends the next stage
+				if(running.decrementAndGet() == 0 && output != null) {
+					try {
+						output.put(END);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				stopped.countDown();
+			}
+		}
+	}
+}
@@ -0,0 +1,293 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.work;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.json.Json;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonWriter;
+
+/**
+ * Progress of a run: patients and admissions done, rows per second per MIMIC table (see Metrics) and resources per second, 
+ * with an ETA from the smoothed rate of the done work (planned cost with size-aware scheduling, else patients).
+ * Reported as one console line every interval and, if configured, as a JSON status file for schedulers to poll.
+ *
+ */
+public class ProgressReporter {
+	//weight of the latest rate in the smoothed rate
+	private static final double SMOOTHING = 0.3;
+	
+	private final long intervalMs;
+	private final Path statusFile;
+	private final long totalPatients;
+	private final long totalTasks;
+	//progress units: planned cost, if known, else tasks
+	private final long totalUnits;
+	private final boolean costBased;
+	//open tasks per patient (row id): a patient is done with its last task (admission parts included)
+	private final Map<Integer,AtomicInteger> openTasks = new ConcurrentHashMap<Integer,AtomicInteger>();
+	
+	private final AtomicLong patientsDone = new AtomicLong();
+	private final AtomicLong admissionsDone = new AtomicLong();
+	private final AtomicLong tasksDone = new AtomicLong();
+	private final AtomicLong unitsDone = new AtomicLong();
+	
+	private final long startMillis = System.currentTimeMillis();
+	private final long startNanos = System.nanoTime();
+	//counter values at the start and at the last report (guarded by this)
+	private final Map<String,Long> startCounts = new LinkedHashMap<String,Long>();
+	private Map<String,Long> lastCounts;
+	private long lastNanos;
+	private long lastUnits;
+	private double smoothedRate = -1;
+	private ScheduledExecutorService timer;
+	
+	/**
+	 * Create reporter for planned tasks
+	 * @param tasks all tasks of the run
+	 * @param intervalMs report interval in ms
+	 * @param statusFile JSON status file, null: console only
+	 */
+	public ProgressReporter(List<PatientTask> tasks, long intervalMs, Path statusFile) {
+		this.intervalMs = intervalMs;
+		this.statusFile = statusFile;
+		
+		long cost = 0;
+		for(PatientTask task : tasks) {
+			openTasks.computeIfAbsent(task.getRowId(), k -> new AtomicInteger()).incrementAndGet();
+			cost += task.getCost();
+		}
+		this.totalPatients = openTasks.size();
+		this.totalTasks = tasks.size();
+		this.costBased = cost > 0;
+		this.totalUnits = costBased ? cost : tasks.size();
+		
+		for(String name : counterNames()) {
+			startCounts.put(name, Metrics.counter(name).get());
+		}
+		lastCounts = startCounts;
+		lastNanos = startNanos;
+	}
+	
+	/**
+	 * Report every interval (daemon thread)
+	 */
+	public synchronized void start() {
+		if(timer != null || intervalMs <= 0) {
+			return;
+		}
+		timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "progress");
+			t.setDaemon(true);
+			return t;
+		});
+		timer.scheduleAtFixedRate(this::report, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * A task is done (converted, failed or without patient)
+	 * @param task task
+	 * @param admissions number of converted admissions (an admission split into parts is counted with its first part)
+	 */
+	public void taskDone(PatientTask task, int admissions) {
+		AtomicInteger open = openTasks.get(task.getRowId());
+		if(open != null && open.decrementAndGet() == 0) {
+			patientsDone.incrementAndGet();
+		}
+		admissionsDone.addAndGet(admissions);
+		tasksDone.incrementAndGet();
+		unitsDone.addAndGet(costBased ? task.getCost() : 1);
+	}
+	
+	/**
+	 * Stop reporting; the last report (rates over the whole run) marks the run as finished
+	 */
+	public synchronized void finish() {
+		if(timer != null) {
+			timer.shutdownNow();
+			timer = null;
+		}
+		//whole run instead of the last interval
+		lastCounts = startCounts;
+		lastNanos = startNanos;
+		report(true);
+	}
+	
+	private void report() {
+		try {
+			report(false);
+		} catch (RuntimeException e) {
+			//keep reporting
+			System.out.println("Progress report failed: " + e);
+		}
+	}
+	
+	private synchronized void report(boolean finished) {
+		long now = System.nanoTime();
+		double seconds = Math.max(1, now - lastNanos) / 1e9;
+		
+		//rates since the last report
+		Map<String,Long> counts = new LinkedHashMap<String,Long>();
+		Map<String,Double> rates = new LinkedHashMap<String,Double>();
+		for(String name : counterNames()) {
+			long count = Metrics.counter(name).get();
+			counts.put(name, count);
+			rates.put(name, (count - lastCounts.get(name)) / seconds);
+		}
+		
+		long units = unitsDone.get();
+		double rate = (units - lastUnits) / seconds;
+		if(!finished) {
+			smoothedRate = smoothedRate < 0 ? rate : SMOOTHING * rate + (1 - SMOOTHING) * smoothedRate;
+		}
+		long etaMs = finished ? 0 : smoothedRate > 0 ? (long) ((totalUnits - units) / smoothedRate * 1000) : -1;
+		
+		System.out.println(getStatusLine(rates, etaMs, finished));
+		if(statusFile != null) {
+			writeStatusFile(counts, rates, etaMs, finished);
+		}
+		
+		lastCounts = counts;
+		lastNanos = now;
+		lastUnits = units;
+	}
+	
+	private String getStatusLine(Map<String,Double> rates, long etaMs, boolean finished) {
+		StringBuilder sb = new StringBuilder(finished ? "progress (finished): " : "progress: ");
+		sb.append(patientsDone.get()).append('/').append(totalPatients).append(" patients")
+			.append(String.format(" (%.1f%%)", 100 * getProgress()))
+			.append(", ").append(admissionsDone.get()).append(" admissions, ")
+			.append(Math.round(rates.get(PatientConverter.RESOURCES_COUNTER))).append(" resources/s, rows/s:");
+		int length = sb.length();
+		for(String table : ConnectDB.TABLES) {
+			long tableRate = Math.round(rates.get(rowsCounter(table)));
+			if(tableRate > 0) {
+				sb.append(' ').append(table).append(' ').append(tableRate);
+			}
+		}
+		if(sb.length() == length) {
+			sb.append(" 0");
+		}
+		if(!finished) {
+			sb.append(", ETA ").append(etaMs < 0 ? "unknown" : formatDuration(etaMs));
+		}
+		else {
+			sb.append(", elapsed ").append(formatDuration(System.currentTimeMillis() - startMillis));
+		}
+		return sb.toString();
+	}
+	
+	private void writeStatusFile(Map<String,Long> counts, Map<String,Double> rates, long etaMs, boolean finished) {
+		JsonObjectBuilder rows = Json.createObjectBuilder();
+		JsonObjectBuilder rowRates = Json.createObjectBuilder();
+		for(String table : ConnectDB.TABLES) {
+			rows.add(table, counts.get(rowsCounter(table)) - startCounts.get(rowsCounter(table)));
+			rowRates.add(table, Math.round(rates.get(rowsCounter(table))));
+		}
+		JsonObjectBuilder status = Json.createObjectBuilder()
+				.add("state", finished ? "finished" : "running")
+				.add("startedAt", startMillis)
+				.add("updatedAt", System.currentTimeMillis())
+				.add("elapsedMs", System.currentTimeMillis() - startMillis)
+				.add("progress", getProgress())
+				.add("etaMs", etaMs)
+				.add("patientsTotal", totalPatients)
+				.add("patientsDone", patientsDone.get())
+				.add("tasksTotal", totalTasks)
+				.add("tasksDone", tasksDone.get())
+				.add("admissionsDone", admissionsDone.get())
+				.add("resources", counts.get(PatientConverter.RESOURCES_COUNTER) - startCounts.get(PatientConverter.RESOURCES_COUNTER))
+				.add("resourcesPerSecond", Math.round(rates.get(PatientConverter.RESOURCES_COUNTER)))
+				.add("rows", rows)
+				.add("rowsPerSecond", rowRates);
+		
+		//write next to the file and move, so readers never see a partial file
+		Path tmp = statusFile.resolveSibling(statusFile.getFileName() + ".tmp");
+		try {
+			try (Writer out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8); JsonWriter writer = Json.createWriter(out)) {
+				writer.writeObject(status.build());
+			}
+			try {
+				Files.move(tmp, statusFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp, statusFile, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			System.out.println("Status file " + statusFile + " not written (" + e.getMessage() + ")");
+		}
+	}
+	
+	/**
+	 * Share of the done work
+	 * @return 0..1
+	 */
+	public double getProgress() {
+		return totalUnits == 0 ? 1 : (double) unitsDone.get() / totalUnits;
+	}
+	
+	/**
+	 * Number of done patients
+	 * @return patients
+	 */
+	public long getPatientsDone() {
+		return patientsDone.get();
+	}
+	
+	/**
+	 * Number of patients of the run
+	 * @return patients
+	 */
+	public long getTotalPatients() {
+		return totalPatients;
+	}
+	
+	private static String[] counterNames() {
+		String[] names = new String[ConnectDB.TABLES.length + 1];
+		for(int i = 0; i < ConnectDB.TABLES.length; i++) {
+			names[i] = rowsCounter(ConnectDB.TABLES[i]);
+		}
+		names[ConnectDB.TABLES.length] = PatientConverter.RESOURCES_COUNTER;
+		return names;
+	}
+	
+	private static String rowsCounter(String table) {
+		return "db." + table + ".rows";
+	}
+	
+	private static String formatDuration(long ms) {
+		long s = ms / 1000;
+		if(s >= 3600) {
+			return String.format("%dh %02dm", s / 3600, s / 60 % 60);
+		}
+		return String.format("%dm %02ds", s / 60, s % 60);
+	}
+}
@@ -0,0 +1,67 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.work;
+
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.Property;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * Cheap estimate of the encoded size of a resource without encoding it.
+ * Walks the element tree and counts names, values and syntax as in compact json; 
+ * the result is scaled to other encodings with {@link BundleEncoding#getSizeFactor()}.
+ *
+ */
+public class ResourceSizeEstimator {
+	
+	//"resourceType":"",
+	private static final int RESOURCE_OVERHEAD = 18;
+	
+	private ResourceSizeEstimator() {
+	}
+	
+	/**
+	 * Estimated size of a resource in compact json (bytes)
+	 * @param resource resource to estimate
+	 * @return estimated size
+	 */
+	public static long estimate(Resource resource) {
+		return RESOURCE_OVERHEAD + resource.fhirType().length() + estimateElement(resource);
+	}
+	
+	private static long estimateElement(Base element) {
+		//{}
+		long size = 2;
+		for(Property p : element.children()) {
+			if(!p.hasValues()) {
+				continue;
+			}
+			//"name":  (+ [] for lists)
+			size += p.getName().length() + 4;
+			for(Base value : p.getValues()) {
+				if(value.isPrimitive()) {
+					//"value", 
+					String v = value.primitiveValue();
+					size += (v != null ? v.length() : 0) + 3;
+				}
+				else {
+					size += estimateElement(value) + 1;
+				}
+			}
+		}
+		return size;
+	}
+}
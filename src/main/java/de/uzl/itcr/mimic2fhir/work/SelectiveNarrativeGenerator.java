@@ -0,0 +1,107 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.work;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.DomainResource;
+import org.hl7.fhir.r4.model.Narrative;
+import org.hl7.fhir.r4.model.Resource;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.narrative.DefaultThymeleafNarrativeGenerator;
+
+/**
+ * Thymeleaf narrative generator (default templates) restricted to the resource types of a NarrativeMode.
+ * Fast paths:
+ * -whether a template exists is looked up once per resource type (no lookup for Observations etc. without template)
+ * -narratives of the shared reference resources (wards, caregivers, hospital, medications) are kept per type and id and copied 
+ * for the next resource with the same content, e.g. the same Medication in every admission; 
+ * templates themselves are parsed once and cached by Thymeleaf
+ *
+ */
+public class SelectiveNarrativeGenerator extends DefaultThymeleafNarrativeGenerator {
+	//reference data: few distinct resources, each in many bundles
+	private static final Set<String> CACHED_TYPES = new HashSet<String>(Arrays.asList(
+			"Practitioner", "Location", "Organization", "Medication"));
+	private static final int MAX_CACHED_NARRATIVES = 50000;
+	
+	private final NarrativeMode mode;
+	
+	//resource type -> template exists?
+	private final Map<String,Boolean> hasTemplate = new ConcurrentHashMap<String,Boolean>();
+	
+	//type/id -> generated narrative with the content it was generated for (no more entries once full)
+	private final Map<String,CachedNarrative> narratives = new ConcurrentHashMap<String,CachedNarrative>();
+	
+	/**
+	 * Create new generator
+	 * @param mode resource types to generate narratives for
+	 */
+	public SelectiveNarrativeGenerator(NarrativeMode mode) {
+		this.mode = mode;
+	}
+	
+	@Override
+	public boolean populateResourceNarrative(FhirContext ctx, IBaseResource resource) {
+		String type = ctx.getResourceType(resource);
+		if(!mode.isGenerated(type) || Boolean.FALSE.equals(hasTemplate.get(type))) {
+			return false;
+		}
+		if(!(resource instanceof DomainResource)) {
+			return super.populateResourceNarrative(ctx, resource);
+		}
+		
+		DomainResource domainResource = (DomainResource) resource;
+		String key = CACHED_TYPES.contains(type) && domainResource.hasId() ? type + "/" + domainResource.getIdElement().getIdPart() : null;
+		CachedNarrative cached = key != null ? narratives.get(key) : null;
+		if(cached != null && cached.content.equalsDeep(domainResource)) {
+			domainResource.setText(cached.narrative.copy());
+			return true;
+		}
+		//content without narrative, compared on the next hit
+		Resource content = key != null ? domainResource.copy() : null;
+		
+		super.populateResourceNarrative(ctx, resource);
+		if(!hasTemplate.containsKey(type)) {
+			//manifest is loaded by the first call above
+			hasTemplate.put(type, !getManifest().getTemplateByResourceName(ctx, getStyle(), type).isEmpty());
+		}
+		
+		if(!domainResource.hasText()) {
+			return false;
+		}
+		if(key != null && (narratives.size() < MAX_CACHED_NARRATIVES || narratives.containsKey(key))) {
+			narratives.put(key, new CachedNarrative(content, domainResource.getText().copy()));
+		}
+		return true;
+	}
+	
+	private static class CachedNarrative {
+		private final Resource content;
+		private final Narrative narrative;
+		
+		private CachedNarrative(Resource content, Narrative narrative) {
+			this.content = content;
+			this.narrative = narrative;
+		}
+	}
+}
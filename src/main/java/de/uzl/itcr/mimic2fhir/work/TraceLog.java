@@ -0,0 +1,203 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.work;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Locale;
+
+import javax.json.Json;
+import javax.json.JsonObjectBuilder;
+
+/**
+ * Local log of the patient traces (see PatientTrace): one record per task as CSV (file name *.csv) or NDJSON (else). 
+ * A task whose total time exceeds the configured percentile of the recent tasks is flagged and reported as slow patient, 
+ * with its slowest step - that is where pathological admissions and missing indexes show up.
+ *
+ */
+public class TraceLog implements Closeable {
+	//recent total times the percentile is computed from
+	private static final int WINDOW = 1000;
+	private static final int MIN_SAMPLES = 100;
+	private static final int RECOMPUTE_EVERY = 50;
+	
+	private final Writer writer;
+	private final boolean csv;
+	private final double percentile;
+	
+	//guarded by this
+	private final long[] samples = new long[WINDOW];
+	private long records;
+	private long slowRecords;
+	private long threshold = Long.MAX_VALUE;
+	
+	/**
+	 * Create trace log (an existing file is replaced)
+	 * @param file trace file, *.csv: CSV, else NDJSON
+	 * @param percentile latency percentile (e.g. 99) above which a task is reported as slow
+	 */
+	public TraceLog(Path file, double percentile) {
+		this.csv = file.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".csv");
+		this.percentile = percentile;
+		try {
+			this.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+			if(csv) {
+				StringBuilder header = new StringBuilder("task,rowId");
+				for(String table : ConnectDB.TABLES) {
+					header.append(',').append(table).append("Ms,").append(table).append("Rows");
+				}
+				writer.write(header.append(",convertMs,encodeMs,sinkMs,bundles,bundleBytes,totalMs,slow\n").toString());
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	/**
+	 * The conversion or a bundle of the task is done: the trace is written after the last one
+	 * @param trace trace
+	 */
+	public void done(PatientTrace trace) {
+		if(trace.done()) {
+			write(trace);
+		}
+	}
+	
+	private synchronized void write(PatientTrace trace) {
+		long total = trace.getTotalNanos();
+		boolean slow = total > threshold;
+		addSample(total);
+		
+		try {
+			writer.write(csv ? toCsv(trace, slow) : toJson(trace, slow));
+			writer.write('\n');
+		} catch (IOException e) {
+			System.out.println("Trace: writing the record of task " + trace.getTask() + " failed (" + e.getMessage() + ")");
+		}
+		
+		if(slow) {
+			slowRecords++;
+			System.out.println("Slow patient " + trace.getTask() + ": " + ms(total) + " ms (p" + formatPercentile() + " " + ms(threshold) + " ms), slowest step " + getSlowestStep(trace));
+		}
+	}
+	
+	private void addSample(long total) {
+		samples[(int) (records % WINDOW)] = total;
+		records++;
+		if(records >= MIN_SAMPLES && records % RECOMPUTE_EVERY == 0) {
+			long[] sorted = Arrays.copyOf(samples, (int) Math.min(records, WINDOW));
+			Arrays.sort(sorted);
+			int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+			threshold = sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+		}
+	}
+	
+	private static String getSlowestStep(PatientTrace trace) {
+		String step = "convert";
+		long nanos = trace.getConvertNanos();
+		long rows = -1;
+		for(String table : trace.getFetchedTables()) {
+			if(trace.getFetchNanos(table) > nanos) {
+				step = table + " query";
+				nanos = trace.getFetchNanos(table);
+				rows = trace.getFetchRows(table);
+			}
+		}
+		if(trace.getEncodeNanos() > nanos) {
+			step = "encode";
+			nanos = trace.getEncodeNanos();
+		}
+		if(trace.getSinkNanos() > nanos) {
+			step = "sink";
+			nanos = trace.getSinkNanos();
+		}
+		return step + " " + ms(nanos) + " ms" + (rows >= 0 ? " (" + rows + " rows)" : "");
+	}
+	
+	private static String toCsv(PatientTrace trace, boolean slow) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(trace.getTask()).append(',').append(trace.getTask().getRowId());
+		for(String table : ConnectDB.TABLES) {
+			sb.append(',').append(ms(trace.getFetchNanos(table))).append(',').append(trace.getFetchRows(table));
+		}
+		sb.append(',').append(ms(trace.getConvertNanos()))
+			.append(',').append(ms(trace.getEncodeNanos()))
+			.append(',').append(ms(trace.getSinkNanos()))
+			.append(',').append(trace.getBundles())
+			.append(',').append(trace.getBundleBytes())
+			.append(',').append(ms(trace.getTotalNanos()))
+			.append(',').append(slow);
+		return sb.toString();
+	}
+	
+	private static String toJson(PatientTrace trace, boolean slow) {
+		JsonObjectBuilder fetch = Json.createObjectBuilder();
+		for(String table : trace.getFetchedTables()) {
+			fetch.add(table, Json.createObjectBuilder()
+					.add("ms", msValue(trace.getFetchNanos(table)))
+					.add("rows", trace.getFetchRows(table)));
+		}
+		return Json.createObjectBuilder()
+				.add("task", trace.getTask().toString())
+				.add("rowId", trace.getTask().getRowId())
+				.add("fetch", fetch)
+				.add("convertMs", msValue(trace.getConvertNanos()))
+				.add("encodeMs", msValue(trace.getEncodeNanos()))
+				.add("sinkMs", msValue(trace.getSinkNanos()))
+				.add("bundles", trace.getBundles())
+				.add("bundleBytes", trace.getBundleBytes())
+				.add("totalMs", msValue(trace.getTotalNanos()))
+				.add("slow", slow)
+				.build().toString();
+	}
+	
+	private static String ms(long nanos) {
+		return String.format(Locale.ROOT, "%.1f", nanos / 1e6);
+	}
+	
+	private static double msValue(long nanos) {
+		//microsecond precision
+		return Math.round(nanos / 1e3) / 1e3;
+	}
+	
+	private String formatPercentile() {
+		return percentile == Math.rint(percentile) ? Long.toString((long) percentile) : Double.toString(percentile);
+	}
+	
+	/**
+	 * Number of slow tasks so far
+	 * @return slow tasks
+	 */
+	public synchronized long getSlowRecords() {
+		return slowRecords;
+	}
+
+	@Override
+	public synchronized void close() {
+		try {
+			writer.close();
+		} catch (IOException e) {
+			System.out.println("Trace: closing the trace file failed (" + e.getMessage() + ")");
+		}
+		System.out.println("Traced " + records + " tasks, " + slowRecords + " slow (above p" + formatPercentile() + ")");
+	}
+}
@@ -0,0 +1,205 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.work;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import de.uzl.itcr.mimic2fhir.queue.BundleMessage;
+
+/**
+ * Pushes bundles to the fhir server with several transactions in flight.
+ * {@link #submit(BundleMessage)} blocks while the (adaptive) limit of concurrent transactions is reached, 
+ * so a slow server slows down the consumer instead of piling up bundles in memory.
+ * Failed transactions are retried with exponential backoff on 429, 5xx and connection problems (I/O errors, timeouts); other errors fail at once.
+ *
+ */
+public class UploadEngine {
+	//adaptive limit starts at the default of Config.uploadMaxInFlight
+	private static final int INITIAL_LIMIT = 8;
+	
+	private final FHIRComm fhir;
+	private final AdaptiveLimit limit;
+	private final ExecutorService executor;
+	private final int maxRetries;
+	private final long retryBackoffMs;
+	
+	private final AtomicLong succeeded = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong retries = new AtomicLong();
+	
+	/**
+	 * Create new upload engine with settings from config
+	 * @param fhir fhir communication (does the actual POST)
+	 * @param config config-Object
+	 */
+	public UploadEngine(FHIRComm fhir, Config config) {
+		this.fhir = fhir;
+		this.maxRetries = config.getUploadMaxRetries();
+		this.retryBackoffMs = config.getUploadRetryBackoffMs();
+		this.limit = new AdaptiveLimit(INITIAL_LIMIT, config.getUploadMaxInFlight(), config.isUploadAdaptive());
+		this.executor = Executors.newFixedThreadPool(Math.max(1, config.getUploadMaxInFlight()), r -> {
+			Thread t = new Thread(r, "upload");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+	
+	/**
+	 * Submit bundle for upload; blocks while the limit of in-flight transactions is reached
+	 * @param message encoded transaction bundle
+	 */
+	public void submit(BundleMessage message) {
+		submit(message, null);
+	}
+	
+	/**
+	 * Submit bundle for upload; blocks while the limit of in-flight transactions is reached
+	 * @param message encoded transaction bundle
+	 * @param onComplete called with the outcome when the upload is finished (true: uploaded, false: failed after all retries or interrupted while waiting), may be null
+	 */
+	public void submit(BundleMessage message, Consumer<Boolean> onComplete) {
+		try {
+			limit.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			//not uploaded
+			if(onComplete != null) {
+				onComplete.accept(false);
+			}
+			return;
+		}
+		executor.execute(() -> {
+			boolean success = false;
+			try {
+				success = upload(message);
+			}
+			finally {
+				limit.release();
+				if(onComplete != null) {
+					onComplete.accept(success);
+				}
+			}
+		});
+	}
+	
+	private boolean upload(BundleMessage message) {
+		for(int attempt = 0; ; attempt++) {
+			long start = System.nanoTime();
+			try {
+				fhir.bundleToServer(message);
+				limit.onSuccess(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), message.getPayloadSize());
+				succeeded.incrementAndGet();
+				return true;
+			}
+			catch(Exception e) {
+				boolean retry = isRetryable(e);
+				if(retry) {
+					limit.onOverload();
+				}
+				if(!retry || attempt >= maxRetries) {
+					failed.incrementAndGet();
+					System.out.println("Upload of bundle " + message.getNumber() + " failed after " + (attempt + 1) + " attempt(s): " + e.getMessage());
+					return false;
+				}
+			}
+			retries.incrementAndGet();
+			
+			//exponential backoff with jitter
+			long backoff = retryBackoffMs * (1L << Math.min(attempt, 16));
+			try {
+				Thread.sleep(backoff + ThreadLocalRandom.current().nextLong(backoff / 2 + 1));
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				failed.incrementAndGet();
+				return false;
+			}
+		}
+	}
+	
+	private boolean isRetryable(Exception e) {
+		//connection problems, timeouts (possibly wrapped)
+		for(Throwable t = e; t != null; t = t.getCause()) {
+			if(t instanceof IOException || t instanceof FhirClientConnectionException) {
+				return true;
+			}
+		}
+		if(e instanceof BaseServerResponseException) {
+			int status = ((BaseServerResponseException) e).getStatusCode();
+			return status == 429 || status >= 500;
+		}
+		//parse errors, invalid arguments.. - retrying does not help
+		return false;
+	}
+	
+	/**
+	 * Wait for all submitted bundles to be uploaded
+	 */
+	public void awaitCompletion() {
+		try {
+			limit.awaitIdle();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Wait for all submitted bundles and stop upload threads
+	 */
+	public void close() {
+		awaitCompletion();
+		executor.shutdown();
+	}
+	
+	/**
+	 * Current limit of concurrent transactions
+	 * @return limit
+	 */
+	public int getCurrentLimit() {
+		return limit.getLimit();
+	}
+	
+	/**
+	 * Number of successfully uploaded bundles
+	 * @return number of bundles
+	 */
+	public long getSucceeded() {
+		return succeeded.get();
+	}
+	
+	/**
+	 * Number of bundles that could not be uploaded
+	 * @return number of bundles
+	 */
+	public long getFailed() {
+		return failed.get();
+	}
+	
+	/**
+	 * Number of retried transactions
+	 * @return number of retries
+	 */
+	public long getRetries() {
+		return retries.get();
+	}
+}
@@ -0,0 +1,168 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.work;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import de.uzl.itcr.mimic2fhir.queue.WorkItem;
+
+/**
+ * Size-aware planning: the workload of MIMIC is skewed (few patients with millions of chart events), 
+ * so the cost of every patient is estimated from its event counts and the largest work is scheduled first. 
+ * Admissions with more chart events than eventsPerPart are split into parts, which are converted in parallel.
+ * Every task carries the estimated heap size of its patient (see PatientMemoryEstimator), so the memory governor needs no query of its own.
+ *
+ */
+public class WorkloadPlanner {
+	private static final Comparator<PatientTask> LARGEST_TASK_FIRST = Comparator.comparingLong(PatientTask::getCost).reversed();
+	private static final Comparator<WorkItem> LARGEST_ITEM_FIRST = Comparator.comparingLong(WorkItem::getCost).reversed();
+	
+	private final ConnectDB db;
+	private final int eventsPerPart;
+	private final int spillThreshold;
+	
+	/**
+	 * Create planner
+	 * @param db db connection for the event counts
+	 * @param eventsPerPart max. number of chart events of an admission converted by one task
+	 */
+	public WorkloadPlanner(ConnectDB db, int eventsPerPart) {
+		this(db, eventsPerPart, 0);
+	}
+	
+	/**
+	 * Create planner
+	 * @param db db connection for the event counts
+	 * @param eventsPerPart max. number of chart events of an admission converted by one task
+	 * @param spillThreshold chart events kept in memory per admission, 0: all (for the memory estimate, see Config.getEventSpillThreshold())
+	 */
+	public WorkloadPlanner(ConnectDB db, int eventsPerPart, int spillThreshold) {
+		this.db = db;
+		this.eventsPerPart = Math.max(1, eventsPerPart);
+		this.spillThreshold = spillThreshold;
+	}
+	
+	/**
+	 * Plan tasks for a range of patients
+	 * @param firstRowId first patient row id
+	 * @param lastRowId last patient row id (inclusive)
+	 * @return tasks, largest first
+	 */
+	public List<PatientTask> plan(int firstRowId, int lastRowId) {
+		List<PatientTask> tasks = new ArrayList<PatientTask>();
+		for(Map.Entry<Integer,List<AdmissionSize>> patient : byPatient(db.getAdmissionSizes(firstRowId, lastRowId)).entrySet()) {
+			List<PatientTask> patientTasks = new ArrayList<PatientTask>();
+			Set<Integer> splitAdmissions = new HashSet<Integer>();
+			long cost = 0;
+			for(AdmissionSize admission : patient.getValue()) {
+				if(admission.getChartEvents() > eventsPerPart && addAdmissionParts(patientTasks, admission)) {
+					splitAdmissions.add(admission.getAdmissionId());
+				}
+				else {
+					cost += admission.getCost();
+				}
+			}
+			patientTasks.add(PatientTask.patient(patient.getKey(), splitAdmissions, cost));
+			for(PatientTask task : patientTasks) {
+				tasks.add(withMemoryEstimate(task, patient.getValue()));
+			}
+		}
+		tasks.sort(LARGEST_TASK_FIRST);
+		return tasks;
+	}
+	
+	/**
+	 * Plan one task per patient in row id order (no splitting), with memory estimates
+	 * @param firstRowId first patient row id
+	 * @param lastRowId last patient row id (inclusive)
+	 * @return tasks in row id order
+	 */
+	public List<PatientTask> planInRowOrder(int firstRowId, int lastRowId) {
+		Map<Integer,List<AdmissionSize>> patients = byPatient(db.getAdmissionSizes(firstRowId, lastRowId));
+		List<PatientTask> tasks = new ArrayList<PatientTask>();
+		for(int rowId = firstRowId; rowId <= lastRowId; rowId++) {
+			List<AdmissionSize> admissions = patients.get(rowId);
+			tasks.add(withMemoryEstimate(PatientTask.patient(rowId), admissions != null ? admissions : Collections.<AdmissionSize>emptyList()));
+		}
+		return tasks;
+	}
+	
+	private PatientTask withMemoryEstimate(PatientTask task, List<AdmissionSize> admissions) {
+		return task.withMemoryEstimate(PatientMemoryEstimator.estimate(task, admissions, eventsPerPart, spillThreshold));
+	}
+	
+	private boolean addAdmissionParts(List<PatientTask> tasks, AdmissionSize admission) {
+		List<Integer> boundaries = db.getChartEventBoundaries(admission.getAdmissionId(), eventsPerPart);
+		for(int part = 0; part < boundaries.size(); part++) {
+			int end = part + 1 < boundaries.size() ? boundaries.get(part + 1) : Integer.MAX_VALUE;
+			long events = Math.min(eventsPerPart, admission.getChartEvents() - (long)part * eventsPerPart);
+			//first part carries the other events of the admission
+			long cost = part == 0 ? admission.getBaseCost() + events : events;
+			tasks.add(PatientTask.admissionPart(admission.getRowId(), admission.getAdmissionId(), part, boundaries.get(part), end, cost));
+		}
+		return !boundaries.isEmpty();
+	}
+	
+	/**
+	 * Plan work items of a distributed run: consecutive patients, cut at about the same estimated cost per item 
+	 * (as many items as by count, but a giant patient gets an item of its own)
+	 * @param numberOfPatients number of patients (row ids 1..numberOfPatients)
+	 * @param size max. number of patients per work item
+	 * @return work items, largest first
+	 */
+	public List<WorkItem> planWorkItems(int numberOfPatients, int size) {
+		size = Math.max(1, size);
+		long[] costs = new long[numberOfPatients + 1];
+		long total = 0;
+		for(AdmissionSize admission : db.getAdmissionSizes(1, numberOfPatients)) {
+			costs[admission.getRowId()] += admission.getCost();
+			total += admission.getCost();
+		}
+		long target = Math.max(1, total / ((numberOfPatients + size - 1) / size));
+		
+		List<WorkItem> items = new ArrayList<WorkItem>();
+		int first = 1;
+		long cost = 0;
+		for(int rowId = 1; rowId <= numberOfPatients; rowId++) {
+			if(rowId > first && (rowId - first == size || cost + costs[rowId] > target)) {
+				items.add(new WorkItem(first, rowId - 1, cost));
+				first = rowId;
+				cost = 0;
+			}
+			cost += costs[rowId];
+		}
+		if(first <= numberOfPatients) {
+			items.add(new WorkItem(first, numberOfPatients, cost));
+		}
+		items.sort(LARGEST_ITEM_FIRST);
+		return items;
+	}
+	
+	private static Map<Integer,List<AdmissionSize>> byPatient(List<AdmissionSize> sizes) {
+		Map<Integer,List<AdmissionSize>> patients = new LinkedHashMap<Integer,List<AdmissionSize>>();
+		for(AdmissionSize size : sizes) {
+			patients.computeIfAbsent(size.getRowId(), k -> new ArrayList<AdmissionSize>()).add(size);
+		}
+		return patients;
+	}
+}
@@ -0,0 +1,138 @@
+/***********************************************************************
+Copyright 2018 Stefanie Ververs, University of Lübeck
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+/***********************************************************************/
+package de.uzl.itcr.mimic2fhir.work;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.Test;
+
+import de.uzl.itcr.mimic2fhir.model.MAdmission;
+import de.uzl.itcr.mimic2fhir.model.MCaregiver;
+import de.uzl.itcr.mimic2fhir.model.MChartevent;
+import de.uzl.itcr.mimic2fhir.model.MDiagnose;
+import de.uzl.itcr.mimic2fhir.model.MPatient;
+import de.uzl.itcr.mimic2fhir.model.MTransfer;
+import de.uzl.itcr.mimic2fhir.model.MWard;
+
+/**
+ * Split bundles are encoded while the converter builds the next ones (pipeline encode stage)
+ *
+ */
+public class PatientConverterTest {
+	private static final int DIAGNOSES = 50;
+	private static final int EVENTS = 1000;
+	
+	@Test
+	public void splitBundlesEncodeConcurrently() throws Exception {
+		Config config = new Config();
+		//basic bundle alone exceeds the limit -> one bundle per observation
+		config.setBundleResourceLimit(40);
+		
+		HashMap<Integer,MWard> wards = new HashMap<Integer,MWard>();
+		MWard ward = new MWard();
+		ward.setWardId(1);
+		ward.setCareUnit("MICU");
+		wards.put(1, ward);
+		
+		PatientConverter converter = new PatientConverter(config, new HashMap<Integer,MCaregiver>(), wards);
+		BundleEncoder encoder = new BundleEncoder(BundleEncoding.JSON, false);
+		
+		ExecutorService encodeThreads = Executors.newFixedThreadPool(4);
+		List<Future<Bundle>> encoded = new ArrayList<Future<Bundle>>();
+		//resource instance -> number of the first bundle containing it
+		IdentityHashMap<Resource,String> handedOver = new IdentityHashMap<Resource,String>();
+		try {
+			converter.convert(createPatient(), 1, (number, bundle) -> {
+				for(BundleEntryComponent entry : bundle.getEntry()) {
+					assertNull(entry.getResource().getId() + " shared with bundle " + number, handedOver.put(entry.getResource(), number));
+				}
+				encoded.add(encodeThreads.submit(() -> encoder.parse(new String(encoder.encode(bundle), "UTF-8"))));
+			});
+			
+			assertTrue("admission should be split", encoded.size() > 10);
+			for(Future<Bundle> f : encoded) {
+				Encounter enc = null;
+				for(BundleEntryComponent entry : f.get().getEntry()) {
+					if(entry.getResource() instanceof Encounter) {
+						enc = (Encounter) entry.getResource();
+					}
+				}
+				assertEquals(DIAGNOSES, enc.getDiagnosis().size());
+				assertEquals(1, enc.getLocation().size());
+			}
+		}
+		finally {
+			encodeThreads.shutdownNow();
+		}
+	}
+	
+	private static MPatient createPatient() {
+		MPatient pat = new MPatient();
+		pat.setPatientSubjectId("1");
+		pat.setGender("F");
+		pat.setBirthDate(new Date(0));
+		
+		MAdmission adm = new MAdmission();
+		adm.setAdmissionId("100");
+		adm.setAdmissionType("EMERGENCY");
+		adm.setAdmissionLocation("EMERGENCY ROOM ADMIT");
+		adm.setDischargeLocation("HOME");
+		adm.setAdmissionTime(new Date(0));
+		adm.setDischargeTime(new Date(86400000L));
+		
+		for(int i = 1; i <= DIAGNOSES; i++) {
+			MDiagnose d = new MDiagnose();
+			d.setSeqNumber(i);
+			d.setIcd9Code("4019");
+			d.setLongTitle("Unspecified essential hypertension");
+			adm.addDiagnose(d);
+		}
+		
+		MTransfer t = new MTransfer();
+		t.setCurrWard(1);
+		t.setIntime(new Date(0));
+		t.setOuttime(new Date(86400000L));
+		adm.addTransfer(t);
+		
+		for(int i = 1; i <= EVENTS; i++) {
+			MChartevent e = new MChartevent();
+			e.setRowId(i);
+			e.setRecordDate(new Date(i * 1000L));
+			e.setMeasurementType("Heart Rate");
+			e.setHasNumVal(true);
+			e.setNumValue(80);
+			e.setUnit("bpm");
+			adm.addEvent(e);
+		}
+		pat.addAdmission(adm);
+		return pat;
+	}
+}